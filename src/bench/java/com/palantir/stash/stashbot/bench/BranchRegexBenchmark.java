@@ -0,0 +1,81 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching the verify/publish branch regex against every branch in a repository, as the hook does on each push.
+ * {@link #stringMatches()} is what the hook does today, {@link #compiledPattern()} is there for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchRegexBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int branches;
+
+    // the default, a typical user supplied one, and one which has to backtrack on every branch
+    @Param({ "empty", "refs/heads/(master|develop|release/.*)", ".*master.*" })
+    private String regex;
+
+    private List<String> branchNames;
+    private Pattern pattern;
+
+    @Setup
+    public void setUp() {
+        branchNames = Fixtures.branchNames(branches);
+        pattern = Pattern.compile(regex);
+    }
+
+    @Benchmark
+    public int stringMatches() {
+        int matched = 0;
+        for (String branch : branchNames) {
+            if (branch.matches(regex)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int compiledPattern() {
+        int matched = 0;
+        for (String branch : branchNames) {
+            if (pattern.matcher(branch).matches()) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+}
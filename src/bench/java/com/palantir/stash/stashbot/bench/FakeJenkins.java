@@ -0,0 +1,265 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for the parts of jenkins that {@link com.offbytwo.jenkins.JenkinsServer} talks to:
+ * <ul>
+ * <li>GET /api/json - the job list</li>
+ * <li>POST /createItem?name=NAME - create a job</li>
+ * <li>POST /job/NAME/config.xml - update a job</li>
+ * <li>POST /job/NAME/build and /job/NAME/buildWithParameters?... - trigger a build</li>
+ * </ul>
+ * Every request can be delayed by a fixed latency plus random jitter, and failed with a given probability, so we can
+ * see how stashbot behaves when jenkins is slow or flaky.
+ */
+public class FakeJenkins {
+
+    /**
+     * Told about every build which was accepted, on the thread serving the request.
+     */
+    public static interface BuildListener {
+
+        public void buildTriggered(String jobName, Map<String, String> params);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Boolean> jobs;
+    private final ConcurrentMap<String, AtomicLong> requests;
+    private final Random random;
+
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double failureRate;
+    private volatile int failureStatus;
+    private volatile BuildListener listener;
+
+    public FakeJenkins(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.jobs = new ConcurrentHashMap<String, Boolean>();
+        this.requests = new ConcurrentHashMap<String, AtomicLong>();
+        this.random = new Random();
+        this.failureStatus = 500;
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // latency is simulated by sleeping, so each request needs its own thread
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the base URL, with a trailing slash
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param failureRate fraction of requests, 0 to 1, which fail with the given HTTP status
+     */
+    public void setFailures(double failureRate, int failureStatus) {
+        this.failureRate = failureRate;
+        this.failureStatus = failureStatus;
+    }
+
+    public void setBuildListener(BuildListener listener) {
+        this.listener = listener;
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * @return number of requests served, keyed by "ENDPOINT.STATUS"
+     */
+    public SortedMap<String, Long> getRequestCounts() {
+        SortedMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : requests.entrySet()) {
+            counts.put(e.getKey(), e.getValue().get());
+        }
+        return counts;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        // always consume the request so the connection can be reused
+        drain(exchange.getRequestBody());
+
+        URI uri = exchange.getRequestURI();
+        String path = uri.getPath();
+        String[] parts = path.replaceFirst("^/+", "").split("/");
+        Map<String, String> params = parseQuery(uri.getRawQuery());
+
+        String endpoint;
+        if (parts[0].equals("job") && parts.length >= 3) {
+            endpoint = parts[2].equals("config.xml") ? "updateJob" : parts[2].startsWith("build") ? "build" : "other";
+        } else if (parts[0].equals("createItem")) {
+            endpoint = "createJob";
+        } else if (parts[0].equals("api") || parts[0].isEmpty()) {
+            endpoint = "getJobs";
+        } else {
+            // includes the crumb issuer, which we don't emulate
+            endpoint = "other";
+        }
+
+        pause();
+        int status = failureRate > 0 && random.nextDouble() < failureRate ? failureStatus : 200;
+        if (status == 200) {
+            if (endpoint.equals("getJobs")) {
+                respond(exchange, 200, jobList());
+                count(endpoint, 200);
+                return;
+            } else if (endpoint.equals("createJob")) {
+                jobs.put(params.get("name"), true);
+            } else if (endpoint.equals("updateJob") || endpoint.equals("build")) {
+                if (!jobs.containsKey(parts[1])) {
+                    status = 404;
+                } else if (endpoint.equals("build")) {
+                    // jenkins answers a queued build with "201 Created"
+                    status = 201;
+                    BuildListener l = listener;
+                    if (l != null) {
+                        l.buildTriggered(parts[1], params);
+                    }
+                }
+            } else {
+                status = 404;
+            }
+        }
+        count(endpoint, status);
+        respond(exchange, status, "");
+    }
+
+    private String jobList() {
+        try {
+            JSONArray list = new JSONArray();
+            for (String name : jobs.keySet()) {
+                list.put(new JSONObject().put("name", name).put("url", getUrl() + "job/" + name + "/"));
+            }
+            return new JSONObject().put("jobs", list).toString();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void pause() {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            delay += (long) (random.nextDouble() * jitterMillis);
+        }
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void count(String endpoint, int status) {
+        String key = endpoint + "." + status;
+        AtomicLong c = requests.get(key);
+        if (c == null) {
+            requests.putIfAbsent(key, new AtomicLong());
+            c = requests.get(key);
+        }
+        c.incrementAndGet();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        byte[] buf = new byte[8192];
+        while (is.read(buf) != -1) {
+        }
+        is.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}
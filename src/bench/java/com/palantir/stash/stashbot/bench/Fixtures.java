@@ -0,0 +1,96 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deterministic synthetic git data, so results from different runs and machines are comparable.
+ */
+final class Fixtures {
+
+    // roughly what we see on busy repositories: a few long lived branches and lots of topic branches
+    private static final String[] BRANCH_PREFIXES = { "refs/heads/feature/", "refs/heads/bugfix/",
+        "refs/heads/users/someone/", "refs/heads/release/", "refs/heads/hotfix/" };
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return the i'th fake sha1, distinct (and never zero) in its first 16 characters like real ones
+     */
+    static String sha1(long i) {
+        StringBuilder sb = new StringBuilder(40);
+        hex(sb, mix(i + 1), 16);
+        hex(sb, mix(~i), 16);
+        hex(sb, mix(i + 2), 8);
+        return sb.toString();
+    }
+
+    static List<String> sha1s(int count) {
+        List<String> shas = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            shas.add(sha1(i));
+        }
+        return shas;
+    }
+
+    static List<String> branchNames(int count) {
+        List<String> branches = new ArrayList<String>(count);
+        branches.add("refs/heads/master");
+        branches.add("refs/heads/develop");
+        for (int i = branches.size(); i < count; i++) {
+            branches.add(BRANCH_PREFIXES[i % BRANCH_PREFIXES.length] + "topic-" + i);
+        }
+        return branches.subList(0, count);
+    }
+
+    /**
+     * @return output in the format of "git rev-list", one sha1 per line
+     */
+    static String revListOutput(int lines) {
+        StringBuilder sb = new StringBuilder(lines * 41);
+        for (int i = 0; i < lines; i++) {
+            sb.append(sha1(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return output in the format of "git branch", two characters of decoration then the branch name
+     */
+    static String branchOutput(int lines) {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (String branch : branchNames(lines)) {
+            sb.append(first ? "* " : "  ").append(branch.substring("refs/heads/".length())).append('\n');
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    private static void hex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+        }
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.git.CliGitRevisionReader;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
+import com.palantir.stash.stashbot.hooks.TriggerJenkinsBuildHook;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
+import com.palantir.stash.stashbot.managers.JenkinsManager;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.mocks.MockGitCommandBuilderFactory;
+import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Everything {@link TriggerJenkinsBuildHook#onReceive} does between receiving a push and handing builds to the
+ * {@link JenkinsManager}: config lookups, branch listing, regex filtering, the rev walk and the reachability cache.
+ * Git is the mock factory from the unit tests, so this measures stashbot's own overhead, not git's.
+ *
+ * "cold" is a push before the reachability cache has been seeded in the background (after startup or a branch
+ * delete), which excludes every verify branch in the rev-list; "warm" is a plain update where only the pushed range is
+ * walked. The background seed itself is not measured.
+ *
+ * The mocks remember every call made on them, so the fixture is rebuilt for each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HookPlanningBenchmark {
+
+    private static final String VERIFY_REGEX = "refs/heads/(master|develop|release/.*)";
+    private static final String PUBLISH_REGEX = "refs/heads/release/.*";
+
+    @Param({ "10", "1000" })
+    private int branches;
+
+    @Param({ "1", "100", "1000" })
+    private int commits;
+
+    @Param({ "cold", "warm" })
+    private String cache;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private TriggerJenkinsBuildHook hook;
+    private ReachabilityCache reachabilityCache;
+    private Repository repo;
+    private HookResponse response;
+    private List<RefChange> changes;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws SQLException {
+        ConfigurationPersistenceService cpm = Mockito.mock(ConfigurationPersistenceService.class);
+        RepositoryConfiguration rc = Mockito.mock(RepositoryConfiguration.class);
+        JenkinsServerConfiguration jsc = Mockito.mock(JenkinsServerConfiguration.class);
+        JenkinsManager jenkinsManager = Mockito.mock(JenkinsManager.class);
+        repo = Mockito.mock(Repository.class);
+        response = Mockito.mock(HookResponse.class);
+
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(repo.getName()).thenReturn("repo");
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo)).thenReturn(rc);
+        Mockito.when(cpm.getJenkinsServerConfiguration(Mockito.anyString())).thenReturn(jsc);
+        Mockito.when(cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT)).thenReturn(true);
+        Mockito.when(cpm.getJobTypeStatusMapping(rc, JobType.PUBLISH)).thenReturn(true);
+        Mockito.when(rc.getCiEnabled()).thenReturn(true);
+        Mockito.when(rc.getVerifyBranchRegex()).thenReturn(VERIFY_REGEX);
+        Mockito.when(rc.getPublishBranchRegex()).thenReturn(PUBLISH_REGEX);
+        Mockito.when(rc.getMaxVerifyChain()).thenReturn(0);
+        Mockito.when(jsc.getMaxVerifyChain()).thenReturn(0);
+
+        MockGitCommandBuilderFactory mgc = new MockGitCommandBuilderFactory();
+        mgc.getChangesets().addAll(Fixtures.sha1s(commits));
+        for (String branch : Fixtures.branchNames(branches)) {
+            mgc.getBranchMap().put(branch.substring("refs/heads/".length()), ImmutableList.<String> of());
+        }
+
+        RefChange change = Mockito.mock(RefChange.class);
+        Mockito.when(change.getRefId()).thenReturn("refs/heads/master");
+        final String fromHash = Fixtures.sha1(commits);
+        Mockito.when(change.getFromHash()).thenReturn(fromHash);
+        Mockito.when(change.getToHash()).thenReturn(Fixtures.sha1(commits - 1));
+        Mockito.when(change.getType()).thenReturn(RefChangeType.UPDATE);
+        changes = Collections.singletonList(change);
+
+        final GitRevisionReader cli =
+            new CliGitRevisionReader(mgc.getGitCommandBuilderFactory(), new CommandOutputHandlerFactory());
+        GitRevisionReader grr = new GitRevisionReader() {
+
+            @Override
+            public ImmutableList<String> getBranches(Repository repo) {
+                return cli.getBranches(repo);
+            }
+
+            @Override
+            public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+                Collection<String> minusRevs, int limit) {
+                // the mock rev-list ignores its arguments, so answer the hook's fast-forward check here
+                if (plusRevs.contains(fromHash)) {
+                    return ImmutableList.of();
+                }
+                return cli.getChangesets(repo, plusRevs, minusRevs, limit);
+            }
+        };
+
+        // never seed in the background, "warm" seeds by hand below
+        reachabilityCache = new ReachabilityCache(grr, MoreExecutors.sameThreadExecutor(), Long.MAX_VALUE, lf);
+        reachabilityCache.requestSeed(repo, ImmutableList.<String> of());
+        hook = new TriggerJenkinsBuildHook(cpm, jenkinsManager, grr, reachabilityCache, new MetricsRegistry(lf),
+            new Tracer(lf), lf);
+    }
+
+    @Benchmark
+    public void onReceive() {
+        reachabilityCache.invalidate(repo);
+        if ("warm".equals(cache)) {
+            // nothing known yet, so every pushed commit is new and gets a build
+            reachabilityCache.seed(repo, Collections.<String> emptyList());
+        }
+        hook.onReceive(repo, changes, response);
+    }
+}
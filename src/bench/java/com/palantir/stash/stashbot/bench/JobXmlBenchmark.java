@@ -0,0 +1,137 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.nav.NavBuilder.BrowseRepoResource;
+import com.atlassian.stash.nav.NavBuilder.Repo;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryCloneLinksRequest;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.NamedLink;
+import com.atlassian.stash.util.SimpleNamedLink;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.managers.VelocityManager;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+import com.palantir.stash.stashbot.urlbuilder.StashbotUrlBuilder;
+
+/**
+ * Rendering the shipped job templates, which happens for every job of every repository on a reload-all.
+ *
+ * Configuration comes from mocks, which remember every call made on them, so the fixture is rebuilt for each
+ * iteration to keep that from growing without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobXmlBenchmark {
+
+    @Param({ "VERIFY_COMMIT", "VERIFY_PR", "PUBLISH", "NOOP" })
+    private JobType jobType;
+
+    private JenkinsJobXmlFormatter formatter;
+    private JobTemplate jobTemplate;
+    private Repository repo;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, SQLException {
+        ConfigurationPersistenceService cpm = Mockito.mock(ConfigurationPersistenceService.class);
+        RepositoryConfiguration rc = Mockito.mock(RepositoryConfiguration.class);
+        JenkinsServerConfiguration jsc = Mockito.mock(JenkinsServerConfiguration.class);
+        RepositoryService rs = Mockito.mock(RepositoryService.class);
+        NavBuilder nb = Mockito.mock(NavBuilder.class);
+        Repo nbRepo = Mockito.mock(Repo.class);
+        BrowseRepoResource nbBrowse = Mockito.mock(BrowseRepoResource.class);
+        Project project = Mockito.mock(Project.class);
+        repo = Mockito.mock(Repository.class);
+        jobTemplate = Mockito.mock(JobTemplate.class);
+
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(repo.getName()).thenReturn("repo");
+        Mockito.when(repo.getProject()).thenReturn(project);
+        Mockito.when(project.getName()).thenReturn("project");
+
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo)).thenReturn(rc);
+        Mockito.when(cpm.getJenkinsServerConfiguration("default")).thenReturn(jsc);
+        Mockito.when(rc.getJenkinsServerName()).thenReturn("default");
+        Mockito.when(rc.getVerifyBuildCommand()).thenReturn("./gradlew check");
+        Mockito.when(rc.getPublishBuildCommand()).thenReturn("./gradlew publish");
+        Mockito.when(rc.getPrebuildCommand()).thenReturn("git clean -fdx");
+        Mockito.when(rc.getEmailRecipients()).thenReturn("team@example.com");
+        Mockito.when(rc.getJunitEnabled()).thenReturn(true);
+        Mockito.when(rc.getJunitPath()).thenReturn("build/test-results/*.xml");
+        Mockito.when(rc.getArtifactsEnabled()).thenReturn(true);
+        Mockito.when(rc.getArtifactsPath()).thenReturn("build/libs/*.jar");
+        Mockito.when(jsc.getAuthenticationMode()).thenReturn(AuthenticationMode.USERNAME_AND_PASSWORD);
+        Mockito.when(jsc.getStashUsername()).thenReturn("stashbot");
+        Mockito.when(jsc.getStashPassword()).thenReturn("password");
+
+        Mockito.when(nb.buildAbsolute()).thenReturn("http://stash.example.com");
+        Mockito.when(nb.repo(repo)).thenReturn(nbRepo);
+        Mockito.when(nbRepo.browse()).thenReturn(nbBrowse);
+        Mockito.when(nbBrowse.buildAbsolute()).thenReturn("http://stash.example.com/projects/P/repos/repo/browse");
+        Mockito.when(rs.getCloneLinks(Mockito.any(RepositoryCloneLinksRequest.class))).thenReturn(
+            Collections.<NamedLink> singleton(new SimpleNamedLink("http://stash.example.com/scm/p/repo.git", "http")));
+
+        Mockito.when(jobTemplate.getJobType()).thenReturn(jobType);
+        Mockito.when(jobTemplate.getTemplateFile()).thenReturn(templateFor(jobType));
+
+        formatter = new JenkinsJobXmlFormatter(new VelocityManager(), cpm, new StashbotUrlBuilder(nb, rs));
+    }
+
+    @Benchmark
+    public String generateJobXml() throws SQLException {
+        return formatter.generateJobXml(jobTemplate, repo);
+    }
+
+    private static String templateFor(JobType jobType) {
+        switch (jobType) {
+        case VERIFY_PR:
+            return "jenkins-verify-pull-request-job.vm";
+        case PUBLISH:
+            return "jenkins-publish-job.vm";
+        default:
+            // NOOP jobs have no template of their own
+            return "jenkins-verify-job.vm";
+        }
+    }
+}
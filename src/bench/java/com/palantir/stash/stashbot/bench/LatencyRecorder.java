@@ -0,0 +1,74 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps every sample, so percentiles are exact rather than bucketed like
+ * {@link com.palantir.stash.stashbot.metrics.Histogram}. A load run is at most a few million samples, so that's cheap.
+ */
+class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return count, mean, max and the usual percentiles, in milliseconds
+     */
+    synchronized JSONObject summarize() throws JSONException {
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long s : sorted) {
+            sum += s;
+        }
+        JSONObject summary = new JSONObject();
+        summary.put("count", count);
+        summary.put("mean", count == 0 ? 0.0 : millis(sum / count));
+        summary.put("p50", millis(percentile(sorted, 0.50)));
+        summary.put("p90", millis(percentile(sorted, 0.90)));
+        summary.put("p99", millis(percentile(sorted, 0.99)));
+        summary.put("p999", millis(percentile(sorted, 0.999)));
+        summary.put("max", count == 0 ? 0.0 : millis(sorted[count - 1]));
+        return summary;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,525 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.executor.ThreadLocalDelegateExecutorFactory;
+import com.atlassian.stash.build.BuildStatus.State;
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.NamedLink;
+import com.atlassian.stash.util.SimpleNamedLink;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
+import com.palantir.stash.stashbot.hooks.PullRequestListener;
+import com.palantir.stash.stashbot.hooks.TriggerJenkinsBuildHook;
+import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager.RepositoryJobs;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
+import com.palantir.stash.stashbot.managers.JenkinsClientManager;
+import com.palantir.stash.stashbot.managers.JenkinsManager;
+import com.palantir.stash.stashbot.managers.TriggerLatencyTracker;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+import com.palantir.stash.stashbot.urlbuilder.StashbotUrlBuilder;
+
+/**
+ * Replays a synthetic stream of pushes and pull request updates through {@link TriggerJenkinsBuildHook} and
+ * {@link PullRequestListener}, with a real {@link JenkinsManager} triggering builds over HTTP on a {@link FakeJenkins}.
+ * The fake jenkins "runs" each build and reports back to the {@link TriggerLatencyTracker}, as the reporting servlet
+ * would. Stash itself (configuration, git, events) is stubbed out, so this measures stashbot and its jenkins client.
+ *
+ * Options are given as key=value arguments, see {@link #DEFAULTS}. Prints a summary and writes it, along with a
+ * snapshot of stashbot's own metrics, as JSON to the "out" file.
+ *
+ * With rate=0 events are fired as fast as the worker threads allow. With a rate, latencies are measured from when each
+ * event was due rather than when a worker got to it, so a backed up harness doesn't hide a slow stashbot.
+ */
+public class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+    static {
+        DEFAULTS.put("repos", "20"); // repositories, all with CI enabled
+        DEFAULTS.put("branches", "200"); // branches in every repository
+        DEFAULTS.put("pushes", "2000"); // pushes to master
+        DEFAULTS.put("commitsPerPush", "3");
+        DEFAULTS.put("prs", "500"); // pull request updates
+        DEFAULTS.put("threads", "8"); // concurrent pushers / event threads
+        DEFAULTS.put("rate", "0"); // events per second, 0 for unthrottled
+        DEFAULTS.put("latency", "20"); // ms jenkins takes to answer each request
+        DEFAULTS.put("jitter", "10"); // up to this many ms extra, uniformly distributed
+        DEFAULTS.put("failureRate", "0"); // fraction of jenkins requests which fail
+        DEFAULTS.put("failureStatus", "500");
+        DEFAULTS.put("queueMillis", "10"); // build queued in jenkins before reporting in progress
+        DEFAULTS.put("buildMillis", "100"); // build in progress before reporting success
+        DEFAULTS.put("seed", "1");
+        DEFAULTS.put("port", "0");
+        DEFAULTS.put("out", "target/load-result.json");
+    }
+
+    private static final String VERIFY_REGEX = "refs/heads/(master|develop|release/.*)";
+    private static final String PUBLISH_REGEX = "refs/heads/release/.*";
+    private static final String JOB_XML = "<project/>";
+
+    private final Map<String, String> options;
+
+    private final PluginLoggerFactory lf;
+    private final MetricsRegistry metrics;
+    private final TriggerLatencyTracker latencyTracker;
+    private final FakeJenkins jenkins;
+    private final SyntheticGit git;
+    private final List<Repository> repos;
+    private final JenkinsManager jenkinsManager;
+    private final ReachabilityCache reachabilityCache;
+    private final TriggerJenkinsBuildHook hook;
+    private final PullRequestListener pullRequestListener;
+    private final HookResponse hookResponse;
+    private final ScheduledExecutorService buildRunner;
+
+    // when each expected build was asked for, keyed by sha1 for pushes and "pr:ID" for pull requests
+    private final ConcurrentMap<String, Long> awaitingBuild;
+    private final LatencyRecorder pushLatency;
+    private final LatencyRecorder pullRequestLatency;
+    private final LatencyRecorder triggerLatency;
+    private final AtomicLong eventErrors;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Expected key=value with key one of " + DEFAULTS.keySet()
+                    + ", got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.lf = new PluginLoggerFactory();
+        this.metrics = new MetricsRegistry(lf);
+        this.latencyTracker = new TriggerLatencyTracker(metrics, lf);
+        this.jenkins = new FakeJenkins(intOption("port"));
+        this.git = new SyntheticGit(Fixtures.branchNames(intOption("branches")));
+        this.repos = new ArrayList<Repository>();
+        this.buildRunner = Executors.newScheduledThreadPool(4);
+        this.awaitingBuild = new ConcurrentHashMap<String, Long>();
+        this.pushLatency = new LatencyRecorder();
+        this.pullRequestLatency = new LatencyRecorder();
+        this.triggerLatency = new LatencyRecorder();
+        this.eventErrors = new AtomicLong();
+        this.hookResponse = Stubs.stub(HookResponse.class, "response");
+
+        final JenkinsServerConfiguration jsc = Stubs.stub(JenkinsServerConfiguration.class, "default",
+            "getName", "default",
+            "getUrl", jenkins.getUrl(),
+            "getUsername", "jenkins",
+            "getPassword", "password",
+            "getStashUsername", "stashbot",
+            "getStashPassword", "password",
+            "getAuthenticationMode", AuthenticationMode.USERNAME_AND_PASSWORD,
+            "getMaxVerifyChain", 0);
+
+        final Map<Integer, RepositoryConfiguration> rcs = new ConcurrentHashMap<Integer, RepositoryConfiguration>();
+        Project project = Stubs.stub(Project.class, "BENCH", "getKey", "BENCH", "getName", "bench");
+        for (int i = 1; i <= intOption("repos"); i++) {
+            Repository repo = Stubs.stub(Repository.class, "repo-" + i,
+                "getId", i,
+                "getName", "repo-" + i,
+                "getSlug", "repo-" + i,
+                "getProject", project);
+            repos.add(repo);
+            rcs.put(i, Stubs.stub(RepositoryConfiguration.class, "rc-" + i,
+                "getID", i,
+                "getRepoId", i,
+                "getCiEnabled", true,
+                "getJenkinsServerName", "default",
+                "getVerifyBranchRegex", VERIFY_REGEX,
+                "getPublishBranchRegex", PUBLISH_REGEX,
+                "getMaxVerifyChain", 0,
+                "getRebuildOnTargetUpdate", true));
+        }
+
+        // every pull request update is one we haven't built yet
+        final PullRequestMetadata prm = Stubs.stub(PullRequestMetadata.class, "prm", "getBuildStarted", false);
+        ConfigurationPersistenceService cpm = Stubs.stub(ConfigurationPersistenceService.class, "cpm",
+            "getRepositoryConfigurationForRepository", new Stubs.Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return rcs.get(((Repository) args[0]).getId());
+                }
+            },
+            "getJenkinsServerConfiguration", jsc,
+            "getJobTypeStatusMapping", true,
+            "getPullRequestMetadata", prm);
+
+        final Map<JobType, JobTemplate> templates = new EnumMap<JobType, JobTemplate>(JobType.class);
+        for (final JobType type : new JobType[] { JobType.VERIFY_COMMIT, JobType.VERIFY_PR, JobType.PUBLISH }) {
+            templates.put(type, Stubs.stub(JobTemplate.class, type.toString(),
+                "getJobType", type,
+                "getName", type.toString(),
+                "getBuildNameFor", new Stubs.Answer() {
+
+                    @Override
+                    public Object answer(Object[] args) {
+                        return ((Repository) args[0]).getSlug() + "_" + type.toString();
+                    }
+                }));
+        }
+        JobTemplateManager jtm = new JobTemplateManager(null, lf) {
+
+            @Override
+            public JobTemplate getJobTemplate(JobType jobType, RepositoryConfiguration rc) {
+                return templates.get(jobType);
+            }
+
+            @Override
+            public ImmutableList<JobTemplate> getJenkinsJobsForRepository(RepositoryConfiguration rc) {
+                return ImmutableList.copyOf(templates.values());
+            }
+
+            @Override
+            public RepositoryJobs getRepositoryJobs(RepositoryConfiguration rc) {
+                return new RepositoryJobs(ImmutableList.copyOf(templates.values()));
+            }
+
+            @Override
+            public String getJobFingerprint(RepositoryConfiguration rc, JobTemplate jt) {
+                return null;
+            }
+
+            @Override
+            public void setJobFingerprint(RepositoryConfiguration rc, JobTemplate jt, String xmlHash) {
+            }
+        };
+        // job XML generation has its own benchmark, here we only care that jenkins gets some
+        JenkinsJobXmlFormatter xmlFormatter = new JenkinsJobXmlFormatter(null, cpm, null) {
+
+            @Override
+            public String generateJobXml(JobTemplate jobTemplate, Repository repo, LookupContext lc) {
+                return JOB_XML;
+            }
+        };
+
+        final NamedLink cloneLink = new SimpleNamedLink(jenkins.getUrl() + "scm/bench/repo.git", "http");
+        StashbotUrlBuilder sub = new StashbotUrlBuilder(
+            Stubs.stub(NavBuilder.class, "nb", "buildAbsolute", "http://localhost/stash"),
+            Stubs.stub(RepositoryService.class, "rs", "getCloneLinks", Collections.singleton(cloneLink)));
+        // no security context to carry around, just run on the plain executor
+        ThreadLocalDelegateExecutorFactory tldef = Stubs.stub(ThreadLocalDelegateExecutorFactory.class, "tldef",
+            "createExecutorService", new Stubs.Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return args[0];
+                }
+            });
+
+        this.jenkinsManager = new JenkinsManager(cpm, jtm, xmlFormatter, new JenkinsClientManager(), sub, lf,
+            tldef, Stubs.stub(EventPublisher.class, "publisher"), metrics, latencyTracker);
+        this.reachabilityCache = new ReachabilityCache(git, lf);
+        Tracer tracer = new Tracer(lf);
+        this.hook = new TriggerJenkinsBuildHook(cpm, jenkinsManager, git, reachabilityCache, metrics, tracer, lf);
+        this.pullRequestListener = new PullRequestListener(cpm, jenkinsManager, reachabilityCache, tracer, lf);
+
+        jenkins.setBuildListener(new FakeJenkins.BuildListener() {
+
+            @Override
+            public void buildTriggered(String jobName, Map<String, String> params) {
+                String prId = params.get("pullRequestId");
+                Long askedAt = awaitingBuild.remove(prId != null ? "pr:" + prId : params.get("buildHead"));
+                if (askedAt != null) {
+                    triggerLatency.record(System.nanoTime() - askedAt);
+                }
+                runBuild(params.get("triggerId"), Integer.parseInt(params.get("repoId")));
+            }
+        });
+    }
+
+    public void run() throws Exception {
+        jenkins.setLatency(intOption("latency"), intOption("jitter"));
+        jenkins.start();
+
+        // create every repository's jobs, before any failures are injected
+        long setupStart = System.nanoTime();
+        for (Repository repo : repos) {
+            jenkinsManager.updateRepo(repo);
+        }
+        long setupNanos = System.nanoTime() - setupStart;
+        jenkins.setFailures(Double.parseDouble(options.get("failureRate")), intOption("failureStatus"));
+
+        List<Event> events = generateEvents();
+        final int rate = intOption("rate");
+        ExecutorService workers = Executors.newFixedThreadPool(intOption("threads"));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events.size(); i++) {
+            final Event event = events.get(i);
+            final long due = rate > 0 ? start + TimeUnit.SECONDS.toNanos(i) / rate : 0;
+            if (rate > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            workers.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        event.fire(rate > 0 ? due : System.nanoTime());
+                    } catch (RuntimeException e) {
+                        eventErrors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        long eventsDone = System.nanoTime();
+
+        // waits for every queued trigger to have been sent to jenkins
+        jenkinsManager.destroy();
+        reachabilityCache.destroy();
+        long triggersDone = System.nanoTime();
+
+        // and for the builds to "finish"
+        buildRunner.shutdown();
+        buildRunner.awaitTermination(1, TimeUnit.HOURS);
+        jenkins.stop();
+        // flushes the async log appenders
+        lf.destroy();
+
+        report(events.size(), setupNanos, eventsDone - start, triggersDone - start);
+    }
+
+    private List<Event> generateEvents() {
+        Random random = new Random(intOption("seed"));
+        int pushes = intOption("pushes");
+        int prs = intOption("prs");
+        int commitsPerPush = intOption("commitsPerPush");
+
+        // the current head of master in each repository
+        Map<Integer, String> heads = new HashMap<Integer, String>();
+        long sha = 0;
+        for (Repository repo : repos) {
+            heads.put(repo.getId(), Fixtures.sha1(sha++));
+        }
+
+        List<Event> events = new ArrayList<Event>(pushes + prs);
+        int prId = 0;
+        while (pushes + prs > 0) {
+            Repository repo = repos.get(random.nextInt(repos.size()));
+            String head = heads.get(repo.getId());
+            if (random.nextInt(pushes + prs) < pushes) {
+                List<String> commits = new ArrayList<String>(commitsPerPush);
+                for (int i = 0; i < commitsPerPush; i++) {
+                    commits.add(Fixtures.sha1(sha++));
+                }
+                git.push(head, commits);
+                heads.put(repo.getId(), commits.get(commits.size() - 1));
+                events.add(new Push(repo, head, commits));
+                pushes--;
+            } else {
+                events.add(new PullRequestUpdate(repo, ++prId, head, Fixtures.sha1(sha++)));
+                prs--;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * What the build's reporting calls would do, see BuildSuccessReportingServlet
+     */
+    private void runBuild(final String triggerId, final int repoId) {
+        final long queueMillis = intOption("queueMillis");
+        final long buildMillis = intOption("buildMillis");
+        buildRunner.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                latencyTracker.reported(triggerId, repoId, State.INPROGRESS);
+            }
+        }, queueMillis, TimeUnit.MILLISECONDS);
+        buildRunner.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                latencyTracker.reported(triggerId, repoId, State.SUCCESSFUL);
+            }
+        }, queueMillis + buildMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void report(int eventCount, long setupNanos, long eventNanos, long triggerNanos) throws JSONException,
+        IOException {
+        int expectedBuilds = intOption("pushes") * intOption("commitsPerPush") + intOption("prs");
+
+        JSONObject result = new JSONObject();
+        result.put("options", new JSONObject(options));
+        result.put("setup", new JSONObject()
+            .put("repos", repos.size())
+            .put("jobs", jenkins.getJobCount())
+            .put("seconds", seconds(setupNanos)));
+        result.put("events", new JSONObject()
+            .put("count", eventCount)
+            .put("errors", eventErrors.get())
+            .put("seconds", seconds(eventNanos))
+            .put("perSecond", eventCount / seconds(eventNanos)));
+        result.put("builds", new JSONObject()
+            .put("expected", expectedBuilds)
+            .put("triggered", triggerLatency.getCount())
+            .put("lost", awaitingBuild.size())
+            .put("seconds", seconds(triggerNanos))
+            .put("perSecond", triggerLatency.getCount() / seconds(triggerNanos)));
+        result.put("latency", new JSONObject()
+            .put("push", pushLatency.summarize())
+            .put("pullRequest", pullRequestLatency.summarize())
+            .put("eventToJenkins", triggerLatency.summarize()));
+        result.put("jenkinsRequests", new JSONObject(jenkins.getRequestCounts()));
+        result.put("metrics", metrics.toJson());
+
+        String json = result.toString(2);
+        System.out.println(json);
+
+        File out = new File(options.get("out"));
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+        try {
+            w.write(json);
+        } finally {
+            w.close();
+        }
+        System.out.println("Results written to " + out.getAbsolutePath());
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private abstract static class Event {
+
+        protected final Repository repo;
+
+        Event(Repository repo) {
+            this.repo = repo;
+        }
+
+        /**
+         * @param due when the event should have started, latencies are measured from here
+         */
+        abstract void fire(long due);
+    }
+
+    private class Push extends Event {
+
+        private final List<String> commits;
+        private final List<RefChange> changes;
+
+        Push(Repository repo, String from, List<String> commits) {
+            super(repo);
+            this.commits = commits;
+            this.changes = Collections.singletonList(Stubs.stub(RefChange.class, "refs/heads/master",
+                "getRefId", "refs/heads/master",
+                "getFromHash", from,
+                "getToHash", commits.get(commits.size() - 1),
+                "getType", RefChangeType.UPDATE));
+        }
+
+        @Override
+        void fire(long due) {
+            for (String c : commits) {
+                awaitingBuild.put(c, due);
+            }
+            hook.onReceive(repo, changes, hookResponse);
+            pushLatency.record(System.nanoTime() - due);
+        }
+    }
+
+    private class PullRequestUpdate extends Event {
+
+        private final PullRequest pr;
+
+        PullRequestUpdate(Repository repo, long id, String toHash, String fromHash) {
+            super(repo);
+            PullRequestRef toRef = Stubs.stub(PullRequestRef.class, "to",
+                "getId", "refs/heads/master",
+                "getLatestChangeset", toHash,
+                "getRepository", repo);
+            PullRequestRef fromRef = Stubs.stub(PullRequestRef.class, "from",
+                "getId", "refs/heads/feature/pr-" + id,
+                "getLatestChangeset", fromHash,
+                "getRepository", repo);
+            this.pr = Stubs.stub(PullRequest.class, "pr-" + id,
+                "getId", id,
+                "getToRef", toRef,
+                "getFromRef", fromRef);
+        }
+
+        @Override
+        void fire(long due) {
+            awaitingBuild.put("pr:" + pr.getId(), due);
+            pullRequestListener.updatePr(pr);
+            pullRequestLatency.record(System.nanoTime() - due);
+        }
+    }
+}
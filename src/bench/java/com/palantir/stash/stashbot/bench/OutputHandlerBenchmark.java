@@ -0,0 +1,74 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.stash.scm.CommandOutputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
+
+/**
+ * Parsing of "git rev-list" and "git branch" output, which for large pushes or repositories with many branches is
+ * where the hook spends its time after git itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputHandlerBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    private int lines;
+
+    private CommandOutputHandlerFactory cohf;
+    private byte[] revList;
+    private byte[] branches;
+
+    @Setup
+    public void setUp() {
+        cohf = new CommandOutputHandlerFactory();
+        revList = Fixtures.revListOutput(lines).getBytes();
+        branches = Fixtures.branchOutput(lines).getBytes();
+    }
+
+    @Benchmark
+    public Object revList() throws ProcessException {
+        CommandOutputHandler<Object> coh = cohf.getRevlistOutputHandler();
+        coh.process(new ByteArrayInputStream(revList));
+        return coh.getOutput();
+    }
+
+    @Benchmark
+    public Object branchContains() throws ProcessException {
+        CommandOutputHandler<Object> coh = cohf.getBranchContainsOutputHandler();
+        coh.process(new ByteArrayInputStream(branches));
+        return coh.getOutput();
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canned implementations of interfaces for the load harness. Unlike mockito mocks these don't remember calls made on
+ * them, so they can be hammered from many threads for as long as we like.
+ */
+final class Stubs {
+
+    /**
+     * Computes a return value from the arguments.
+     */
+    static interface Answer {
+
+        Object answer(Object[] args);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * @param answers pairs of method name and either the value to return or an {@link Answer}, regardless of the
+     *            arguments. Any other method returns zero, false or null.
+     */
+    static <T> T stub(final Class<T> type, final String name, Object... answers) {
+        final Map<String, Object> byName = new HashMap<String, Object>();
+        for (int i = 0; i < answers.length; i += 2) {
+            byName.put((String) answers[i], answers[i + 1]);
+        }
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String m = method.getName();
+                if (byName.containsKey(m)) {
+                    Object value = byName.get(m);
+                    return value instanceof Answer ? ((Answer) value).answer(args) : value;
+                }
+                if (m.equals("equals") && args != null && args.length == 1) {
+                    return proxy == args[0];
+                }
+                if (m.equals("hashCode") && args == null) {
+                    return System.identityHashCode(proxy);
+                }
+                if (m.equals("toString") && args == null) {
+                    return name;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+        return type.cast(proxy);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class || type == Boolean.class) {
+            return false;
+        } else if (type == int.class || type == Integer.class) {
+            return 0;
+        } else if (type == long.class || type == Long.class) {
+            return 0L;
+        } else if (type == short.class || type == Short.class) {
+            return (short) 0;
+        } else if (type == byte.class || type == Byte.class) {
+            return (byte) 0;
+        } else if (type == char.class || type == Character.class) {
+            return (char) 0;
+        } else if (type == double.class || type == Double.class) {
+            return 0.0;
+        } else if (type == float.class || type == Float.class) {
+            return 0.0f;
+        }
+        return null;
+    }
+}
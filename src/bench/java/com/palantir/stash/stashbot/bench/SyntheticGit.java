@@ -0,0 +1,83 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+
+/**
+ * Just enough of a commit graph to answer the hook's questions: every repository has the same set of branches, and
+ * each pushed head knows which commits it introduced and which head it was pushed on top of. Walking from anything
+ * else (e.g. a branch name, when seeding the reachability cache) finds nothing, as if the branches were empty.
+ */
+class SyntheticGit implements GitRevisionReader {
+
+    private final ImmutableList<String> branches;
+    private final ConcurrentMap<String, ImmutableList<String>> introducedBy;
+    private final ConcurrentMap<String, String> pushedOnto;
+
+    SyntheticGit(List<String> branches) {
+        this.branches = ImmutableList.copyOf(branches);
+        this.introducedBy = new ConcurrentHashMap<String, ImmutableList<String>>();
+        this.pushedOnto = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * @param from the head the commits were pushed on top of
+     * @param commits in old-to-new order, the last one being the new head
+     */
+    void push(String from, List<String> commits) {
+        String head = commits.get(commits.size() - 1);
+        introducedBy.put(head, ImmutableList.copyOf(commits));
+        pushedOnto.put(head, from);
+    }
+
+    @Override
+    public ImmutableList<String> getBranches(Repository repo) {
+        return branches;
+    }
+
+    @Override
+    public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+        Collection<String> minusRevs, int limit) {
+        // every head is only pushed once, so the excluded revisions and the heads below them are all we need to skip
+        Set<String> excluded = new HashSet<String>();
+        for (String rev : minusRevs) {
+            String h = rev;
+            while (h != null && excluded.add(h)) {
+                h = pushedOnto.get(h);
+            }
+        }
+        List<String> commits = new ArrayList<String>();
+        for (String rev : plusRevs) {
+            ImmutableList<String> introduced = introducedBy.get(rev);
+            if (introduced != null && !excluded.contains(rev)) {
+                commits.addAll(introduced);
+            }
+        }
+        if (limit > 0 && commits.size() > limit) {
+            commits = commits.subList(commits.size() - limit, commits.size());
+        }
+        return ImmutableList.copyOf(commits);
+    }
+}
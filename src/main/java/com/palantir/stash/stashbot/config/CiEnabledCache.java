@@ -0,0 +1,90 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.java.ao.Query;
+
+import org.slf4j.Logger;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Answers "is CI enabled for this repository?" from memory, for UI code which asks on every commit row it renders.
+ * 
+ * Loaded from the database at startup and kept up to date from configuration change events. Unlike
+ * {@link ConfigurationPersistenceService#getRepositoryConfigurationForRepository}, this never creates a configuration
+ * for a repository that doesn't have one - such repositories just aren't CI enabled.
+ */
+public class CiEnabledCache implements LifecycleAware {
+
+    private final ActiveObjects ao;
+    private final Logger log;
+    private final ConcurrentMap<Integer, Boolean> ciEnabled;
+    private volatile boolean loaded;
+
+    public CiEnabledCache(ActiveObjects ao, PluginLoggerFactory lf) {
+        this.ao = ao;
+        this.log = lf.getLoggerForThis(this);
+        this.ciEnabled = new ConcurrentHashMap<Integer, Boolean>();
+        this.loaded = false;
+    }
+
+    @Override
+    public void onStart() {
+        RepositoryConfiguration[] rcs = ao.find(RepositoryConfiguration.class,
+            Query.select().where("CI_ENABLED = ?", true));
+        for (RepositoryConfiguration rc : rcs) {
+            ciEnabled.put(rc.getRepoId(), true);
+        }
+        loaded = true;
+        log.debug("Loaded " + Integer.toString(rcs.length) + " CI enabled repositories");
+    }
+
+    public boolean isCiEnabled(int repoId) {
+        if (!loaded) {
+            // asked before we started, just look this one up
+            return load(repoId);
+        }
+        Boolean enabled = ciEnabled.get(repoId);
+        return enabled != null && enabled;
+    }
+
+    @EventListener
+    public void onConfigurationUpdated(StashbotConfigurationUpdatedEvent event) {
+        // server changes don't affect whether CI is enabled
+        if (event.getRepositoryId() != null) {
+            load(event.getRepositoryId());
+        }
+    }
+
+    private boolean load(int repoId) {
+        RepositoryConfiguration[] rcs = ao.find(RepositoryConfiguration.class,
+            Query.select().where("REPO_ID = ?", repoId));
+        boolean enabled = rcs.length > 0 && rcs[0].getCiEnabled();
+        if (enabled) {
+            ciEnabled.put(repoId, true);
+        } else {
+            ciEnabled.remove(repoId);
+        }
+        return enabled;
+    }
+}
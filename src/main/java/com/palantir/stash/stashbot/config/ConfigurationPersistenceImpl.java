@@ -21,6 +21,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import net.java.ao.DBParam;
 import net.java.ao.Query;
+import net.java.ao.RawEntity;
 
 import org.slf4j.Logger;
 
@@ -30,27 +31,37 @@ import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.repository.Repository;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
 import com.palantir.stash.stashbot.event.StashbotMetadataUpdatedEvent;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.metrics.Timer;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
 import com.palantir.stash.stashbot.persistence.JobTypeStatusMapping;
+import com.palantir.stash.stashbot.persistence.PullRequestBuildComment;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
 public class ConfigurationPersistenceImpl implements ConfigurationPersistenceService {
 
     private final ActiveObjects ao;
+    private final JobTemplateManager jtm;
     private final Logger log;
     private final EventPublisher publisher;
+    private final MetricsRegistry metrics;
 
     private static final String DEFAULT_JENKINS_SERVER_CONFIG_KEY = "default";
 
-    public ConfigurationPersistenceImpl(ActiveObjects ao, PluginLoggerFactory lf, EventPublisher publisher) {
+    public ConfigurationPersistenceImpl(ActiveObjects ao, JobTemplateManager jtm, PluginLoggerFactory lf,
+        EventPublisher publisher, MetricsRegistry metrics) {
         this.ao = ao;
+        this.jtm = jtm;
         this.log = lf.getLoggerForThis(this);
         this.publisher = publisher;
+        this.metrics = metrics;
     }
 
     /* (non-Javadoc)
@@ -58,7 +69,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
      */
     @Override
     public void deleteJenkinsServerConfiguration(String name) {
-        JenkinsServerConfiguration[] configs = ao.find(
+        JenkinsServerConfiguration[] configs = find(
             JenkinsServerConfiguration.class,
             Query.select().where("NAME = ?", name));
         if (configs.length == 0) {
@@ -67,6 +78,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         for (JenkinsServerConfiguration jsc : configs) {
             ao.delete(jsc);
         }
+        configurationUpdated(null);
     }
 
     /* (non-Javadoc)
@@ -78,12 +90,12 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         if (name == null) {
             name = DEFAULT_JENKINS_SERVER_CONFIG_KEY;
         }
-        JenkinsServerConfiguration[] configs = ao.find(
+        JenkinsServerConfiguration[] configs = find(
             JenkinsServerConfiguration.class,
             Query.select().where("NAME = ?", name));
         if (configs.length == 0) {
             // just use the defaults
-            return ao.create(JenkinsServerConfiguration.class, new DBParam(
+            return create(JenkinsServerConfiguration.class, new DBParam(
                 "NAME", name));
         }
 
@@ -113,9 +125,11 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         Integer maxVerifyChain = Integer.parseInt(req.getParameter("maxVerifyChain"));
         String lockStr = req.getParameter("locked");
         Boolean isLocked = (lockStr == null || !lockStr.equals("on")) ? false : true;
+        String asyncStr = req.getParameter("asyncReporting");
+        Boolean isAsyncReporting = (asyncStr == null || !asyncStr.equals("on")) ? false : true;
 
         setJenkinsServerConfiguration(name, url, username, password, am, stashUsername, stashPassword, maxVerifyChain,
-            isLocked);
+            isLocked, isAsyncReporting);
     }
 
     /* (non-Javadoc)
@@ -138,22 +152,33 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         String username, String password, AuthenticationMode authenticationMode, String stashUsername,
         String stashPassword, Integer maxVerifyChain, Boolean isLocked)
         throws SQLException {
+        setJenkinsServerConfiguration(name, url, username, password, authenticationMode, stashUsername,
+            stashPassword, maxVerifyChain, isLocked, null);
+    }
+
+    @Override
+    public void setJenkinsServerConfiguration(String name, String url,
+        String username, String password, AuthenticationMode authenticationMode, String stashUsername,
+        String stashPassword, Integer maxVerifyChain, Boolean isLocked, Boolean asyncReporting)
+        throws SQLException {
         if (name == null) {
             name = DEFAULT_JENKINS_SERVER_CONFIG_KEY;
         }
         validateName(name);
-        JenkinsServerConfiguration[] configs = ao.find(
+        JenkinsServerConfiguration[] configs = find(
             JenkinsServerConfiguration.class,
             Query.select().where("NAME = ?", name));
 
         if (configs.length == 0) {
             log.info("Creating jenkins configuration: " + name);
-            ao.create(JenkinsServerConfiguration.class, new DBParam("NAME",
+            create(JenkinsServerConfiguration.class, new DBParam("NAME",
                 name), new DBParam("URL", url), new DBParam("USERNAME",
                 username), new DBParam("PASSWORD", password), new DBParam(
                 "STASH_USERNAME", stashUsername), new DBParam(
                 "STASH_PASSWORD", stashPassword), new DBParam(
-                "MAX_VERIFY_CHAIN", maxVerifyChain), new DBParam("LOCKED", isLocked));
+                "MAX_VERIFY_CHAIN", maxVerifyChain), new DBParam("LOCKED", isLocked),
+                new DBParam("ASYNC_REPORTING", asyncReporting != null && asyncReporting));
+            configurationUpdated(null);
             return;
         }
         // already exists, so update it
@@ -166,7 +191,11 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         configs[0].setStashPassword(stashPassword);
         configs[0].setMaxVerifyChain(maxVerifyChain);
         configs[0].setLocked(isLocked);
+        if (asyncReporting != null) {
+            configs[0].setAsyncReporting(asyncReporting);
+        }
         configs[0].save();
+        configurationUpdated(null);
     }
 
     /* (non-Javadoc)
@@ -175,12 +204,12 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
     @Override
     public RepositoryConfiguration getRepositoryConfigurationForRepository(
         Repository repo) throws SQLException {
-        RepositoryConfiguration[] repos = ao.find(
+        RepositoryConfiguration[] repos = find(
             RepositoryConfiguration.class,
             Query.select().where("REPO_ID = ?", repo.getId()));
         if (repos.length == 0) {
             // just use the defaults
-            RepositoryConfiguration rc = ao.create(
+            RepositoryConfiguration rc = create(
                 RepositoryConfiguration.class,
                 new DBParam("REPO_ID", repo.getId()));
             rc.save();
@@ -188,6 +217,8 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
             setJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT, true);
             setJobTypeStatusMapping(rc, JobType.VERIFY_PR, true);
             setJobTypeStatusMapping(rc, JobType.PUBLISH, true);
+            // and map the default jobs now, rather than checking on every lookup
+            jtm.createDefaultMappingsIfNeeded(rc);
             return rc;
         }
         return repos[0];
@@ -252,27 +283,64 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         setJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT, getBoolean(req, "verificationEnabled"));
         setJobTypeStatusMapping(rc, JobType.VERIFY_PR, getBoolean(req, "verifyPREnabled"));
         setJobTypeStatusMapping(rc, JobType.PUBLISH, getBoolean(req, "publishEnabled"));
+        rc.setSingleBuildComment(getBoolean(req, "isSingleBuildComment"));
+        rc.save();
+        configurationUpdated(repo.getId());
     }
 
     @Override
     public void setJobTypeStatusMapping(RepositoryConfiguration rc, JobType jt, Boolean isEnabled) {
         JobTypeStatusMapping[] mappings =
-            ao.find(JobTypeStatusMapping.class, "REPO_CONFIG_ID = ? and JOB_TYPE_RAW = ?", rc.getID(), jt.name());
+            find(JobTypeStatusMapping.class, "REPO_CONFIG_ID = ? and JOB_TYPE_RAW = ?", rc.getID(), jt.name());
         if (mappings.length == 0) {
-            ao.create(JobTypeStatusMapping.class,
+            create(JobTypeStatusMapping.class,
                 new DBParam("REPO_CONFIG_ID", rc.getID()),
                 new DBParam("JOB_TYPE_RAW", jt.name()),
                 new DBParam("IS_ENABLED", isEnabled)).save();
+            configurationUpdated(rc.getRepoId());
             return;
         }
         mappings[0].setIsEnabled(isEnabled);
         mappings[0].save();
+        configurationUpdated(rc.getRepoId());
+    }
+
+    private void configurationUpdated(Integer repoId) {
+        publisher.publish(new StashbotConfigurationUpdatedEvent(this, repoId));
+    }
+
+    @Override
+    public PullRequestBuildComment getPullRequestBuildComment(PullRequest pr, JobType jt) {
+        PullRequestBuildComment[] comments = find(PullRequestBuildComment.class,
+            "REPO_ID = ? and PULL_REQUEST_ID = ? and JOB_TYPE_RAW = ?",
+            pr.getToRef().getRepository().getId(), pr.getId(), jt.name());
+        if (comments.length == 0) {
+            return null;
+        }
+        return comments[0];
+    }
+
+    @Override
+    public void setPullRequestBuildComment(PullRequest pr, JobType jt, Long commentId, Integer version) {
+        PullRequestBuildComment prbc = getPullRequestBuildComment(pr, jt);
+        if (prbc == null) {
+            create(PullRequestBuildComment.class,
+                new DBParam("REPO_ID", pr.getToRef().getRepository().getId()),
+                new DBParam("PULL_REQUEST_ID", pr.getId()),
+                new DBParam("JOB_TYPE_RAW", jt.name()),
+                new DBParam("COMMENT_ID", commentId),
+                new DBParam("COMMENT_VERSION", version)).save();
+            return;
+        }
+        prbc.setCommentId(commentId);
+        prbc.setCommentVersion(version);
+        prbc.save();
     }
 
     @Override
     public Boolean getJobTypeStatusMapping(RepositoryConfiguration rc, JobType jt) {
         JobTypeStatusMapping[] mappings =
-            ao.find(JobTypeStatusMapping.class, "REPO_CONFIG_ID = ? and JOB_TYPE_RAW = ?", rc.getID(), jt.name());
+            find(JobTypeStatusMapping.class, "REPO_CONFIG_ID = ? and JOB_TYPE_RAW = ?", rc.getID(), jt.name());
         if (mappings.length == 0) {
             return false;
         }
@@ -311,13 +379,13 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
             jenkinsServerName = DEFAULT_JENKINS_SERVER_CONFIG_KEY;
         }
         validateNameExists(jenkinsServerName);
-        RepositoryConfiguration[] repos = ao.find(
+        RepositoryConfiguration[] repos = find(
             RepositoryConfiguration.class,
             Query.select().where("REPO_ID = ?", repo.getId()));
         if (repos.length == 0) {
             log.info("Creating repository configuration for id: "
                 + repo.getId().toString());
-            RepositoryConfiguration rc = ao.create(
+            RepositoryConfiguration rc = create(
                 RepositoryConfiguration.class,
                 new DBParam("REPO_ID", repo.getId()), new DBParam(
                     "CI_ENABLED", isCiEnabled), new DBParam(
@@ -352,6 +420,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
             setJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT, true);
             setJobTypeStatusMapping(rc, JobType.VERIFY_PR, true);
             setJobTypeStatusMapping(rc, JobType.PUBLISH, true);
+            configurationUpdated(repo.getId());
             return;
         }
         RepositoryConfiguration foundRepo = repos[0];
@@ -382,6 +451,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         foundRepo.setStrictVerifyMode(strictVerifyMode);
         foundRepo.setPreserveJenkinsJobConfig(preserveJenkinsJobConfig);
         foundRepo.save();
+        configurationUpdated(repo.getId());
     }
 
     /* (non-Javadoc)
@@ -390,8 +460,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
     @Override
     public ImmutableCollection<JenkinsServerConfiguration> getAllJenkinsServerConfigurations()
         throws SQLException {
-        JenkinsServerConfiguration[] allConfigs = ao
-            .find(JenkinsServerConfiguration.class);
+        JenkinsServerConfiguration[] allConfigs = find(JenkinsServerConfiguration.class);
         if (allConfigs.length == 0) {
             return ImmutableList.of(getJenkinsServerConfiguration(null));
         }
@@ -406,8 +475,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         throws SQLException {
         List<String> names = new ArrayList<String>();
 
-        JenkinsServerConfiguration[] allConfigs = ao
-            .find(JenkinsServerConfiguration.class);
+        JenkinsServerConfiguration[] allConfigs = find(JenkinsServerConfiguration.class);
         for (JenkinsServerConfiguration jsc : allConfigs) {
             names.add(jsc.getName());
         }
@@ -437,8 +505,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         if (name.equals(DEFAULT_JENKINS_SERVER_CONFIG_KEY)) {
             return;
         }
-        JenkinsServerConfiguration[] allConfigs = ao
-            .find(JenkinsServerConfiguration.class);
+        JenkinsServerConfiguration[] allConfigs = find(JenkinsServerConfiguration.class);
         for (JenkinsServerConfiguration jsc : allConfigs) {
             if (jsc.getName().equals(name)) {
                 return;
@@ -470,7 +537,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
     @Override
     public PullRequestMetadata getPullRequestMetadata(int repoId, Long prId, String fromSha, String toSha) {
         // We have to check repoId being equal to -1 so that this works with old data.
-        PullRequestMetadata[] prms = ao.find(PullRequestMetadata.class,
+        PullRequestMetadata[] prms = find(PullRequestMetadata.class,
             "(REPO_ID = ? OR REPO_ID = -1) AND PULL_REQUEST_ID = ? and TO_SHA = ? and FROM_SHA = ?", repoId, prId,
             toSha, fromSha);
         if (prms.length == 0) {
@@ -478,7 +545,7 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
             log.info("Creating PR Metadata for pull request: repo id:" + repoId
                 + "pr id: " + prId + ", fromSha: " + fromSha + ", toSha: " + toSha);
             PullRequestMetadata prm =
-                ao.create(
+                create(
                     PullRequestMetadata.class,
                     new DBParam("REPO_ID", repoId),
                     new DBParam("PULL_REQUEST_ID", prId),
@@ -500,14 +567,14 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         String fromSha = pr.getFromRef().getLatestChangeset().toString();
         String toSha = pr.getToRef().getLatestChangeset().toString();
 
-        PullRequestMetadata[] prms = ao.find(PullRequestMetadata.class,
+        PullRequestMetadata[] prms = find(PullRequestMetadata.class,
             "PULL_REQUEST_ID = ? and FROM_SHA = ?", id, fromSha);
         if (prms.length == 0) {
             // new/updated PR, create a new object
             log.info("Creating PR Metadata for pull request: "
                 + pullRequestToString(pr));
             PullRequestMetadata prm =
-                ao.create(
+                create(
                     PullRequestMetadata.class,
                     new DBParam("PULL_REQUEST_ID", id),
                     new DBParam("TO_SHA", toSha),
@@ -563,6 +630,44 @@ public class ConfigurationPersistenceImpl implements ConfigurationPersistenceSer
         }
 
         prm.save();
-        publisher.publish(new StashbotMetadataUpdatedEvent(this, pr));
+        publisher.publish(new StashbotMetadataUpdatedEvent(this, pr, prm));
+    }
+
+    // Timed wrappers around ActiveObjects, so we can see how long the database takes for each kind of entity
+
+    private <T extends RawEntity<K>, K> T[] find(Class<T> type) {
+        Timer.Context t = metrics.timer("ao.find." + type.getSimpleName()).time();
+        try {
+            return ao.find(type);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private <T extends RawEntity<K>, K> T[] find(Class<T> type, Query query) {
+        Timer.Context t = metrics.timer("ao.find." + type.getSimpleName()).time();
+        try {
+            return ao.find(type, query);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private <T extends RawEntity<K>, K> T[] find(Class<T> type, String criteria, Object... parameters) {
+        Timer.Context t = metrics.timer("ao.find." + type.getSimpleName()).time();
+        try {
+            return ao.find(type, criteria, parameters);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private <T extends RawEntity<K>, K> T create(Class<T> type, DBParam... params) {
+        Timer.Context t = metrics.timer("ao.create." + type.getSimpleName()).time();
+        try {
+            return ao.create(type, params);
+        } finally {
+            t.stop();
+        }
     }
 }
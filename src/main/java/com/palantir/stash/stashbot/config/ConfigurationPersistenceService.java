@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableList;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
+import com.palantir.stash.stashbot.persistence.PullRequestBuildComment;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
@@ -54,6 +55,14 @@ public interface ConfigurationPersistenceService {
         String stashPassword, Integer maxVerifyChain, Boolean isLocked)
         throws SQLException;
 
+    /**
+     * @param asyncReporting if null, left unchanged (false for new configurations)
+     */
+    public abstract void setJenkinsServerConfiguration(String name, String url,
+        String username, String password, AuthenticationMode authenticationMode, String stashUsername,
+        String stashPassword, Integer maxVerifyChain, Boolean isLocked, Boolean asyncReporting)
+        throws SQLException;
+
     public abstract RepositoryConfiguration getRepositoryConfigurationForRepository(
         Repository repo) throws SQLException;
 
@@ -105,6 +114,11 @@ public interface ConfigurationPersistenceService {
     public abstract void setPullRequestMetadata(PullRequest pr, String fromHash, String toHash, Boolean buildStarted,
         Boolean success, Boolean override, Boolean failed);
 
+    // The comment being kept up to date for builds of this job type on this PR, or null if there isn't one yet
+    public abstract PullRequestBuildComment getPullRequestBuildComment(PullRequest pr, JobType jt);
+
+    public abstract void setPullRequestBuildComment(PullRequest pr, JobType jt, Long commentId, Integer version);
+
     public abstract Boolean getJobTypeStatusMapping(RepositoryConfiguration rc, JobType jt);
 
     public abstract void setJobTypeStatusMapping(RepositoryConfiguration rc, JobType jt, Boolean isEnabled);
@@ -0,0 +1,91 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.config;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.event.api.EventListener;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
+import com.palantir.stash.stashbot.event.StashbotMetadataUpdatedEvent;
+
+/**
+ * Counts configuration and pull request metadata changes in memory so that endpoints which are polled a lot can
+ * cheaply tell whether anything they depend on has changed since the last poll.
+ * 
+ * Versions are only meaningful together with the start time, since the counters restart whenever the plugin does.
+ * Metadata versions are kept per repository rather than per pull request so that the map stays small.
+ */
+public class ConfigurationVersionTracker {
+
+    private final long startTime;
+    private final AtomicLong globalVersion;
+    private final ConcurrentMap<Integer, AtomicLong> configVersions;
+    private final ConcurrentMap<Integer, AtomicLong> metadataVersions;
+
+    public ConfigurationVersionTracker() {
+        this.startTime = System.currentTimeMillis();
+        this.globalVersion = new AtomicLong();
+        this.configVersions = new ConcurrentHashMap<Integer, AtomicLong>();
+        this.metadataVersions = new ConcurrentHashMap<Integer, AtomicLong>();
+    }
+
+    @EventListener
+    public void onConfigurationUpdated(StashbotConfigurationUpdatedEvent event) {
+        if (event.getRepositoryId() == null) {
+            globalVersion.incrementAndGet();
+            return;
+        }
+        bump(configVersions, event.getRepositoryId());
+    }
+
+    @EventListener
+    public void onMetadataUpdated(StashbotMetadataUpdatedEvent event) {
+        bump(metadataVersions, event.getPullRequest().getToRef().getRepository().getId());
+    }
+
+    /**
+     * @return a string which changes whenever the configuration of the given repository (or any jenkins server) does
+     */
+    public String getConfigurationVersion(int repoId) {
+        return Long.toString(startTime) + "." + Long.toString(globalVersion.get()) + "."
+            + Long.toString(get(configVersions, repoId));
+    }
+
+    /**
+     * @return a string which changes whenever the configuration of the given repository or the metadata of any of its
+     *         pull requests does
+     */
+    public String getMetadataVersion(int repoId) {
+        return getConfigurationVersion(repoId) + "." + Long.toString(get(metadataVersions, repoId));
+    }
+
+    private static long get(ConcurrentMap<Integer, AtomicLong> versions, int repoId) {
+        AtomicLong v = versions.get(repoId);
+        return v == null ? 0 : v.get();
+    }
+
+    private static void bump(ConcurrentMap<Integer, AtomicLong> versions, int repoId) {
+        AtomicLong v = versions.get(repoId);
+        if (v == null) {
+            AtomicLong created = new AtomicLong();
+            v = versions.putIfAbsent(repoId, created);
+            if (v == null) {
+                v = created;
+            }
+        }
+        v.incrementAndGet();
+    }
+}
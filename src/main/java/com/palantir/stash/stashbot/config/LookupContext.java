@@ -0,0 +1,118 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.config;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager.RepositoryJobs;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Memoizes configuration lookups for the duration of a single request or event, so code paths which need the same
+ * repository configuration, jenkins server configuration or job templates in several places only load each once.
+ * 
+ * Create one per request and pass it down; never store or share one between threads. Nothing is invalidated, so
+ * anything which changes configuration must not read it back through a context created before the change.
+ */
+public class LookupContext {
+
+    private final ConfigurationPersistenceService cpm;
+    private final JobTemplateManager jtm;
+
+    private final Map<Integer, RepositoryConfiguration> repositoryConfigurations =
+        new HashMap<Integer, RepositoryConfiguration>();
+    private final Map<String, JenkinsServerConfiguration> jenkinsServerConfigurations =
+        new HashMap<String, JenkinsServerConfiguration>();
+    private final Map<Integer, Map<JobType, Boolean>> jobTypeStatuses = new HashMap<Integer, Map<JobType, Boolean>>();
+    private final Map<Integer, RepositoryJobs> repositoryJobs = new HashMap<Integer, RepositoryJobs>();
+
+    /**
+     * @param jtm may be null if the job template lookups are never used
+     */
+    public LookupContext(ConfigurationPersistenceService cpm, JobTemplateManager jtm) {
+        this.cpm = cpm;
+        this.jtm = jtm;
+    }
+
+    /**
+     * Records an already loaded repository configuration so it will not be loaded again.
+     */
+    public LookupContext withRepositoryConfiguration(Repository repo, RepositoryConfiguration rc) {
+        repositoryConfigurations.put(repo.getId(), rc);
+        return this;
+    }
+
+    public RepositoryConfiguration getRepositoryConfiguration(Repository repo) throws SQLException {
+        RepositoryConfiguration rc = repositoryConfigurations.get(repo.getId());
+        if (rc == null) {
+            rc = cpm.getRepositoryConfigurationForRepository(repo);
+            repositoryConfigurations.put(repo.getId(), rc);
+        }
+        return rc;
+    }
+
+    public JenkinsServerConfiguration getJenkinsServerConfiguration(RepositoryConfiguration rc) throws SQLException {
+        String name = rc.getJenkinsServerName();
+        JenkinsServerConfiguration jsc = jenkinsServerConfigurations.get(name);
+        if (jsc == null) {
+            jsc = cpm.getJenkinsServerConfiguration(name);
+            jenkinsServerConfigurations.put(name, jsc);
+        }
+        return jsc;
+    }
+
+    public boolean getJobTypeStatusMapping(RepositoryConfiguration rc, JobType jt) {
+        Map<JobType, Boolean> statuses = jobTypeStatuses.get(rc.getID());
+        if (statuses == null) {
+            statuses = new EnumMap<JobType, Boolean>(JobType.class);
+            jobTypeStatuses.put(rc.getID(), statuses);
+        }
+        Boolean status = statuses.get(jt);
+        if (status == null) {
+            status = cpm.getJobTypeStatusMapping(rc, jt);
+            statuses.put(jt, status);
+        }
+        return status;
+    }
+
+    public ImmutableList<JobTemplate> getJenkinsJobsForRepository(RepositoryConfiguration rc) throws SQLException {
+        return getRepositoryJobs(rc).getTemplates();
+    }
+
+    public JobTemplate getJobTemplate(RepositoryConfiguration rc, JobType jobType) throws SQLException {
+        return getRepositoryJobs(rc).getJobTemplate(jobType);
+    }
+
+    public JobTemplate fromString(RepositoryConfiguration rc, String s) throws SQLException {
+        return getRepositoryJobs(rc).fromString(s);
+    }
+
+    private RepositoryJobs getRepositoryJobs(RepositoryConfiguration rc) throws SQLException {
+        RepositoryJobs jobs = repositoryJobs.get(rc.getID());
+        if (jobs == null) {
+            jobs = jtm.getRepositoryJobs(rc);
+            repositoryJobs.put(rc.getID(), jobs);
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.event;
+
+import javax.annotation.Nonnull;
+
+import com.atlassian.stash.event.StashEvent;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+
+/*
+ * Defines an event to describe a build being queued for, or sent to, jenkins
+ */
+public class StashbotBuildTriggeredEvent extends StashEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public static enum Phase {
+        QUEUED, DISPATCHED;
+    }
+
+    private final Phase phase;
+    private final int repositoryId;
+    private final JobType jobType;
+    private final String buildHead;
+    private final Long pullRequestId;
+
+    public StashbotBuildTriggeredEvent(@Nonnull Object source, Phase phase, int repositoryId, JobType jobType,
+        String buildHead, Long pullRequestId) {
+        super(source);
+        this.phase = phase;
+        this.repositoryId = repositoryId;
+        this.jobType = jobType;
+        this.buildHead = buildHead;
+        this.pullRequestId = pullRequestId;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public JobType getJobType() {
+        return jobType;
+    }
+
+    public String getBuildHead() {
+        return buildHead;
+    }
+
+    /**
+     * @return the pull request being built, or null for a commit build
+     */
+    public Long getPullRequestId() {
+        return pullRequestId;
+    }
+}
@@ -0,0 +1,41 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.event;
+
+import javax.annotation.Nonnull;
+
+import com.atlassian.stash.event.StashEvent;
+
+/*
+ * Defines an event to describe when stashbot configuration is updated, either for a single repository or (if there
+ * is no repository id) a jenkins server, which may affect any repository
+ */
+public class StashbotConfigurationUpdatedEvent extends StashEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Integer repositoryId;
+
+    public StashbotConfigurationUpdatedEvent(@Nonnull Object source, Integer repositoryId) {
+        super(source);
+        this.repositoryId = repositoryId;
+    }
+
+    /**
+     * @return the id of the repository whose configuration changed, or null if the change may affect all repositories
+     */
+    public Integer getRepositoryId() {
+        return repositoryId;
+    }
+}
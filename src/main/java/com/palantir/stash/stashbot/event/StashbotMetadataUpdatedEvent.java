@@ -18,6 +18,7 @@ import javax.annotation.Nonnull;
 import com.atlassian.stash.event.pull.PullRequestEvent;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestAction;
+import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 
 /*
  * Defines an event to describe when the stashbot metadata is updated
@@ -26,10 +27,55 @@ public class StashbotMetadataUpdatedEvent extends PullRequestEvent {
 
     private static final long serialVersionUID = 1L;
 
+    private final String fromSha;
+    private final String toSha;
+    private final Boolean buildStarted;
+    private final Boolean success;
+    private final Boolean failed;
+    private final Boolean override;
+
     // Documentation says that the constructor is turning protected, this is okay
     public StashbotMetadataUpdatedEvent(@Nonnull Object source,
         @Nonnull PullRequest pullRequest) {
+        this(source, pullRequest, null);
+    }
+
+    /**
+     * @param prm the metadata as it was saved, so listeners don't have to look it up again (may be null)
+     */
+    public StashbotMetadataUpdatedEvent(@Nonnull Object source,
+        @Nonnull PullRequest pullRequest, PullRequestMetadata prm) {
         super(source, pullRequest, PullRequestAction.UPDATED);
+        this.fromSha = prm == null ? null : prm.getFromSha();
+        this.toSha = prm == null ? null : prm.getToSha();
+        this.buildStarted = prm == null ? null : prm.getBuildStarted();
+        this.success = prm == null ? null : prm.getSuccess();
+        this.failed = prm == null ? null : prm.getFailed();
+        this.override = prm == null ? null : prm.getOverride();
+    }
+
+    public String getFromSha() {
+        return fromSha;
+    }
+
+    public String getToSha() {
+        return toSha;
+    }
+
+    public Boolean getBuildStarted() {
+        return buildStarted;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public Boolean getFailed() {
+        return failed;
+    }
+
+    public Boolean getOverride() {
+        return override;
     }
 
 }
@@ -0,0 +1,70 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.util.Collection;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.scm.CommandOutputHandler;
+import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
+import com.atlassian.stash.scm.git.GitScmCommandBuilder;
+import com.atlassian.stash.scm.git.revlist.GitRevListBuilder;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
+
+/**
+ * GitRevisionReader which forks a git process for each call and parses its output.
+ */
+public class CliGitRevisionReader implements GitRevisionReader {
+
+    private final GitCommandBuilderFactory gcbf;
+    private final CommandOutputHandlerFactory cohf;
+
+    public CliGitRevisionReader(GitCommandBuilderFactory gcbf, CommandOutputHandlerFactory cohf) {
+        this.gcbf = gcbf;
+        this.cohf = cohf;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public ImmutableList<String> getBranches(Repository repo) {
+        GitScmCommandBuilder gcb = gcbf.builder(repo).command("branch");
+        CommandOutputHandler<Object> gboh = cohf.getBranchContainsOutputHandler();
+        gcb.build(gboh).call();
+        return (ImmutableList<String>) gboh.getOutput();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+        Collection<String> minusRevs, int limit) {
+        GitScmCommandBuilder gscb = gcbf.builder(repo);
+        GitRevListBuilder grlb = gscb.revList();
+        for (String mb : minusRevs) {
+            grlb.revs("^" + mb);
+        }
+        for (String pb : plusRevs) {
+            grlb.revs(pb);
+        }
+        if (limit != 0) {
+            grlb.limit(limit);
+        }
+
+        CommandOutputHandler<Object> rloh = cohf.getRevlistOutputHandler();
+        grlb.build(rloh).call();
+
+        // output handler already reverses into old-to-new order
+        return (ImmutableList<String>) rloh.getOutput();
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.util.Collection;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
+
+/**
+ * GitRevisionReader used by the plugin. Delegates to the CLI backend unless the in-process backend is enabled by
+ * setting the system property {@value #INPROCESS_PROPERTY} to "true", in which case the CLI backend is only used as a
+ * fallback if JGit fails.
+ */
+public class ConfigurableGitRevisionReader implements GitRevisionReader {
+
+    public static final String INPROCESS_PROPERTY = "stashbot.git.inprocess";
+
+    private final GitRevisionReader cli;
+    private final GitRevisionReader jgit;
+    private final Logger log;
+
+    public ConfigurableGitRevisionReader(GitCommandBuilderFactory gcbf, CommandOutputHandlerFactory cohf,
+        ApplicationPropertiesService aps, PluginLoggerFactory lf) {
+        this(new CliGitRevisionReader(gcbf, cohf),
+            Boolean.getBoolean(INPROCESS_PROPERTY) ? new JGitRevisionReader(aps) : null, lf);
+    }
+
+    // for testing
+    ConfigurableGitRevisionReader(GitRevisionReader cli, GitRevisionReader jgit, PluginLoggerFactory lf) {
+        this.log = lf.getLoggerForThis(this);
+        this.cli = cli;
+        this.jgit = jgit;
+        if (jgit != null) {
+            log.info("Using in-process git backend");
+        }
+    }
+
+    @Override
+    public ImmutableList<String> getBranches(Repository repo) {
+        if (jgit != null) {
+            try {
+                return jgit.getBranches(repo);
+            } catch (RuntimeException e) {
+                log.warn("In-process branch listing failed for repo " + repo.toString() + ", falling back to git", e);
+            }
+        }
+        return cli.getBranches(repo);
+    }
+
+    @Override
+    public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+        Collection<String> minusRevs, int limit) {
+        if (jgit != null) {
+            try {
+                return jgit.getChangesets(repo, plusRevs, minusRevs, limit);
+            } catch (RuntimeException e) {
+                log.warn("In-process rev-list failed for repo " + repo.toString() + ", falling back to git", e);
+            }
+        }
+        return cli.getChangesets(repo, plusRevs, minusRevs, limit);
+    }
+}
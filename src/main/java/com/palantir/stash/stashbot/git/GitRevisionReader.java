@@ -0,0 +1,45 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.util.Collection;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Reads refs and walks the commit graph of a repository.
+ * 
+ * Implementations may shell out to git or read the object database in-process, but must return identical results so
+ * they can be swapped without callers noticing.
+ */
+public interface GitRevisionReader {
+
+    /**
+     * @return ImmutableList of all branches in the repository in the form "refs/heads/foo"
+     */
+    public ImmutableList<String> getBranches(Repository repo);
+
+    /**
+     * Equivalent to "git rev-list [--max-count=limit] plus... ^minus...".
+     * 
+     * @param plusRevs revisions whose history should be included
+     * @param minusRevs revisions (or branch names) whose history should be excluded
+     * @param limit maximum number of commits to return, or 0 for no limit. When limited, the newest commits are kept.
+     * @return ImmutableList of sha1s in old-to-new order
+     * @throws RuntimeException if any of the revisions, included or excluded, does not exist
+     */
+    public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+        Collection<String> minusRevs, int limit);
+}
@@ -0,0 +1,115 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.FS;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * GitRevisionReader which reads refs and walks history directly out of the repository on disk using JGit, so no git
+ * process needs to be forked.
+ */
+public class JGitRevisionReader implements GitRevisionReader {
+
+    private final ApplicationPropertiesService aps;
+
+    public JGitRevisionReader(ApplicationPropertiesService aps) {
+        this.aps = aps;
+    }
+
+    @Override
+    public ImmutableList<String> getBranches(Repository repo) {
+        org.eclipse.jgit.lib.Repository db = open(repo);
+        try {
+            ImmutableList.Builder<String> branches = ImmutableList.builder();
+            for (String name : db.getRefDatabase().getRefs(Constants.R_HEADS).keySet()) {
+                branches.add(Constants.R_HEADS + name);
+            }
+            return branches.build();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read branches for repo " + repo.toString(), e);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public ImmutableList<String> getChangesets(Repository repo, Collection<String> plusRevs,
+        Collection<String> minusRevs, int limit) {
+        org.eclipse.jgit.lib.Repository db = open(repo);
+        RevWalk rw = new RevWalk(db);
+        try {
+            for (String pb : plusRevs) {
+                rw.markStart(resolve(db, rw, pb));
+            }
+            for (String mb : minusRevs) {
+                rw.markUninteresting(resolve(db, rw, mb));
+            }
+
+            // RevWalk yields newest first, same as rev-list
+            ArrayList<String> changesets = new ArrayList<String>();
+            for (RevCommit c : rw) {
+                changesets.add(c.getName());
+                if (limit != 0 && changesets.size() >= limit) {
+                    break;
+                }
+            }
+            return ImmutableList.copyOf(changesets).reverse();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to walk revisions for repo " + repo.toString(), e);
+        } finally {
+            rw.release();
+            db.close();
+        }
+    }
+
+    /**
+     * git rev-list fails on a revision it can't find, whichever side of the walk it is on, so do the same.
+     */
+    private static RevCommit resolve(org.eclipse.jgit.lib.Repository db, RevWalk rw, String rev) throws IOException {
+        ObjectId id = db.resolve(rev);
+        if (id == null) {
+            throw new IllegalArgumentException("Unable to resolve revision " + rev);
+        }
+        try {
+            return rw.parseCommit(id);
+        } catch (MissingObjectException e) {
+            throw new IllegalArgumentException("Unable to resolve revision " + rev, e);
+        }
+    }
+
+    private org.eclipse.jgit.lib.Repository open(Repository repo) {
+        File dir = aps.getRepositoryDir(repo);
+        try {
+            return RepositoryCache.open(FileKey.exact(dir, FS.DETECTED), true);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open repository at " + dir.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+
+/**
+ * Remembers, per repository, the set of commits already reachable from a verify branch, so that new commits introduced
+ * by a push can be found by walking only the pushed ranges (e.g. "to ^from") instead of excluding every verify branch
+ * in the rev-list.
+ * 
+ * The set is only useful if it is complete, so a repository is "cold" until it has been seeded with the full history of
+ * its verify branches. That walk can take a long time on large repositories, so it is done on a single background
+ * thread and callers use the full rev-list until it finishes. A repository is seeded at most once per
+ * {@link #SEED_INTERVAL_MILLIS}, so one which keeps being evicted or invalidated doesn't keep being walked.
+ * 
+ * Anything that may move a verify branch without going through the post-receive hook (e.g. a pull request merge), or
+ * that removes commits from a verify branch (a branch delete or a force push), must invalidate the repository, which
+ * also discards any seed still in progress. A repository whose configuration changes is forgotten entirely, since its
+ * verify branch regex may now match different branches. Commits are stored as the first 64 bits of their sha1 to keep
+ * the footprint to roughly 16 bytes per commit.
+ */
+public class ReachabilityCache implements DisposableBean {
+
+    // number of repositories to keep, least recently used are evicted
+    public static final int MAX_REPOSITORIES = 64;
+    // repositories with more commits than this on their verify branches are never cached
+    public static final int MAX_COMMITS_PER_REPOSITORY = 2000000;
+    // minimum time between two seeds of the same repository
+    public static final long SEED_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // marks repositories which are too large to cache, so we don't keep trying to seed them
+    private static final LongSet TOO_LARGE = new LongSet(0);
+
+    private final GitRevisionReader grr;
+    private final ExecutorService seeder;
+    private final long seedIntervalMillis;
+    private final Logger log;
+    private final Map<Integer, LongSet> repos;
+    // seeds in progress, by repository. invalidate() removes the entry so the result of the seed is thrown away.
+    private final Map<Integer, Object> seeding;
+    // when each repository was last seeded, kept for a few times as many repositories as we cache
+    private final Map<Integer, Long> lastSeeded;
+
+    public ReachabilityCache(GitRevisionReader grr, PluginLoggerFactory lf) {
+        this(grr, Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stashbot-reachability-seeder");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        }), SEED_INTERVAL_MILLIS, lf);
+    }
+
+    // This is for testing/mocking
+    public ReachabilityCache(GitRevisionReader grr, ExecutorService seeder, long seedIntervalMillis,
+        PluginLoggerFactory lf) {
+        this.grr = grr;
+        this.seeder = seeder;
+        this.seedIntervalMillis = seedIntervalMillis;
+        this.log = lf.getLoggerForThis(this);
+        this.repos = new LinkedHashMap<Integer, LongSet>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, LongSet> eldest) {
+                return size() > MAX_REPOSITORIES;
+            }
+        };
+        this.seeding = new HashMap<Integer, Object>();
+        this.lastSeeded = new LinkedHashMap<Integer, Long>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+                return size() > MAX_REPOSITORIES * 16;
+            }
+        };
+    }
+
+    /**
+     * @return true if the repository has a complete set of verified commits and can use the incremental path
+     */
+    public synchronized boolean isWarm(Repository repo) {
+        LongSet seen = repos.get(repo.getId());
+        return seen != null && seen != TOO_LARGE;
+    }
+
+    /**
+     * @return true if the repository is warm or being seeded, in which case anything that removes commits from a verify
+     *         branch must be reported with {@link #invalidate(Repository)}
+     */
+    public synchronized boolean isTracked(Repository repo) {
+        return isWarm(repo) || seeding.containsKey(repo.getId());
+    }
+
+    /**
+     * Seeds the repository in the background by walking the given verify branches, unless it is already warm, known to
+     * be too large, being seeded, or was seeded less than the seed interval ago.
+     */
+    public void requestSeed(final Repository repo, final Collection<String> verifyBranches) {
+        final Integer id = repo.getId();
+        final Object token = new Object();
+        synchronized (this) {
+            if (repos.containsKey(id) || seeding.containsKey(id)) {
+                return;
+            }
+            Long last = lastSeeded.get(id);
+            long now = System.currentTimeMillis();
+            if (last != null && now - last < seedIntervalMillis) {
+                return;
+            }
+            lastSeeded.put(id, now);
+            seeding.put(id, token);
+        }
+        final ImmutableList<String> branches = ImmutableList.copyOf(verifyBranches);
+        seeder.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    ImmutableList<String> reachable = ImmutableList.of();
+                    if (!branches.isEmpty()) {
+                        reachable = grr.getChangesets(repo, branches, ImmutableList.<String> of(),
+                            MAX_COMMITS_PER_REPOSITORY + 1);
+                    }
+                    install(repo, token, build(repo, reachable));
+                } catch (RuntimeException e) {
+                    log.warn("Unable to seed reachability cache for repo " + repo.toString(), e);
+                    synchronized (ReachabilityCache.this) {
+                        if (seeding.get(id) == token) {
+                            seeding.remove(id);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces whatever is known about the repository with the given commits, which must be every commit reachable from
+     * any verify branch. If there are more than {@link #MAX_COMMITS_PER_REPOSITORY} the repository is left cold.
+     */
+    public void seed(Repository repo, Collection<String> commits) {
+        LongSet seen = build(repo, commits);
+        synchronized (this) {
+            seeding.remove(repo.getId());
+            repos.put(repo.getId(), seen);
+        }
+    }
+
+    /**
+     * Records the given commits as reachable from a verify branch and returns those which were not already known,
+     * preserving order.
+     * 
+     * @return the unseen commits, or null if the repository is not (or no longer) warm
+     */
+    public ImmutableList<String> recordNew(Repository repo, List<String> commits) {
+        LongSet seen;
+        synchronized (this) {
+            seen = repos.get(repo.getId());
+        }
+        if (seen == null || seen == TOO_LARGE) {
+            return null;
+        }
+        List<String> unseen = new ArrayList<String>();
+        synchronized (seen) {
+            for (String c : commits) {
+                if (seen.add(toKey(c))) {
+                    unseen.add(c);
+                }
+            }
+            if (seen.size() > MAX_COMMITS_PER_REPOSITORY) {
+                synchronized (this) {
+                    repos.put(repo.getId(), TOO_LARGE);
+                }
+            }
+        }
+        return ImmutableList.copyOf(unseen);
+    }
+
+    /**
+     * Forgets the verified commits of a repository and discards any seed in progress, it will need to be seeded again
+     * before the incremental path can be used.
+     */
+    public synchronized void invalidate(Repository repo) {
+        seeding.remove(repo.getId());
+        if (repos.get(repo.getId()) != TOO_LARGE) {
+            repos.remove(repo.getId());
+        }
+    }
+
+    /**
+     * Forgets everything known about a repository whose configuration changed, including whether it was too large and
+     * when it was last seeded, so it is seeded again with whatever its verify branches are now.
+     */
+    @EventListener
+    public synchronized void onConfigurationUpdated(StashbotConfigurationUpdatedEvent event) {
+        // server changes don't affect which branches are verify branches
+        if (event.getRepositoryId() == null) {
+            return;
+        }
+        seeding.remove(event.getRepositoryId());
+        repos.remove(event.getRepositoryId());
+        lastSeeded.remove(event.getRepositoryId());
+    }
+
+    @Override
+    public void destroy() {
+        seeder.shutdownNow();
+    }
+
+    private LongSet build(Repository repo, Collection<String> commits) {
+        if (commits.size() > MAX_COMMITS_PER_REPOSITORY) {
+            log.debug("Not caching reachability for repo " + repo.toString() + ", too many commits");
+            return TOO_LARGE;
+        }
+        LongSet seen = new LongSet(commits.size());
+        for (String c : commits) {
+            seen.add(toKey(c));
+        }
+        return seen;
+    }
+
+    private synchronized void install(Repository repo, Object token, LongSet seen) {
+        if (seeding.get(repo.getId()) != token) {
+            // invalidated while we were walking, so what we found may include commits which are no longer reachable
+            log.debug("Discarding stale seed of reachability cache for repo " + repo.toString());
+            return;
+        }
+        seeding.remove(repo.getId());
+        repos.put(repo.getId(), seen);
+        if (seen != TOO_LARGE) {
+            log.debug("Seeded reachability cache for repo " + repo.toString() + " with " + seen.size() + " commits");
+        }
+    }
+
+    private static long toKey(String sha1) {
+        // parse as unsigned, Long.parseLong() overflows on the upper half
+        return (Long.parseLong(sha1.substring(0, 8), 16) << 32) | Long.parseLong(sha1.substring(8, 16), 16);
+    }
+
+    /**
+     * Minimal open addressing hash set of longs, to avoid boxing millions of keys.
+     */
+    private static class LongSet {
+
+        private static final long EMPTY = 0L;
+
+        private long[] table;
+        private int size;
+        private boolean containsEmpty;
+
+        LongSet(int expected) {
+            int cap = 16;
+            while (cap < expected * 2) {
+                cap <<= 1;
+            }
+            table = new long[cap];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean add(long key) {
+            if (key == EMPTY) {
+                if (containsEmpty) {
+                    return false;
+                }
+                containsEmpty = true;
+                size++;
+                return true;
+            }
+            if ((size + 1) * 2 > table.length) {
+                resize();
+            }
+            if (!insert(table, key)) {
+                return false;
+            }
+            size++;
+            return true;
+        }
+
+        private void resize() {
+            long[] bigger = new long[table.length * 2];
+            for (long k : table) {
+                if (k != EMPTY) {
+                    insert(bigger, k);
+                }
+            }
+            table = bigger;
+        }
+
+        private static boolean insert(long[] t, long key) {
+            int mask = t.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (t[i] != EMPTY) {
+                if (t[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            t[i] = key;
+            return true;
+        }
+    }
+}
@@ -35,6 +35,8 @@ import com.atlassian.stash.util.PageRequestImpl;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.metrics.Timer;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
@@ -76,11 +78,13 @@ public class PullRequestBuildSuccessMergeCheck implements MergeRequestCheck {
     private final CommitService cs;
     private final BuildStatusService bss;
     private final ConfigurationPersistenceService cpm;
+    private final MetricsRegistry metrics;
     private final Logger log;
 
-    public PullRequestBuildSuccessMergeCheck(
-        CommitService cs, BuildStatusService bss, ConfigurationPersistenceService cpm, PluginLoggerFactory lf) {
+    public PullRequestBuildSuccessMergeCheck(CommitService cs, BuildStatusService bss,
+        ConfigurationPersistenceService cpm, MetricsRegistry metrics, PluginLoggerFactory lf) {
         this.cpm = cpm;
+        this.metrics = metrics;
         this.log = lf.getLoggerForThis(this);
         this.cs = cs;
         this.bss = bss;
@@ -88,6 +92,16 @@ public class PullRequestBuildSuccessMergeCheck implements MergeRequestCheck {
 
     @Override
     public void check(@Nonnull MergeRequest mr) {
+        // stash runs this every time the PR page is viewed, so it had better be quick
+        Timer.Context t = metrics.timer("mergeCheck").time();
+        try {
+            doCheck(mr);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private void doCheck(MergeRequest mr) {
         PullRequest pr = mr.getPullRequest();
         Repository repo = pr.getToRef().getRepository();
 
@@ -27,8 +27,11 @@ import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.repository.Repository;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Span;
+import com.palantir.stash.stashbot.logger.Tracer;
 import com.palantir.stash.stashbot.managers.JenkinsManager;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
@@ -48,12 +51,16 @@ public class PullRequestListener {
 
     private final ConfigurationPersistenceService cpm;
     private final JenkinsManager jenkinsManager;
+    private final ReachabilityCache reachabilityCache;
+    private final Tracer tracer;
     private final Logger log;
 
     public PullRequestListener(ConfigurationPersistenceService cpm,
-        JenkinsManager jenkinsManager, PluginLoggerFactory lf) {
+        JenkinsManager jenkinsManager, ReachabilityCache reachabilityCache, Tracer tracer, PluginLoggerFactory lf) {
         this.cpm = cpm;
         this.jenkinsManager = jenkinsManager;
+        this.reachabilityCache = reachabilityCache;
+        this.tracer = tracer;
         this.log = lf.getLoggerForThis(this);
     }
 
@@ -64,43 +71,45 @@ public class PullRequestListener {
 
     @EventListener
     public void listenForComments(PullRequestCommentEvent event) {
+        final PullRequest pr = event.getPullRequest();
+        final Repository repo = pr.getToRef().getRepository();
+        Span span = tracer.start("pr.comment", repo).tag("pr", pr.getId());
         try {
-            final PullRequest pr = event.getPullRequest();
-            final Repository repo = pr.getToRef().getRepository();
-            final RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(repo);
+            final RepositoryConfiguration rc = getRepositoryConfiguration(repo, span);
 
             if (!rc.getCiEnabled()) {
-                log.debug("Pull Request " + pr.toString()
-                    + " ignored, CI not enabled for target repo "
-                    + repo.toString());
+                log.debug("Pull Request {} ignored, CI not enabled for target repo {}", pr, repo);
                 return;
             }
 
             Comment c = event.getComment();
             if (c.getText().contains(OVERRIDE_STRING)) {
-                log.debug("Pull Request override set to true for PR "
-                    + pr.toString());
+                log.debug("Pull Request override set to true for PR {}", pr);
+                span.tag("override", true);
                 cpm.setPullRequestMetadata(pr, null, null, true);
             }
         } catch (SQLException e) {
             log.error("Error getting repository configuration", e);
+        } finally {
+            span.end();
         }
     }
 
     // This event signifies that the PR has already been merged, we don't need to worry about VERIFY_PR anymore, only VERIFY_COMMIT or PUBLISH.
     @EventListener
     public void listenForMerged(PullRequestMergedEvent event) {
+        final PullRequest pr = event.getPullRequest();
+        final Repository repo = pr.getToRef().getRepository();
+        Span span = tracer.start("pr.merged", repo).tag("pr", pr.getId());
         try {
-            final PullRequest pr = event.getPullRequest();
-            final Repository repo = pr.getToRef().getRepository();
-            final RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(repo);
+            // the merge moved the target branch without running the post-receive hook, so the hook's idea of which
+            // commits are already on verify branches is now out of date
+            reachabilityCache.invalidate(repo);
+
+            final RepositoryConfiguration rc = getRepositoryConfiguration(repo, span);
 
             if (!rc.getCiEnabled()) {
-                log.debug("Pull Request " + pr.toString()
-                    + " ignored, CI not enabled for target repo "
-                    + repo.toString());
+                log.debug("Pull Request {} ignored, CI not enabled for target repo {}", pr, repo);
                 return;
             }
             // just trigger a build of the new commit since the other hook doesn't catch merged PRs.
@@ -109,19 +118,21 @@ public class PullRequestListener {
             boolean publishEnabled = cpm.getJobTypeStatusMapping(rc, JobType.PUBLISH);
             boolean verifyEnabled = cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT);
             if (publishEnabled && targetBranch.matches(rc.getPublishBranchRegex())) {
-                log.info("Stashbot Trigger: Triggering PUBLISH build for commit "
-                    + mergeSha1 + " after merge of branch " + targetBranch);
-                jenkinsManager.triggerBuild(repo, JobType.PUBLISH, mergeSha1, targetBranch);
+                log.info("Stashbot Trigger: Triggering PUBLISH build for commit {} after merge of branch {}",
+                    mergeSha1, targetBranch);
+                dispatch(span, repo, JobType.PUBLISH, mergeSha1, targetBranch);
             } else if (verifyEnabled && targetBranch.matches(rc.getVerifyBranchRegex())) {
                 // TODO: Build any commits which are new, for now just build latest commit
                 // Do this by doing a revwalk just like in TriggerJenkinsBuildHook, excluding the build we just published.
-                log.info("Stashbot Trigger: Triggering VERIFICATION build for commit "
-                    + mergeSha1 + " after merge of branch " + targetBranch);
-                jenkinsManager.triggerBuild(repo, JobType.VERIFY_COMMIT, mergeSha1, targetBranch);
+                log.info("Stashbot Trigger: Triggering VERIFICATION build for commit {} after merge of branch {}",
+                    mergeSha1, targetBranch);
+                dispatch(span, repo, JobType.VERIFY_COMMIT, mergeSha1, targetBranch);
             }
             return;
         } catch (SQLException e) {
             log.error("Error getting repository configuration", e);
+        } finally {
+            span.end();
         }
     }
 
@@ -131,39 +142,40 @@ public class PullRequestListener {
     }
 
     public void updatePr(PullRequest pr) {
+        final Repository repo = pr.getToRef().getRepository();
+        Span span = tracer.start("pr.update", repo).tag("pr", pr.getId());
         try {
-            final Repository repo = pr.getToRef().getRepository();
-            final RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(repo);
+            final RepositoryConfiguration rc = getRepositoryConfiguration(repo, span);
 
             if (!rc.getCiEnabled()) {
-                log.debug("Pull Request " + pr.toString()
-                    + " ignored, CI not enabled for target repo "
-                    + repo.toString());
+                log.debug("Pull Request {} ignored, CI not enabled for target repo {}", pr, repo);
                 return;
             }
             if (!cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_PR)) {
-                log.debug("Pull Request " + pr.toString()
-                    + " ignored, PR builds not enabled for target repo "
-                    + repo.toString());
+                log.debug("Pull Request {} ignored, PR builds not enabled for target repo {}", pr, repo);
                 return;
             }
 
             // Ensure target branch is a verified branch
             if (!pr.getToRef().getId().matches(rc.getVerifyBranchRegex())) {
-                log.debug("Pull Request " + pr.toString() + " ignored, branch "
-                    + pr.getToRef().getId() + " doesn't match verify regex");
+                log.debug("Pull Request {} ignored, branch {} doesn't match verify regex", pr, pr.getToRef().getId());
                 return;
             }
 
-            PullRequestMetadata prm = cpm.getPullRequestMetadata(pr);
+            Span phase = span.child("metadata");
+            PullRequestMetadata prm;
+            try {
+                prm = cpm.getPullRequestMetadata(pr);
+            } finally {
+                phase.end();
+            }
             if (rc.getRebuildOnTargetUpdate()) {
                 // If we have built this combination of PR, mergeHash then we're
                 // done
                 if (prm.getBuildStarted()) {
-                    log.debug("Verification build already triggered for PR "
-                        + pr.toString() + ", fromSha " + prm.getFromSha()
-                        + " toSha " + prm.getToSha());
+                    log.debug("Verification build already triggered for PR {}, fromSha {} toSha {}",
+                        new Object[] { pr, prm.getFromSha(), prm.getToSha() });
+                    span.tag("alreadyBuilt", true);
                     return;
                 }
             } else {
@@ -185,11 +197,15 @@ public class PullRequestListener {
 
             // At this point, we know a build hasn't been triggered yet, so
             // trigger it
-            log.info("Stashbot Trigger: Triggering VERIFY_PR build for PR " + pr.toString()
-                + ", fromSha " + prm.getFromSha() + " toSha "
-                + prm.getToSha());
-
-            jenkinsManager.triggerBuild(repo, JobType.VERIFY_PR, pr);
+            log.info("Stashbot Trigger: Triggering VERIFY_PR build for PR {}, fromSha {} toSha {}",
+                new Object[] { pr, prm.getFromSha(), prm.getToSha() });
+
+            phase = span.child("dispatch");
+            try {
+                jenkinsManager.triggerBuild(repo, JobType.VERIFY_PR, pr);
+            } finally {
+                phase.end();
+            }
 
             // note that we have successfully started the build
             // Since we don't hit this code in the case of exception, you can
@@ -198,6 +214,26 @@ public class PullRequestListener {
             cpm.setPullRequestMetadata(pr, true, null, null);
         } catch (SQLException e) {
             log.error("Error getting repository configuration", e);
+        } finally {
+            span.end();
+        }
+    }
+
+    private RepositoryConfiguration getRepositoryConfiguration(Repository repo, Span span) throws SQLException {
+        Span phase = span.child("config");
+        try {
+            return cpm.getRepositoryConfigurationForRepository(repo);
+        } finally {
+            phase.end();
+        }
+    }
+
+    private void dispatch(Span span, Repository repo, JobType jobType, String sha, String ref) {
+        Span phase = span.child("dispatch").tag("jobType", jobType).tag("sha", sha);
+        try {
+            jenkinsManager.triggerBuild(repo, jobType, sha, ref);
+        } finally {
+            phase.end();
         }
     }
 }
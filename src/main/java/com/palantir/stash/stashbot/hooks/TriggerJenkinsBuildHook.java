@@ -27,18 +27,19 @@ import com.atlassian.stash.hook.PostReceiveHook;
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.RefChangeType;
 import com.atlassian.stash.repository.Repository;
-import com.atlassian.stash.scm.CommandOutputHandler;
-import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
-import com.atlassian.stash.scm.git.GitScmCommandBuilder;
-import com.atlassian.stash.scm.git.revlist.GitRevListBuilder;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Span;
+import com.palantir.stash.stashbot.logger.Tracer;
 import com.palantir.stash.stashbot.managers.JenkinsManager;
-import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
@@ -52,65 +53,82 @@ import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
  */
 public class TriggerJenkinsBuildHook implements PostReceiveHook {
 
+    // most commits a push may introduce and still use the reachability cache, larger pushes fall back to the full
+    // rev-list and leave the repository to be seeded again
+    public static final int MAX_INCREMENTAL_COMMITS = 10000;
+
     private final ConfigurationPersistenceService cpm;
     private final JenkinsManager jenkinsManager;
-    private final GitCommandBuilderFactory gcbf;
-    private final CommandOutputHandlerFactory cohf;
+    private final GitRevisionReader grr;
+    private final ReachabilityCache reachabilityCache;
+    private final MetricsRegistry metrics;
+    private final Tracer tracer;
+    private final int maxIncrementalCommits;
     private final Logger log;
 
     public TriggerJenkinsBuildHook(ConfigurationPersistenceService cpm, JenkinsManager jenkinsManager,
-        GitCommandBuilderFactory gcbf, CommandOutputHandlerFactory cohf, PluginLoggerFactory lf) {
+        GitRevisionReader grr, ReachabilityCache reachabilityCache, MetricsRegistry metrics, Tracer tracer,
+        PluginLoggerFactory lf) {
+        this(cpm, jenkinsManager, grr, reachabilityCache, metrics, tracer, MAX_INCREMENTAL_COMMITS, lf);
+    }
+
+    // for testing
+    TriggerJenkinsBuildHook(ConfigurationPersistenceService cpm, JenkinsManager jenkinsManager, GitRevisionReader grr,
+        ReachabilityCache reachabilityCache, MetricsRegistry metrics, Tracer tracer, int maxIncrementalCommits,
+        PluginLoggerFactory lf) {
         this.cpm = cpm;
         this.jenkinsManager = jenkinsManager;
-        this.gcbf = gcbf;
-        this.cohf = cohf;
+        this.grr = grr;
+        this.reachabilityCache = reachabilityCache;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.maxIncrementalCommits = maxIncrementalCommits;
         this.log = lf.getLoggerForThis(this);
     }
 
     @Override
     public void onReceive(@Nonnull Repository repo, @Nonnull Collection<RefChange> changes,
         @Nonnull HookResponse response) {
+        // this runs while the pusher waits, so time it as a whole as well as each phase
+        Span span = tracer.start("hook.onReceive", repo, metrics.timer("hook.onReceive.total"));
+        span.tag("refChanges", changes.size());
+        try {
+            receive(repo, changes, span);
+        } finally {
+            span.end();
+        }
+    }
+
+    private void receive(Repository repo, Collection<RefChange> changes, Span span) {
+        final LookupContext lc = new LookupContext(cpm, null);
         final RepositoryConfiguration rc;
+        Span phase = span.child("config", metrics.timer("hook.onReceive.config"));
         try {
-            rc = cpm.getRepositoryConfigurationForRepository(repo);
+            rc = lc.getRepositoryConfiguration(repo);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to get repositoryConfiguration for repo " + repo.toString());
+        } finally {
+            phase.end();
         }
 
         if (!rc.getCiEnabled()) {
-            log.debug("CI disabled for repo " + repo.getName());
+            log.debug("CI disabled for repo {}", repo.getName());
+            span.tag("ciEnabled", false);
             return;
         }
 
         Set<String> publishBuilds = new HashSet<String>();
 
         // First trigger all publish builds (if they are enabled)
-        if (cpm.getJobTypeStatusMapping(rc, JobType.PUBLISH)) {
-            for (RefChange refChange : changes) {
-                if (!refChange.getRefId().matches(rc.getPublishBranchRegex())) {
-                    continue;
-                }
-
-                // deletes have a tohash of "0000000000000000000000000000000000000000"
-                // but it seems more reliable to use RefChangeType
-                if (refChange.getType().equals(RefChangeType.DELETE)) {
-                    log.debug("Detected delete, not triggering a build for this change");
-                    continue;
-                }
-
-                // if matches publication regex, no verify build needed for that hash
-                // Only perform publish builds of the "to ref", not commits between
-                // I.E. if you have A-B-C and you push -D-E-F, a verify build of D and E might be triggered, but F would be
-                // published and not verified, if the ref matches both build and verify.
-                log.info("Stashbot Trigger: Triggering PUBLISH build for commit " + refChange.getToHash());
-                // trigger a publication build
-                jenkinsManager.triggerBuild(repo, JobType.PUBLISH, refChange.getToHash(), refChange.getRefId());
-                publishBuilds.add(refChange.getToHash());
-            }
+        phase = span.child("publish", metrics.timer("hook.onReceive.publish"));
+        try {
+            triggerPublishBuilds(repo, changes, lc, rc, publishBuilds, phase);
+        } finally {
+            phase.end();
         }
 
         // Nothing to do if VERIFY_COMMIT not enabled
-        if (!cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT)) {
+        if (!lc.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT)) {
             return;
         }
         // Calculate the sum of all new commits introduced by this change
@@ -118,17 +136,21 @@ public class TriggerJenkinsBuildHook implements PostReceiveHook {
         // (existing refs matching regex, deleted refs, changed refs old values)..(added refs, changed refs new values)
 
         // We will need a list of branches first
-        GitScmCommandBuilder gcb = gcbf.builder(repo).command("branch");
-        CommandOutputHandler<Object> gboh = cohf.getBranchContainsOutputHandler();
-        gcb.build(gboh).call();
-        @SuppressWarnings("unchecked")
-        ImmutableList<String> branches = (ImmutableList<String>) gboh.getOutput();
+        phase = span.child("git.branches", metrics.timer("hook.onReceive.branches"));
+        ImmutableList<String> branches;
+        try {
+            branches = grr.getBranches(repo);
+            phase.tag("branches", branches.size());
+        } finally {
+            phase.end();
+        }
 
         HashSet<String> plusBranches = new HashSet<String>();
         HashSet<String> minusBranches = new HashSet<String>();
+        HashSet<String> fromHashes = new HashSet<String>();
 
         // add verify-matching branches to the minusBranches set
-        minusBranches.addAll(ImmutableList.copyOf(Iterables.filter(branches, new Predicate<String>() {
+        ImmutableList<String> verifyBranches = ImmutableList.copyOf(Iterables.filter(branches, new Predicate<String>() {
 
             @Override
             public boolean apply(String input) {
@@ -137,7 +159,16 @@ public class TriggerJenkinsBuildHook implements PostReceiveHook {
                 }
                 return false;
             }
-        })));
+        }));
+        minusBranches.addAll(verifyBranches);
+
+        // if no verify branch lost commits and we already know which commits are on verify branches, we only need to
+        // walk the pushed ranges
+        boolean warm = reachabilityCache.isWarm(repo);
+        // rewinds only matter if there is (or is about to be) a set of known commits for them to make wrong
+        boolean tracked = reachabilityCache.isTracked(repo);
+        boolean removed = false;
+        boolean added = false;
 
         // now calculate the changed/added/deleted refs
         for (RefChange refChange : changes) {
@@ -151,60 +182,150 @@ public class TriggerJenkinsBuildHook implements PostReceiveHook {
             switch (refChange.getType()) {
             case DELETE:
                 minusBranches.add(refChange.getFromHash());
+                removed = true;
                 break;
             case ADD:
                 plusBranches.add(refChange.getToHash());
+                added = true;
                 break;
             case UPDATE:
                 minusBranches.add(refChange.getFromHash());
                 plusBranches.add(refChange.getToHash());
+                fromHashes.add(refChange.getFromHash());
+                if (tracked && isRewind(repo, refChange)) {
+                    log.debug("Detected non-fast-forward update of {}", refChange.getRefId());
+                    removed = true;
+                }
                 break;
             default:
                 throw new IllegalStateException("Unknown change type " + refChange.getType().toString());
             }
         }
 
-        // we can now calculate all the new commits introduced by this change in one revwalk.
-        GitScmCommandBuilder gscb = gcbf.builder(repo);
-        GitRevListBuilder grlb = gscb.revList();
-        for (String mb : minusBranches) {
-            grlb.revs("^" + mb);
-        }
-        for (String pb : plusBranches) {
-            grlb.revs(pb);
+        if (removed) {
+            // commits which are no longer on any verify branch must be built again if they come back
+            reachabilityCache.invalidate(repo);
+            warm = false;
         }
 
-        Integer maxVerifyChain = getMaxVerifyChain(rc);
+        Integer maxVerifyChain = getMaxVerifyChain(rc, lc);
         if (maxVerifyChain != 0) {
-            log.debug("Limiting to " + maxVerifyChain.toString() + " commits for verification");
-            grlb.limit(maxVerifyChain);
+            log.debug("Limiting to {} commits for verification", maxVerifyChain);
         }
 
-        CommandOutputHandler<Object> rloh = cohf.getRevlistOutputHandler();
-        grlb.build(rloh).call();
+        phase = span.child("git.revlist", metrics.timer("hook.onReceive.revlist"));
+        ImmutableList<String> changesets = null;
+        try {
+            if (warm) {
+                changesets = getNewChangesets(repo, plusBranches, added ? minusBranches : fromHashes, maxVerifyChain);
+            }
+            phase.tag("incremental", changesets != null);
+            if (changesets == null) {
+                // we can now calculate all the new commits introduced by this change in one revwalk.
+                // returns in old-to-new order, already limited by max-verify-build limiter
+                changesets = grr.getChangesets(repo, plusBranches, minusBranches, maxVerifyChain);
 
-        // returns in old-to-new order, already limited by max-verify-build limiter
-        @SuppressWarnings("unchecked")
-        ImmutableList<String> changesets = (ImmutableList<String>) rloh.getOutput();
+                // walking every verify branch is too slow to do while the pusher waits, so the set of verified commits
+                // is built in the background and this path is used until it is ready
+                reachabilityCache.requestSeed(repo, verifyBranches);
+            }
+            phase.tag("commits", changesets.size());
+        } finally {
+            phase.end();
+        }
+        metrics.histogram("hook.revlist.size").update(changesets.size());
 
         // For each new commit
-        for (String cs : changesets) {
+        phase = span.child("dispatch", metrics.timer("hook.onReceive.trigger"));
+        try {
+            for (String cs : changesets) {
+
+                if (publishBuilds.contains(cs)) {
+                    log.info("Stashbot Trigger: NOT triggering VERIFICATION build for commit {}"
+                        + " because it already triggered a PUBLISH build", cs);
+                    continue;
+                }
+                log.info("Stashbot Trigger: Triggering VERIFICATION build for commit {}", cs);
+                phase.message("triggering {} for {}", JobType.VERIFY_COMMIT, cs);
+                // trigger a verification build (no merge)
+                jenkinsManager.triggerBuild(repo, JobType.VERIFY_COMMIT, cs, "");
+            }
+        } finally {
+            phase.end();
+        }
+    }
+
+    /**
+     * Walks only the pushed ranges and drops anything already known to be on some verify branch.
+     * 
+     * @param exclude the old values of updated branches, plus the other verify branches if a branch was added (a new
+     *            branch has no old value to stop at)
+     * @return the new commits in old-to-new order, or null if the reachability cache went cold in the meantime or the
+     *         push was too large to walk
+     */
+    private ImmutableList<String> getNewChangesets(Repository repo, Set<String> plusBranches, Set<String> exclude,
+        Integer maxVerifyChain) {
+        ImmutableList<String> pushed = ImmutableList.of();
+        if (!plusBranches.isEmpty()) {
+            // one extra so we can tell whether the walk was cut short
+            pushed = grr.getChangesets(repo, plusBranches, exclude, maxIncrementalCommits + 1);
+        }
+        if (pushed.size() > maxIncrementalCommits) {
+            // the older commits weren't walked, so recording only the newer ones would leave the cache incomplete
+            log.debug("Push to {} introduced more than {} commits, not using the reachability cache", repo,
+                maxIncrementalCommits);
+            reachabilityCache.invalidate(repo);
+            return null;
+        }
+        ImmutableList<String> changesets = reachabilityCache.recordNew(repo, pushed);
+        if (changesets != null && maxVerifyChain != 0 && changesets.size() > maxVerifyChain) {
+            // keep the newest, same as rev-list --max-count
+            changesets = changesets.subList(changesets.size() - maxVerifyChain, changesets.size());
+        }
+        return changesets;
+    }
+
+    /**
+     * @return true if the update is not a fast forward, i.e. the old value is not an ancestor of the new one
+     */
+    private boolean isRewind(Repository repo, RefChange refChange) {
+        return !grr.getChangesets(repo, ImmutableList.of(refChange.getFromHash()),
+            ImmutableList.of(refChange.getToHash()), 1).isEmpty();
+    }
 
-            if (publishBuilds.contains(cs)) {
-                log.info("Stashbot Trigger: NOT triggering VERIFICATION build for commit " + cs
-                    + " because it already triggered a PUBLISH build");
+    private void triggerPublishBuilds(Repository repo, Collection<RefChange> changes, LookupContext lc,
+        RepositoryConfiguration rc, Set<String> publishBuilds, Span span) {
+        if (!lc.getJobTypeStatusMapping(rc, JobType.PUBLISH)) {
+            return;
+        }
+        for (RefChange refChange : changes) {
+            if (!refChange.getRefId().matches(rc.getPublishBranchRegex())) {
                 continue;
             }
-            log.info("Stashbot Trigger: Triggering VERIFICATION build for commit " + cs);
-            // trigger a verification build (no merge)
-            jenkinsManager.triggerBuild(repo, JobType.VERIFY_COMMIT, cs, "");
+
+            // deletes have a tohash of "0000000000000000000000000000000000000000"
+            // but it seems more reliable to use RefChangeType
+            if (refChange.getType().equals(RefChangeType.DELETE)) {
+                log.debug("Detected delete, not triggering a build for this change");
+                continue;
+            }
+
+            // if matches publication regex, no verify build needed for that hash
+            // Only perform publish builds of the "to ref", not commits between
+            // I.E. if you have A-B-C and you push -D-E-F, a verify build of D and E might be triggered, but F would be
+            // published and not verified, if the ref matches both build and verify.
+            log.info("Stashbot Trigger: Triggering PUBLISH build for commit {}", refChange.getToHash());
+            span.message("triggering {} for {} on {}", JobType.PUBLISH, refChange.getToHash(), refChange.getRefId());
+            // trigger a publication build
+            jenkinsManager.triggerBuild(repo, JobType.PUBLISH, refChange.getToHash(), refChange.getRefId());
+            publishBuilds.add(refChange.getToHash());
         }
     }
 
-    private Integer getMaxVerifyChain(RepositoryConfiguration rc) {
+    private Integer getMaxVerifyChain(RepositoryConfiguration rc, LookupContext lc) {
         JenkinsServerConfiguration jsc;
         try {
-            jsc = cpm.getJenkinsServerConfiguration(rc.getJenkinsServerName());
+            jsc = lc.getJenkinsServerConfiguration(rc);
         } catch (SQLException e) {
             log.error("Error getting jenkins server configuration for repo id " + rc.getRepoId().toString(), e);
             return rc.getMaxVerifyChain();
@@ -17,18 +17,18 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.sql.SQLException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 
-import com.atlassian.stash.nav.NavBuilder;
 import com.atlassian.stash.repository.Repository;
-import com.atlassian.stash.repository.RepositoryCloneLinksRequest;
-import com.atlassian.stash.repository.RepositoryService;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
 import com.palantir.stash.stashbot.managers.VelocityManager;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
@@ -46,45 +46,74 @@ public class JenkinsJobXmlFormatter {
     private static final String PREBUILD_COMMAND_POSTFIX =
         "|| (echo \"PREBUILD FAILURE1 with status $?\" ; /bin/false) && echo \"PREBUILD SUCCESS\"";
 
+    private static final ImmutableMap<String, String> REPO_ID_PARAM = ImmutableMap.of("name", "repoId", "typeName",
+        JenkinsBuildParamType.StringParameterDefinition.toString(), "description", "stash repository Id",
+        "defaultValue", "unknown");
+    private static final ImmutableMap<String, String> BUILD_HEAD_PARAM = ImmutableMap.of("name", "buildHead",
+        "typeName", JenkinsBuildParamType.StringParameterDefinition.toString(), "description", "the change to build",
+        "defaultValue", "head");
+    private static final ImmutableMap<String, String> PULL_REQUEST_ID_PARAM = ImmutableMap.of("name",
+        "pullRequestId", "typeName", JenkinsBuildParamType.StringParameterDefinition.toString(), "description",
+        "the pull request Id", "defaultValue", "");
+    private static final ImmutableMap<String, String> TRIGGER_ID_PARAM = ImmutableMap.of("name", "triggerId",
+        "typeName", JenkinsBuildParamType.StringParameterDefinition.toString(), "description",
+        "stashbot trigger Id, passed back when reporting status", "defaultValue", "");
+
+    // Parameters are type-dependent for now, and never change, so build them once
+    private static final ImmutableMap<JobType, ImmutableList<Map<String, String>>> PARAMETERS =
+        ImmutableMap.<JobType, ImmutableList<Map<String, String>>> builder()
+            .put(JobType.VERIFY_COMMIT,
+                ImmutableList.<Map<String, String>> of(REPO_ID_PARAM, BUILD_HEAD_PARAM, TRIGGER_ID_PARAM))
+            .put(JobType.VERIFY_PR,
+                ImmutableList.<Map<String, String>> of(REPO_ID_PARAM, BUILD_HEAD_PARAM, PULL_REQUEST_ID_PARAM,
+                    TRIGGER_ID_PARAM))
+            .put(JobType.PUBLISH,
+                ImmutableList.<Map<String, String>> of(REPO_ID_PARAM, BUILD_HEAD_PARAM, TRIGGER_ID_PARAM))
+            .put(JobType.NOOP, ImmutableList.<Map<String, String>> of())
+            .build();
+
     private final VelocityManager velocityManager;
     private final ConfigurationPersistenceService cpm;
     private final StashbotUrlBuilder sub;
-    private final NavBuilder navBuilder;
-    private final RepositoryService rs;
+
+    // Parsed templates, keyed by template file. Changing the file a JobTemplate points to changes the key, and a cached
+    // template whose resource loader reports its source as modified is parsed again.
+    private final ConcurrentMap<String, Template> templateCache;
 
     public JenkinsJobXmlFormatter(VelocityManager velocityManager,
-        ConfigurationPersistenceService cpm, StashbotUrlBuilder sub,
-        NavBuilder navBuilder, RepositoryService rs) throws IOException {
+        ConfigurationPersistenceService cpm, StashbotUrlBuilder sub) throws IOException {
         this.velocityManager = velocityManager;
         this.cpm = cpm;
         this.sub = sub;
-        this.navBuilder = navBuilder;
-        this.rs = rs;
+        this.templateCache = new ConcurrentHashMap<String, Template>();
     }
 
     private String curlCommandBuilder(Repository repo, JobTemplate jobTemplate,
-        RepositoryConfiguration rc, String repositoryUrl, String status)
-        throws SQLException {
-        final JenkinsServerConfiguration jsc = cpm
-            .getJenkinsServerConfiguration(rc.getJenkinsServerName());
+        JenkinsServerConfiguration jsc, String status) {
         StringBuffer sb = new StringBuffer();
-        sb.append("/usr/bin/curl -s -i ");
+        // quoted so the shell expands the parameters but doesn't glob on the "?"
+        sb.append("/usr/bin/curl -s -i \"");
         sb.append(sub.buildReportingUrl(repo, jobTemplate.getJobType(), jsc, status));
+        sb.append("\"");
         return sb.toString();
     }
 
     public String generateJobXml(JobTemplate jobTemplate, Repository repo)
         throws SQLException {
+        return generateJobXml(jobTemplate, repo, new LookupContext(cpm, null));
+    }
+
+    /**
+     * Same as {@link #generateJobXml(JobTemplate, Repository)}, but reuses configuration already loaded by the caller.
+     */
+    public String generateJobXml(JobTemplate jobTemplate, Repository repo, LookupContext lc)
+        throws SQLException {
 
         final VelocityContext vc = velocityManager.getVelocityContext();
-        final RepositoryConfiguration rc = cpm
-            .getRepositoryConfigurationForRepository(repo);
-        final JenkinsServerConfiguration jsc = cpm
-            .getJenkinsServerConfiguration(rc.getJenkinsServerName());
-
-        RepositoryCloneLinksRequest rclr =
-            new RepositoryCloneLinksRequest.Builder().repository(repo).protocol("http").user(null).build();
-        String repositoryUrl = rs.getCloneLinks(rclr).iterator().next().getHref();
+        final RepositoryConfiguration rc = lc.getRepositoryConfiguration(repo);
+        final JenkinsServerConfiguration jsc = lc.getJenkinsServerConfiguration(rc);
+
+        String repositoryUrl = sub.getCloneUrl(repo);
         String cleanRepositoryUrl = repositoryUrl;
 
         // Handle the various Authentication modes
@@ -129,67 +158,17 @@ public class JenkinsJobXmlFormatter {
         vc.put("isEmailPerModuleEmail", rc.getEmailPerModuleEmail());
 
         vc.put("startedCommand",
-            curlCommandBuilder(repo, jobTemplate, rc, repositoryUrl,
-                "inprogress"));
+            curlCommandBuilder(repo, jobTemplate, jsc, "inprogress"));
         vc.put("successCommand",
-            curlCommandBuilder(repo, jobTemplate, rc, repositoryUrl,
-                "successful"));
+            curlCommandBuilder(repo, jobTemplate, jsc, "successful"));
         vc.put("failedCommand",
-            curlCommandBuilder(repo, jobTemplate, rc, repositoryUrl,
-                "failed"));
-        vc.put("repositoryLink", navBuilder.repo(repo).browse().buildAbsolute());
+            curlCommandBuilder(repo, jobTemplate, jsc, "failed"));
+        vc.put("repositoryLink", sub.getRepositoryLink(repo));
         vc.put("repositoryName",
             repo.getProject().getName() + " " + repo.getName());
 
         // Parameters are type-dependent for now
-        ImmutableList.Builder<Map<String, String>> paramBuilder = new ImmutableList.Builder<Map<String, String>>();
-        switch (jobTemplate.getJobType()) {
-        case VERIFY_COMMIT:
-            // repoId
-            paramBuilder.add(ImmutableMap.of("name", "repoId", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "stash repository Id", "defaultValue",
-                "unknown"));
-            // buildHead
-            paramBuilder.add(ImmutableMap.of("name", "buildHead", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "the change to build", "defaultValue",
-                "head"));
-            break;
-        case VERIFY_PR:
-            // repoId
-            paramBuilder.add(ImmutableMap.of("name", "repoId", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "stash repository Id", "defaultValue",
-                "unknown"));
-            // buildHead
-            paramBuilder.add(ImmutableMap.of("name", "buildHead", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "the change to build", "defaultValue",
-                "head"));
-            // pullRequestId
-            paramBuilder.add(ImmutableMap.of("name", "pullRequestId",
-                "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "the pull request Id", "defaultValue", ""));
-            break;
-        case PUBLISH:
-            // repoId
-            paramBuilder.add(ImmutableMap.of("name", "repoId", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "stash repository Id", "defaultValue",
-                "unknown"));
-            // buildHead
-            paramBuilder.add(ImmutableMap.of("name", "buildHead", "typeName",
-                JenkinsBuildParamType.StringParameterDefinition.toString(),
-                "description", "the change to build", "defaultValue",
-                "head"));
-            break;
-        case NOOP:
-            // no params
-            break;
-        }
-        vc.put("paramaterList", paramBuilder.build());
+        vc.put("paramaterList", PARAMETERS.get(jobTemplate.getJobType()));
 
         // Junit settings
         vc.put("isJunit", rc.getJunitEnabled());
@@ -216,13 +195,22 @@ public class JenkinsJobXmlFormatter {
         }
         StringWriter xml = new StringWriter();
 
-        VelocityEngine ve = velocityManager.getVelocityEngine();
-        Template template = ve.getTemplate(jobTemplate.getTemplateFile());
+        Template template = getTemplate(jobTemplate.getTemplateFile());
 
         template.merge(vc, xml);
         return xml.toString();
     }
 
+    private Template getTemplate(String templateFile) {
+        Template template = templateCache.get(templateFile);
+        if (template == null || template.isSourceModified()) {
+            VelocityEngine ve = velocityManager.getVelocityEngine();
+            template = ve.getTemplate(templateFile);
+            templateCache.put(templateFile, template);
+        }
+        return template;
+    }
+
     /**
      * XML specific parameter types
      * 
@@ -13,9 +13,18 @@
 // limitations under the License.
 package com.palantir.stash.stashbot.jobtemplate;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.java.ao.DBParam;
 import net.java.ao.Query;
@@ -23,14 +32,25 @@ import net.java.ao.Query;
 import org.slf4j.Logger;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.event.api.EventListener;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.persistence.JobFingerprint;
 import com.palantir.stash.stashbot.persistence.JobMapping;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
 public class JobTemplateManager {
 
+    /**
+     * Bump this whenever a change to the job templates or to the XML generator changes the XML of every job (e.g. a new
+     * build parameter). The drift detector reports jobs fingerprinted under an older version instead of repairing them,
+     * so such a change never rewrites every job on every jenkins server without someone asking for it.
+     */
+    public static final int JOB_XML_VERSION = 1;
+
     private static final String DEFAULT_VERIFY_JOB_NAME = "verification";
     private static final String DEFAULT_VERIFY_JOB_FILE = "jenkins-verify-job.vm";
     private static final String DEFAULT_PUBLISH_JOB_NAME = "publish";
@@ -41,9 +61,22 @@ public class JobTemplateManager {
     private final ActiveObjects ao;
     private final Logger log;
 
+    // Visible job templates for each repository configuration, keyed by RepositoryConfiguration ID. These hold
+    // snapshots rather than entities, which would go stale. Every method which changes templates or mappings, and
+    // every configuration change, invalidates this.
+    private final ConcurrentMap<Integer, RepositoryJobs> jobsByRepositoryConfiguration;
+    // bumped on every invalidation, so a lookup which raced with one doesn't cache what it read
+    private int generation = 0;
+
+    // IDs of the repository configurations known to have the default jobs mapped. Mappings are never removed, so this
+    // never needs invalidating.
+    private final Set<Integer> defaultsMapped;
+
     public JobTemplateManager(ActiveObjects ao, PluginLoggerFactory lf) {
         this.ao = ao;
         this.log = lf.getLoggerForThis(this);
+        this.jobsByRepositoryConfiguration = new ConcurrentHashMap<Integer, RepositoryJobs>();
+        this.defaultsMapped = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
     }
 
     public JobTemplate getDefaultVerifyJob() {
@@ -112,13 +145,7 @@ public class JobTemplateManager {
 
     public JobTemplate getJobTemplate(JobType jobType,
         RepositoryConfiguration rc) throws SQLException {
-        List<JobTemplate> jobs = getJenkinsJobsForRepository(rc);
-        for (JobTemplate jt : jobs) {
-            if (jt.getJobType().equals(jobType)) {
-                return jt;
-            }
-        }
-        return null;
+        return getRepositoryJobs(rc).getJobTemplate(jobType);
     }
 
     public void setJobTemplate(String name, String templateFile,
@@ -131,12 +158,14 @@ public class JobTemplateManager {
             ao.create(JobTemplate.class, new DBParam("NAME", name),
                 new DBParam("TEMPLATE_FILE", templateFile), new DBParam(
                     "JOB_TYPE", jenkinsJobType));
-            return;
+        } else {
+            // already exists, so update it
+            jobs[0].setTemplateFile(templateFile);
+            jobs[0].setJobType(jenkinsJobType);
+            jobs[0].save();
         }
-        // already exists, so update it
-        jobs[0].setTemplateFile(templateFile);
-        jobs[0].setJobType(jenkinsJobType);
-        jobs[0].save();
+        // templates are shared between repos, so any cached list could contain this one
+        invalidate(null);
     }
 
     public void setJenkinsJobMapping(RepositoryConfiguration rc,
@@ -160,11 +189,21 @@ public class JobTemplateManager {
             }
             jjm.save();
         }
+        invalidate(rc.getID());
     }
 
-    private void createDefaultMappingsIfNeeded(RepositoryConfiguration rc)
+    /**
+     * Maps the default jobs to a repository configuration. Called when the configuration is first created, so lookups
+     * don't need to check every time.
+     * 
+     * @param rc
+     * @throws SQLException
+     */
+    public void createDefaultMappingsIfNeeded(RepositoryConfiguration rc)
         throws SQLException {
-
+        if (defaultsMapped.contains(rc.getID())) {
+            return;
+        }
         for (JobTemplate defaultJob : ImmutableList.of(getDefaultVerifyJob(),
             getDefaultVerifyPullRequestJob(), getDefaultPublishJob())) {
             if (ao.find(
@@ -175,11 +214,30 @@ public class JobTemplateManager {
                 setJenkinsJobMapping(rc, defaultJob, true, false);
             }
         }
+        defaultsMapped.add(rc.getID());
     }
 
     public ImmutableList<JobTemplate> getJenkinsJobsForRepository(
         RepositoryConfiguration rc) throws SQLException {
-        // Ensure each default plan exists (in case it hasn't been created yet)
+        return getRepositoryJobs(rc).getTemplates();
+    }
+
+    /**
+     * A repository's visible templates, indexed for lookup by job type or name. Once cached, this doesn't touch the
+     * database.
+     */
+    public RepositoryJobs getRepositoryJobs(RepositoryConfiguration rc) throws SQLException {
+        RepositoryJobs cached = jobsByRepositoryConfiguration.get(rc.getID());
+        if (cached != null) {
+            return cached;
+        }
+        int gen;
+        synchronized (this) {
+            gen = generation;
+        }
+
+        // Configurations created before defaults were mapped at creation time may still be missing some, so check
+        // once per configuration
         createDefaultMappingsIfNeeded(rc);
 
         JobMapping[] mappings = ao.find(
@@ -190,9 +248,36 @@ public class JobTemplateManager {
 
         List<JobTemplate> templates = new ArrayList<JobTemplate>();
         for (JobMapping jm : mappings) {
-            templates.add(jm.getJobTemplate());
+            templates.add(JobTemplateSnapshot.of(jm.getJobTemplate()));
+        }
+        RepositoryJobs result = new RepositoryJobs(templates);
+        synchronized (this) {
+            if (gen == generation) {
+                jobsByRepositoryConfiguration.put(rc.getID(), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Templates and mappings can also be changed by the configuration servlets and upgrade tasks, so drop whatever
+     * might have been affected. Configuration changes are rare, so just drop everything.
+     */
+    @EventListener
+    public void onConfigurationUpdated(StashbotConfigurationUpdatedEvent event) {
+        invalidate(null);
+    }
+
+    /**
+     * @param rcId the repository configuration whose templates changed, or null for all of them
+     */
+    private synchronized void invalidate(Integer rcId) {
+        ++generation;
+        if (rcId == null) {
+            jobsByRepositoryConfiguration.clear();
+        } else {
+            jobsByRepositoryConfiguration.remove(rcId);
         }
-        return ImmutableList.copyOf(templates);
     }
 
     /**
@@ -206,11 +291,121 @@ public class JobTemplateManager {
      */
     public JobTemplate fromString(RepositoryConfiguration rc, String s)
         throws SQLException {
-        for (JobTemplate jt : getJenkinsJobsForRepository(rc)) {
-            if (jt.getJobType().toString().equals(s.toLowerCase())) {
-                return jt;
+        return getRepositoryJobs(rc).fromString(s);
+    }
+
+    /**
+     * Returns the fingerprint of the job XML last sent to jenkins for this repo and template, or null if we have never
+     * sent one (or the job was created before fingerprints were recorded).
+     * 
+     * @param rc
+     * @param jt
+     * @return
+     */
+    public String getJobFingerprint(RepositoryConfiguration rc, JobTemplate jt) {
+        JobFingerprint[] fps = ao.find(JobFingerprint.class,
+            Query.select().where("REPOSITORY_CONFIGURATION_ID = ? and JOB_TEMPLATE_ID = ?", rc.getID(), jt.getID()));
+        if (fps.length == 0) {
+            return null;
+        }
+        return fps[0].getXmlHash();
+    }
+
+    /**
+     * Returns the {@link #JOB_XML_VERSION} the fingerprint for this repo and template was recorded under, or null if
+     * there is no fingerprint.
+     */
+    public Integer getJobFingerprintVersion(RepositoryConfiguration rc, JobTemplate jt) {
+        JobFingerprint[] fps = ao.find(JobFingerprint.class,
+            Query.select().where("REPOSITORY_CONFIGURATION_ID = ? and JOB_TEMPLATE_ID = ?", rc.getID(), jt.getID()));
+        if (fps.length == 0) {
+            return null;
+        }
+        return fps[0].getXmlVersion();
+    }
+
+    /**
+     * Records the fingerprint of the job XML just sent to jenkins, under the current {@link #JOB_XML_VERSION}.
+     */
+    public void setJobFingerprint(RepositoryConfiguration rc, JobTemplate jt, String xmlHash) {
+        JobFingerprint[] fps = ao.find(JobFingerprint.class,
+            Query.select().where("REPOSITORY_CONFIGURATION_ID = ? and JOB_TEMPLATE_ID = ?", rc.getID(), jt.getID()));
+        if (fps.length == 0) {
+            ao.create(JobFingerprint.class, new DBParam("REPOSITORY_CONFIGURATION_ID", rc.getID()), new DBParam(
+                "JOB_TEMPLATE_ID", jt.getID()), new DBParam("XML_HASH", xmlHash), new DBParam("XML_VERSION",
+                JOB_XML_VERSION));
+            return;
+        }
+        fps[0].setXmlHash(xmlHash);
+        fps[0].setXmlVersion(JOB_XML_VERSION);
+        fps[0].save();
+    }
+
+    /**
+     * Hex SHA-1 of the given job XML
+     * 
+     * @param xml
+     * @return
+     */
+    public static String fingerprintXml(String xml) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(xml.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A repository's visible templates, indexed by job type and by job type name. If two visible templates share a job
+     * type, the first one mapped wins, same as scanning the list would. Built once per cache miss, so lookups are
+     * constant time and allocate nothing.
+     */
+    public static class RepositoryJobs {
+
+        private final ImmutableList<JobTemplate> templates;
+        private final Map<JobType, JobTemplate> byType;
+        private final ImmutableMap<String, JobTemplate> byName;
+
+        public RepositoryJobs(List<JobTemplate> templates) {
+            this.templates = ImmutableList.copyOf(templates);
+            EnumMap<JobType, JobTemplate> types = new EnumMap<JobType, JobTemplate>(JobType.class);
+            for (JobTemplate jt : templates) {
+                JobType type = jt.getJobType();
+                if (!types.containsKey(type)) {
+                    types.put(type, jt);
+                }
+            }
+            ImmutableMap.Builder<String, JobTemplate> names = ImmutableMap.builder();
+            for (Map.Entry<JobType, JobTemplate> e : types.entrySet()) {
+                names.put(e.getKey().toString(), e.getValue());
+            }
+            this.byType = Collections.unmodifiableMap(types);
+            this.byName = names.build();
+        }
+
+        public ImmutableList<JobTemplate> getTemplates() {
+            return templates;
+        }
+
+        public JobTemplate getJobTemplate(JobType jobType) {
+            return byType.get(jobType);
+        }
+
+        public JobTemplate fromString(String s) {
+            JobTemplate jt = byName.get(s);
+            if (jt == null) {
+                // names are always lower case, so only pay for the conversion when the caller didn't
+                jt = byName.get(s.toLowerCase());
             }
+            return jt;
         }
-        return null;
     }
 }
@@ -0,0 +1,73 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.jobtemplate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+
+/**
+ * A read-only copy of a {@link JobTemplate}'s ID, name, template file and job type, so templates can be cached without
+ * holding on to entity proxies, which go stale. Anything other than reading those (e.g. save()) throws
+ * UnsupportedOperationException.
+ * 
+ * This is a dynamic proxy rather than a class implementing JobTemplate so it doesn't have to track the rest of the
+ * ActiveObjects entity interface.
+ */
+class JobTemplateSnapshot implements InvocationHandler {
+
+    private final int id;
+    private final String name;
+    private final String templateFile;
+    private final JobType jobType;
+
+    private JobTemplateSnapshot(JobTemplate jt) {
+        this.id = jt.getID();
+        this.name = jt.getName();
+        this.templateFile = jt.getTemplateFile();
+        this.jobType = jt.getJobType();
+    }
+
+    static JobTemplate of(JobTemplate jt) {
+        return (JobTemplate) Proxy.newProxyInstance(JobTemplate.class.getClassLoader(),
+            new Class<?>[] { JobTemplate.class }, new JobTemplateSnapshot(jt));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String m = method.getName();
+        if (m.equals("getID")) {
+            return id;
+        } else if (m.equals("getName")) {
+            return name;
+        } else if (m.equals("getTemplateFile")) {
+            return templateFile;
+        } else if (m.equals("getJobType")) {
+            return jobType;
+        } else if (m.equals("getBuildNameFor")) {
+            return new JobTemplateImpl((JobTemplate) proxy).getBuildNameFor((Repository) args[0]);
+        } else if (m.equals("equals")) {
+            // same as an entity: equal to any template with the same ID
+            return args[0] instanceof JobTemplate && ((JobTemplate) args[0]).getID() == id;
+        } else if (m.equals("hashCode")) {
+            return id;
+        } else if (m.equals("toString")) {
+            return "JobTemplate{" + Integer.toString(id) + ", " + name + "}";
+        }
+        throw new UnsupportedOperationException(m + "() is not supported by a cached job template");
+    }
+}
@@ -15,12 +15,21 @@ package com.palantir.stash.stashbot.logger;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.joran.spi.JoranException;
 
 import com.atlassian.sal.api.ApplicationProperties;
@@ -28,33 +37,48 @@ import com.atlassian.sal.api.ApplicationProperties;
 /**
  * Programmatically configure our logging.
  * 
+ * Stashbot logs through its own logback context rather than stash's, so configuring it doesn't touch stash's logging
+ * and it is only configured once, by whichever factory is created first (in the plugin, the one with stash's home
+ * directory). Warnings and errors are also passed on to stash's own log. Loggers are cached per class. The context
+ * is stopped when the last factory using it is destroyed.
+ * 
  * For details, see: http://logback.qos.ch/manual/configuration.html
  * 
  * @author cmyers
  * 
  */
-public class PluginLoggerFactory {
+public class PluginLoggerFactory implements DisposableBean {
 
-    private static final String ROOT = "com.palantir.stash.signupmanager";
+    private static final String ROOT = "com.palantir.stash.stashbot";
     private static final Logger stashRootLogger = LoggerFactory.getLogger("ROOT");
 
-    private LoggerContext context;
+    // shared by every factory in this copy of the plugin
+    private static final SharedContext sharedContext = new SharedContext();
 
-    private final String homeDir;
+    private final SharedContext owner;
+    private final LoggerContext context;
+    private final ConcurrentMap<Class<?>, Logger> loggers;
+    private final AtomicBoolean destroyed;
 
     public PluginLoggerFactory(ApplicationProperties applicationProperties) {
-        homeDir = applicationProperties.getHomeDirectory().getAbsolutePath();
-        init();
+        this(applicationProperties.getHomeDirectory().getAbsolutePath(), sharedContext);
     }
 
     public PluginLoggerFactory() {
-        homeDir = new File(".").getAbsolutePath();
-        init();
+        this(new File(".").getAbsolutePath(), sharedContext);
+    }
+
+    // for testing
+    PluginLoggerFactory(String homeDir, SharedContext owner) {
+        this.owner = owner;
+        this.context = owner.acquire(homeDir);
+        this.loggers = new ConcurrentHashMap<Class<?>, Logger>();
+        this.destroyed = new AtomicBoolean(false);
     }
 
-    private void init() {
-        // Assumes LSF4J is bound to logback
-        context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    private static LoggerContext init(String homeDir) {
+        LoggerContext context = new LoggerContext();
+        context.setName("stashbot");
 
         // store the home dir to use for relative paths
         context.putProperty("stash.home", homeDir);
@@ -63,12 +87,12 @@ public class PluginLoggerFactory {
         configurator.setContext(context);
 
         InputStream is;
-        is = this.getClass().getClassLoader().getResourceAsStream("logback-test.xml");
+        is = PluginLoggerFactory.class.getClassLoader().getResourceAsStream("logback-test.xml");
         if (is != null) {
             stashRootLogger.info("Using logback-test.xml for logger settings");
         } else {
             stashRootLogger.info("Using logback.xml for logger settings");
-            is = this.getClass().getClassLoader().getResourceAsStream("logback.xml");
+            is = PluginLoggerFactory.class.getClassLoader().getResourceAsStream("logback.xml");
         }
 
         try {
@@ -76,6 +100,15 @@ public class PluginLoggerFactory {
         } catch (JoranException e) {
             System.err.println("Error configuring logging framework" + e);
         }
+
+        StashLogForwarder forwarder = new StashLogForwarder();
+        forwarder.setContext(context);
+        forwarder.setName("stash-forwarder");
+        forwarder.start();
+        context.getLogger(ROOT).addAppender(forwarder);
+
+        context.start();
+        return context;
     }
 
     public Logger getLogger() {
@@ -87,22 +120,81 @@ public class PluginLoggerFactory {
     }
 
     public Logger getLogger(Class<? extends Object> clazz) {
-        String className = clazz.toString();
-        if (className.startsWith("class ")) {
-            className = className.replaceFirst("class ", "");
+        Logger logger = loggers.get(clazz);
+        if (logger == null) {
+            logger = context.getLogger(clazz.getName());
+            loggers.putIfAbsent(clazz, logger);
         }
+        return logger;
+    }
 
-        return context.getLogger(className);
+    public Logger getLoggerForThis(Object obj) {
+        return getLogger(obj.getClass());
+    }
 
+    /**
+     * Flushes and closes our appenders (the async ones have their own threads) once no factory uses them any more.
+     * Every other bean gets its logger from a factory, so spring destroys those beans before this one, and the plugin's
+     * own factory is always the last to let go of the context.
+     */
+    @Override
+    public void destroy() {
+        if (destroyed.compareAndSet(false, true)) {
+            owner.release(context);
+        }
     }
 
-    public Logger getLoggerForThis(Object obj) {
-        String className = obj.getClass().toString();
-        if (className.startsWith("class ")) {
-            className = className.replaceFirst("class ", "");
+    /**
+     * Reference counted holder for the context the factories share, started by the first factory to need it and
+     * stopped when the last one is destroyed.
+     */
+    static class SharedContext {
+
+        private LoggerContext context;
+        private int references;
+
+        synchronized LoggerContext acquire(String homeDir) {
+            if (context == null || !context.isStarted()) {
+                context = init(homeDir);
+                references = 0;
+            }
+            ++references;
+            return context;
         }
 
-        return context.getLogger(className);
+        synchronized void release(LoggerContext released) {
+            // a context which was already replaced has nobody left to stop it for
+            if (released != context) {
+                return;
+            }
+            if (--references == 0) {
+                context.stop();
+                context = null;
+            }
+        }
+    }
 
+    /**
+     * Passes warnings and errors on to stash's own logging, so they still show up in stash's log.
+     */
+    private static class StashLogForwarder extends AppenderBase<ILoggingEvent> {
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            if (!event.getLevel().isGreaterOrEqual(Level.WARN)) {
+                return;
+            }
+            Logger stashLogger = LoggerFactory.getLogger(event.getLoggerName());
+            Throwable t = null;
+            IThrowableProxy tp = event.getThrowableProxy();
+            if (tp instanceof ThrowableProxy) {
+                t = ((ThrowableProxy) tp).getThrowable();
+            }
+            if (event.getLevel() == Level.WARN) {
+                stashLogger.warn(event.getFormattedMessage(), t);
+            } else {
+                stashLogger.error(event.getFormattedMessage(), t);
+            }
+        }
     }
 }
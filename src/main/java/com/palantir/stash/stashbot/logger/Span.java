@@ -0,0 +1,116 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.logger;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.palantir.stash.stashbot.metrics.Timer;
+
+/**
+ * One step of handling an event, e.g. the git part of a push. Spans which aren't being traced cost next to nothing:
+ * tags and messages are dropped without being formatted, and only the timer (if any) is updated.
+ * 
+ * Traced spans log a single line when they end, of the form
+ * "trace=ID repo=ID span=NAME ms=ELAPSED [key=value ...]", to the trace logger.
+ * 
+ * Spans are not thread safe, each belongs to the thread handling the event.
+ */
+public class Span {
+
+    static final Span NOOP = new Span(null, null, null, "", null);
+
+    private final Logger log;
+    private final String traceId;
+    private final Integer repoId;
+    private final String name;
+    private final Timer timer;
+    private final long start;
+    private StringBuilder tags;
+
+    /**
+     * @param log null if this span is not being traced
+     */
+    Span(Logger log, String traceId, Integer repoId, String name, Timer timer) {
+        this.log = log;
+        this.traceId = traceId;
+        this.repoId = repoId;
+        this.name = name;
+        this.timer = timer;
+        this.start = System.nanoTime();
+    }
+
+    public boolean isTraced() {
+        return log != null;
+    }
+
+    public Span child(String childName) {
+        return child(childName, null);
+    }
+
+    /**
+     * @param childTimer updated when the child ends, whether or not it is traced (may be null)
+     */
+    public Span child(String childName, Timer childTimer) {
+        if (log == null && childTimer == null) {
+            return NOOP;
+        }
+        return new Span(log, traceId, repoId, name + "/" + childName, childTimer);
+    }
+
+    /**
+     * Adds a key=value pair to the line logged when this span ends
+     */
+    public Span tag(String key, Object value) {
+        if (log == null) {
+            return this;
+        }
+        if (tags == null) {
+            tags = new StringBuilder();
+        }
+        tags.append(' ').append(key).append('=').append(value);
+        return this;
+    }
+
+    /**
+     * Logs a message now, slf4j style, e.g. message("triggering {} for {}", jobType, sha)
+     */
+    public void message(String format, Object... args) {
+        if (log == null) {
+            return;
+        }
+        Object[] all = new Object[args.length + 3];
+        all[0] = traceId;
+        all[1] = repoId;
+        all[2] = name;
+        System.arraycopy(args, 0, all, 3, args.length);
+        log.info("trace={} repo={} span={} " + format, all);
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    public long end() {
+        long elapsed = System.nanoTime() - start;
+        if (timer != null) {
+            timer.update(elapsed, TimeUnit.NANOSECONDS);
+        }
+        if (log != null) {
+            log.info("trace={} repo={} span={} ms={}{}", new Object[] { traceId, repoId, name,
+                String.format("%.3f", elapsed / 1000000.0), tags == null ? "" : tags });
+        }
+        return elapsed;
+    }
+}
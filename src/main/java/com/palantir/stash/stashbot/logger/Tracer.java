@@ -0,0 +1,106 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.logger;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.stashbot.metrics.Timer;
+
+/**
+ * Decides which events (pushes, pull request changes, etc.) get traced, and starts their root {@link Span}.
+ * 
+ * An event is traced if its repository has tracing turned on, or if it is picked by sampling (one event in every
+ * "sample rate", 0 meaning never). Traces go to their own logger, at INFO, so they show up in stashbot.log without
+ * turning on debug logging for everything else. Settings live in memory only and start out with no repositories
+ * traced and the sample rate taken from the stashbot.trace.sampleRate system property.
+ */
+public class Tracer {
+
+    public static final String TRACE_LOGGER = "com.palantir.stash.stashbot.trace";
+
+    private final Logger traceLog;
+    private final Logger log;
+    private final Set<Integer> tracedRepos;
+    private final AtomicLong events;
+    private final Random random;
+    private volatile int sampleRate;
+
+    public Tracer(PluginLoggerFactory lf) {
+        this.traceLog = lf.getLogger(TRACE_LOGGER);
+        this.log = lf.getLoggerForThis(this);
+        this.tracedRepos = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        this.events = new AtomicLong();
+        this.random = new Random();
+        this.sampleRate = Integer.getInteger("stashbot.trace.sampleRate", 0);
+    }
+
+    public Span start(String name, Repository repo) {
+        return start(name, repo, null);
+    }
+
+    /**
+     * @param timer updated when the span ends, whether or not it is traced (may be null)
+     */
+    public Span start(String name, Repository repo, Timer timer) {
+        Integer repoId = repo == null ? null : repo.getId();
+        if (!shouldTrace(repoId)) {
+            return timer == null ? Span.NOOP : new Span(null, null, repoId, name, timer);
+        }
+        return new Span(traceLog, Long.toHexString(random.nextLong()), repoId, name, timer);
+    }
+
+    private boolean shouldTrace(Integer repoId) {
+        if (repoId != null && tracedRepos.contains(repoId)) {
+            return true;
+        }
+        int rate = sampleRate;
+        return rate > 0 && events.incrementAndGet() % rate == 0;
+    }
+
+    public void setRepositoryTraced(int repoId, boolean traced) {
+        if (traced) {
+            tracedRepos.add(repoId);
+        } else {
+            tracedRepos.remove(repoId);
+        }
+        log.info("Tracing " + (traced ? "enabled" : "disabled") + " for repository " + Integer.toString(repoId));
+    }
+
+    /**
+     * @param sampleRate trace one event in this many, or 0 to turn sampling off
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("Sample rate must not be negative");
+        }
+        this.sampleRate = sampleRate;
+        log.info("Trace sample rate set to " + Integer.toString(sampleRate));
+    }
+
+    public JSONObject getStatus() throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("sampleRate", sampleRate);
+        status.put("repositories", tracedRepos);
+        return status;
+    }
+}
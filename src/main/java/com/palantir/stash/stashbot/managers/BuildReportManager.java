@@ -0,0 +1,511 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.build.BuildStatus.State;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.comment.Comment;
+import com.atlassian.stash.internal.build.InternalBuildStatus;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.user.StashUser;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.metrics.Timer;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.PullRequestBuildComment;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+import com.palantir.stash.stashbot.urlbuilder.StashbotUrlBuilder;
+import com.palantir.stash.stashbot.util.BuildStatusAddOperation;
+import com.palantir.stash.stashbot.util.BuildStatusBatchAddOperation;
+import com.palantir.stash.stashbot.util.PullRequestCommentAddOperation;
+import com.palantir.stash.stashbot.util.PullRequestCommentUpdateOperation;
+import com.palantir.stash.stashbot.util.PullRequestFetcherOperation;
+import com.palantir.stash.stashbot.util.RepoIdFetcherOperation;
+
+/**
+ * Records the build results jenkins reports back to us, either as commit build statuses or, for pull request builds,
+ * as pull request metadata plus a comment.
+ */
+public class BuildReportManager {
+
+    private final ConfigurationPersistenceService cpm;
+    private final RepositoryService repositoryService;
+    private final BuildStatusService buildStatusService;
+    private final PullRequestService pullRequestService;
+    private final StashbotUrlBuilder ub;
+    private final JobTemplateManager jtm;
+    private final SecurityService ss;
+    private final StashUserCache userCache;
+    private final MetricsRegistry metrics;
+    private final Logger log;
+
+    public BuildReportManager(ConfigurationPersistenceService cpm, RepositoryService repositoryService,
+        BuildStatusService buildStatusService, PullRequestService pullRequestService, StashbotUrlBuilder ub,
+        JobTemplateManager jtm, SecurityService ss, StashUserCache userCache, MetricsRegistry metrics,
+        PluginLoggerFactory lf) {
+        this.cpm = cpm;
+        this.repositoryService = repositoryService;
+        this.buildStatusService = buildStatusService;
+        this.pullRequestService = pullRequestService;
+        this.ub = ub;
+        this.jtm = jtm;
+        this.ss = ss;
+        this.userCache = userCache;
+        this.metrics = metrics;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    /**
+     * A single build result, as reported by one of the curl commands in the job XML.
+     */
+    public static class BuildReport {
+
+        private final int repoId;
+        private final String type;
+        private final State state;
+        private final long buildNumber;
+        private final String buildHead;
+        private final String mergeHead;
+        private final Long pullRequestId;
+
+        /**
+         * @param mergeHead null unless this is a pull request build
+         * @param pullRequestId null unless this is a pull request build
+         */
+        public BuildReport(int repoId, String type, State state, long buildNumber, String buildHead,
+            String mergeHead, Long pullRequestId) {
+            if (state == null) {
+                throw new IllegalArgumentException("The state must be 'successful', 'failed', or 'inprogress'");
+            }
+            if (buildHead == null || buildHead.isEmpty()) {
+                throw new IllegalArgumentException("A build head is required");
+            }
+            this.repoId = repoId;
+            this.type = type;
+            this.state = state;
+            this.buildNumber = buildNumber;
+            this.buildHead = buildHead;
+            this.mergeHead = mergeHead;
+            this.pullRequestId = pullRequestId;
+        }
+
+        /**
+         * Parses {"repoId":1,"type":"verification","state":"successful","buildNumber":2,"buildHead":"abc..."} with
+         * optional "mergeHead" and "pullRequestId".
+         */
+        public static BuildReport fromJson(JSONObject o) throws JSONException {
+            String mergeHead = o.optString("mergeHead", null);
+            Long pullRequestId = o.has("pullRequestId") ? o.getLong("pullRequestId") : null;
+            if (mergeHead == null || mergeHead.isEmpty() || pullRequestId == null) {
+                mergeHead = null;
+                pullRequestId = null;
+            }
+            return new BuildReport(o.getInt("repoId"), o.getString("type"),
+                BuildStatus.State.fromString(o.getString("state")), o.getLong("buildNumber"),
+                o.getString("buildHead"), mergeHead, pullRequestId);
+        }
+
+        public int getRepoId() {
+            return repoId;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getBuildNumber() {
+            return buildNumber;
+        }
+
+        public String getBuildHead() {
+            return buildHead;
+        }
+
+        public String getMergeHead() {
+            return mergeHead;
+        }
+
+        public Long getPullRequestId() {
+            return pullRequestId;
+        }
+
+        public boolean isPullRequest() {
+            return mergeHead != null;
+        }
+    }
+
+    /**
+     * Records a single report.
+     * 
+     * @throws IllegalArgumentException if the report refers to something which doesn't exist
+     */
+    public void report(BuildReport report) throws Exception {
+        reportUnlessAsync(report, null);
+    }
+
+    /**
+     * Validates a report and, if its jenkins server is configured for asynchronous reporting, hands it to the queue
+     * instead of applying it.
+     * 
+     * @param queue if null, always apply the report now
+     * @return true if the report was queued, false if it was applied
+     * @throws IllegalArgumentException if the report refers to something which doesn't exist
+     */
+    public boolean reportUnlessAsync(BuildReport report, BuildReportQueue queue) throws Exception {
+        Timer.Context t = metrics.timer("buildReport.single").time();
+        try {
+            return applyUnlessAsync(report, queue);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private boolean applyUnlessAsync(BuildReport report, BuildReportQueue queue) throws Exception {
+        LookupContext lc = new LookupContext(cpm, jtm);
+        Repository repo = getRepository(report.getRepoId(), new HashMap<Integer, Repository>());
+        RepositoryConfiguration rc = lc.getRepositoryConfiguration(repo);
+        JobTemplate jt = getJobTemplate(report, rc, lc);
+
+        if (queue != null && lc.getJenkinsServerConfiguration(rc).getAsyncReporting()) {
+            queue.enqueue(report);
+            return true;
+        }
+
+        if (!report.isPullRequest()) {
+            BuildStatus bs = getSuccessStatus(repo, jt, report, lc);
+            log.debug("Registering build status for buildHead " + report.getBuildHead() + " " + bsToString(bs));
+            BuildStatusAddOperation bssAdder =
+                new BuildStatusAddOperation(buildStatusService, report.getBuildHead(), bs);
+            // Yeah, I know what you are thinking... "Admin permission?  To add a build status?"
+            // I tried REPO_WRITE and REPO_ADMIN and neither was enough, but this worked!
+            ss.withPermission(Permission.SYS_ADMIN, "BUILD SUCCESS REPORT").call(bssAdder);
+            return false;
+        }
+        reportPullRequest(repo, rc, jt, report, lc);
+        return false;
+    }
+
+    /**
+     * Records many reports at once, loading each repository, configuration and template only once and writing all
+     * commit build statuses under a single permission elevation. When a batch reports the same build of the same
+     * commit more than once, only the last report is written, as it would have replaced the earlier ones anyway.
+     * Pull request reports are still applied one at a time, in order: each one updates the pull request's metadata
+     * and posts or edits a comment as the stashbot user, and there is no bulk form of either.
+     * 
+     * @return one result per report, in order: {"status":"ok"} or {"status":"error","message":"..."}. A report which a
+     *         later one replaced gets the result of the report which was actually written, plus "superseded":true.
+     */
+    public JSONArray reportAll(List<BuildReport> reports) throws JSONException {
+        metrics.histogram("buildReport.batchSize").update(reports.size());
+        Timer.Context t = metrics.timer("buildReport.batch").time();
+        try {
+            return applyAll(reports);
+        } finally {
+            t.stop();
+        }
+    }
+
+    private JSONArray applyAll(List<BuildReport> reports) throws JSONException {
+        LookupContext lc = new LookupContext(cpm, jtm);
+        Map<Integer, Repository> repos = new HashMap<Integer, Repository>();
+        JSONObject[] results = new JSONObject[reports.size()];
+
+        // keyed by commit and build status key, so later reports for the same build replace earlier ones
+        Map<String, Integer> latest = new LinkedHashMap<String, Integer>();
+        Map<Integer, BuildStatus> statuses = new HashMap<Integer, BuildStatus>();
+        // reports which were replaced, and the key of the report which replaced them
+        Map<Integer, String> superseded = new HashMap<Integer, String>();
+
+        for (int i = 0; i < reports.size(); ++i) {
+            BuildReport report = reports.get(i);
+            try {
+                Repository repo = getRepository(report.getRepoId(), repos);
+                RepositoryConfiguration rc = lc.getRepositoryConfiguration(repo);
+                JobTemplate jt = getJobTemplate(report, rc, lc);
+                if (report.isPullRequest()) {
+                    reportPullRequest(repo, rc, jt, report, lc);
+                    results[i] = result(null);
+                    continue;
+                }
+                BuildStatus bs = getSuccessStatus(repo, jt, report, lc);
+                String key = report.getBuildHead() + " " + bs.getKey();
+                Integer replaced = latest.remove(key);
+                if (replaced != null) {
+                    statuses.remove(replaced);
+                    superseded.put(replaced, key);
+                }
+                latest.put(key, i);
+                statuses.put(i, bs);
+            } catch (Exception e) {
+                log.warn("Unable to record build report " + Integer.toString(i) + " of batch", e);
+                results[i] = result(e);
+            }
+        }
+
+        ListMultimap<String, BuildStatus> toAdd = LinkedListMultimap.create();
+        for (Integer i : latest.values()) {
+            toAdd.put(reports.get(i).getBuildHead(), statuses.get(i));
+        }
+        BuildStatusBatchAddOperation adder = new BuildStatusBatchAddOperation(buildStatusService, toAdd);
+        // only set if we couldn't even try, e.g. the permission elevation failed
+        Exception addFailure = null;
+        if (!toAdd.isEmpty()) {
+            try {
+                ss.withPermission(Permission.SYS_ADMIN, "BUILD SUCCESS REPORT").call(adder);
+            } catch (Exception e) {
+                log.error("Unable to record build statuses for batch", e);
+                addFailure = e;
+            }
+        }
+        for (Integer i : latest.values()) {
+            Exception failure = addFailure != null ? addFailure : adder.getFailure(statuses.get(i));
+            if (failure != null && addFailure == null) {
+                log.warn("Unable to record build report " + Integer.toString(i) + " of batch", failure);
+            }
+            results[i] = result(failure);
+        }
+        for (Map.Entry<Integer, String> e : superseded.entrySet()) {
+            Integer by = latest.get(e.getValue());
+            Exception failure = addFailure != null ? addFailure : adder.getFailure(statuses.get(by));
+            results[e.getKey()] = result(failure).put("superseded", true);
+        }
+
+        JSONArray out = new JSONArray();
+        for (JSONObject r : results) {
+            out.put(r);
+        }
+        return out;
+    }
+
+    private void reportPullRequest(Repository repo, RepositoryConfiguration rc, JobTemplate jt, BuildReport report,
+        LookupContext lc) throws Exception {
+        final State state = report.getState();
+        final long buildNumber = report.getBuildNumber();
+        final String buildHead = report.getBuildHead();
+        final String mergeHead = report.getMergeHead();
+
+        PullRequestFetcherOperation prfo =
+            new PullRequestFetcherOperation(pullRequestService, report.getRepoId(), report.getPullRequestId());
+        ss.withPermission(Permission.REPO_READ, "BUILD SUCCESS REPORT").call(prfo);
+        final PullRequest pullRequest = prfo.getPullRequest();
+        if (pullRequest == null) {
+            throw new IllegalArgumentException(
+                "Unable to find pull request for repo id "
+                    + repo.getId().toString() + " pr id "
+                    + report.getPullRequestId().toString());
+        }
+        final String retUrl = ub.getJenkinsTriggerUrl(repo, jt.getJobType(), buildHead, pullRequest);
+
+        // Update the metadata.  We do this before adding the comment so that any listeners consuming
+        // comment events will have the updated state.
+
+        // arg order for bools is started, success, override, failed
+        if (state.equals(State.SUCCESSFUL)) {
+            cpm.setPullRequestMetadata(
+                pullRequest, mergeHead, buildHead, null, true, null, false);
+        } else if (state.equals(State.INPROGRESS)) {
+            cpm.setPullRequestMetadata(
+                pullRequest, mergeHead, buildHead, true, false, null, null);
+        } else if (state.equals(State.FAILED)) {
+            cpm.setPullRequestMetadata(
+                pullRequest, mergeHead, buildHead, null, false, null, true);
+        }
+
+        final StringBuffer sb = new StringBuffer();
+        final String url = getJenkinsUrl(repo, jt, buildNumber, lc);
+
+        /* NOTE: mergeHead and buildHead are the reverse of what you might
+         * think, because we have to check out the "toRef" becasue it is
+         * the ref that is guaranteed to be in the correct repo.
+         * Nonetheless, buildHead is the commit that is being merged "into"
+         * the target branch, which is the mergeHead variable here.
+         */
+        final int hashLength = 4;
+        final String shortMergeHead = mergeHead.substring(0, hashLength);
+        final String shortBuildHead = buildHead.substring(0, hashLength);
+
+        final String mergeHeadUrl = ub.buildStashCommitUrl(repo, mergeHead);
+        final String buildHeadUrl = ub.buildStashCommitUrl(repo, buildHead);
+
+        final String mergeHeadLink = "[" + shortMergeHead + "](" + mergeHeadUrl + ")";
+        final String buildHeadLink = "[" + shortBuildHead + "](" + buildHeadUrl + ")";
+
+        final String consoleUrl = url + "/console";
+
+        sb.append("*[Build #" + buildNumber + "](" + url + ") ");
+        sb.append("(merging " + mergeHeadLink + " into " + buildHeadLink + ") ");
+        switch (state) {
+        case INPROGRESS:
+            sb.append("is in progress...*");
+            break;
+        case SUCCESSFUL:
+            sb.append("has **passed &#x2713;**.*");
+            break;
+        case FAILED:
+            sb.append("has* **FAILED &#x2716;**. ");
+            sb.append("([*Retrigger this build* &#x27f3;](" + retUrl + ") *or* [*view console output* &#x2630;]("
+                + consoleUrl + ").)");
+            break;
+        }
+
+        log.debug("Registering comment on pr for buildHead " + buildHead
+            + " mergeHead " + mergeHead);
+
+        // So in order to create comments, we have to do it AS some user.  ss.doAsUser rather than ss.doWithPermission is the magic sauce here.
+        JenkinsServerConfiguration jsc = lc.getJenkinsServerConfiguration(rc);
+        StashUser user = userCache.getStashbotUser(jsc);
+
+        if (rc.getSingleBuildComment()) {
+            setBuildComment(user, repo, pullRequest, jt.getJobType(), sb.toString());
+            return;
+        }
+
+        // Still make comment so users can see links to build
+        PullRequestCommentAddOperation prcao =
+            new PullRequestCommentAddOperation(pullRequestService, repo.getId(), pullRequest.getId(), sb.toString());
+        ss.impersonating(user, "BUILD SUCCESS REPORT").call(prcao);
+    }
+
+    /**
+     * Edits the comment we keep for this pull request and job type, or adds one if there isn't one yet (or it can no
+     * longer be edited, e.g. because someone deleted it).
+     */
+    private void setBuildComment(StashUser user, Repository repo, PullRequest pullRequest, JobType jobType,
+        String text) throws Exception {
+        PullRequestBuildComment prbc = cpm.getPullRequestBuildComment(pullRequest, jobType);
+        Comment comment = null;
+        if (prbc != null) {
+            PullRequestCommentUpdateOperation prcuo = new PullRequestCommentUpdateOperation(pullRequestService,
+                repo.getId(), pullRequest.getId(), prbc.getCommentId(), prbc.getCommentVersion(), text);
+            try {
+                ss.impersonating(user, "BUILD SUCCESS REPORT").call(prcuo);
+                comment = prcuo.getComment();
+            } catch (Exception e) {
+                log.info("Unable to edit build comment " + prbc.getCommentId().toString() + ", adding a new one", e);
+            }
+        }
+        if (comment == null) {
+            PullRequestCommentAddOperation prcao =
+                new PullRequestCommentAddOperation(pullRequestService, repo.getId(), pullRequest.getId(), text);
+            ss.impersonating(user, "BUILD SUCCESS REPORT").call(prcao);
+            comment = prcao.getComment();
+        }
+        if (comment != null) {
+            cpm.setPullRequestBuildComment(pullRequest, jobType, comment.getId(), comment.getVersion());
+        }
+    }
+
+    private Repository getRepository(int repoId, Map<Integer, Repository> repos) throws Exception {
+        Repository repo = repos.get(repoId);
+        if (repo != null) {
+            return repo;
+        }
+        // This is necessary if we want unauthenticated users to be able to call this.  *sigh*
+        RepoIdFetcherOperation getRepoId = new RepoIdFetcherOperation(repositoryService, repoId);
+        ss.withPermission(Permission.REPO_READ, "BUILD SUCCESS REPORT").call(getRepoId);
+        repo = getRepoId.getRepo();
+        if (repo == null) {
+            throw new IllegalArgumentException(
+                "Unable to get a repository for id " + repoId);
+        }
+        repos.put(repoId, repo);
+        return repo;
+    }
+
+    private JobTemplate getJobTemplate(BuildReport report, RepositoryConfiguration rc, LookupContext lc)
+        throws SQLException {
+        JobTemplate jt = lc.fromString(rc, report.getType());
+        if (jt == null) {
+            throw new IllegalArgumentException(
+                "Unable to get a valid JobTemplate from " + report.getType());
+        }
+        return jt;
+    }
+
+    private BuildStatus getSuccessStatus(Repository repo, JobTemplate jt, BuildReport report, LookupContext lc)
+        throws SQLException {
+        Date now = new Date(java.lang.System.currentTimeMillis());
+
+        DateFormat df = DateFormat.getDateInstance();
+        // key will be the jenkins name
+        String key = jt.getBuildNameFor(repo);
+        String name = key + " (build " + Long.toString(report.getBuildNumber()) + ")";
+        String description = "Build " + Long.toString(report.getBuildNumber()) + " "
+            + report.getState().toString() + " at " + df.format(now);
+        String url = getJenkinsUrl(repo, jt, report.getBuildNumber(), lc);
+        BuildStatus bs = new InternalBuildStatus(report.getState(), name, name, url,
+            description, now);
+        return bs;
+    }
+
+    private String getJenkinsUrl(Repository repo, JobTemplate jt,
+        long buildNumber, LookupContext lc) throws SQLException {
+        RepositoryConfiguration rc = lc.getRepositoryConfiguration(repo);
+        JenkinsServerConfiguration jsc = lc.getJenkinsServerConfiguration(rc);
+        String key = jt.getBuildNameFor(repo);
+        String url = jsc.getUrl() + "/job/" + key + "/"
+            + Long.toString(buildNumber);
+        return url;
+    }
+
+    private static JSONObject result(Exception e) throws JSONException {
+        JSONObject r = new JSONObject();
+        if (e == null) {
+            r.put("status", "ok");
+        } else {
+            r.put("status", "error");
+            r.put("message", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+        return r;
+    }
+
+    private static String bsToString(BuildStatus bs) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("[BuildStatus ");
+        sb.append("Name:'" + bs.getKey() + "' ");
+        sb.append("Type:'" + bs.getName() + "' ");
+        sb.append("State:'" + bs.getState().toString() + "']");
+        return sb.toString();
+    }
+}
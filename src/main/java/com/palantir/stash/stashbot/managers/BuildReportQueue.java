@@ -0,0 +1,220 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.stash.build.BuildStatus;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.BuildReportManager.BuildReport;
+import com.palantir.stash.stashbot.persistence.QueuedBuildReport;
+
+/**
+ * Persisted queue of build reports which are applied in the background, so jenkins doesn't have to wait for comments
+ * and metadata updates to finish before its callback returns.
+ * 
+ * Reports are spread over a fixed number of single threaded workers, chosen by pull request (or by commit for
+ * non-PR builds), so reports for the same pull request are always applied in the order they arrived. A report which
+ * fails is retried on the same worker, with backoff, before anything behind it runs; one which still fails after
+ * {@link #MAX_ATTEMPTS} stays in the table and is retried at the next start. Applying a report also deletes any older
+ * ones left in the table for the same commit, pull request and job type, so a report which failed is never replayed
+ * over a newer one.
+ */
+public class BuildReportQueue implements LifecycleAware, DisposableBean {
+
+    public static final int WORKERS = 4;
+    public static final int MAX_ATTEMPTS = 5;
+    // doubled after every failed attempt, so a report is given about half a minute before we give up on it
+    private static final long RETRY_DELAY_MILLIS = 2000;
+
+    private final ActiveObjects ao;
+    private final BuildReportManager buildReportManager;
+    private final Logger log;
+    private final List<ExecutorService> workers;
+    private final long retryDelayMillis;
+
+    // Until onStart() has replayed the table, new reports are only persisted, and the replay applies them in order
+    // with the rest. Otherwise a report could overtake older ones for the same pull request, or be applied twice.
+    private final Object startLock = new Object();
+    private volatile boolean started = false;
+
+    public BuildReportQueue(ActiveObjects ao, BuildReportManager buildReportManager, PluginLoggerFactory lf) {
+        this(ao, buildReportManager, createWorkers(), RETRY_DELAY_MILLIS, lf);
+    }
+
+    // for testing
+    BuildReportQueue(ActiveObjects ao, BuildReportManager buildReportManager, List<ExecutorService> workers,
+        long retryDelayMillis, PluginLoggerFactory lf) {
+        this.ao = ao;
+        this.buildReportManager = buildReportManager;
+        this.log = lf.getLoggerForThis(this);
+        this.workers = workers;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    private static List<ExecutorService> createWorkers() {
+        List<ExecutorService> workers = new ArrayList<ExecutorService>(WORKERS);
+        for (int i = 0; i < WORKERS; ++i) {
+            final String name = "stashbot-build-report-" + Integer.toString(i);
+            workers.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            }));
+        }
+        return workers;
+    }
+
+    /**
+     * Apply anything left over from before a restart, then start applying new reports as they arrive.
+     */
+    @Override
+    public void onStart() {
+        synchronized (startLock) {
+            QueuedBuildReport[] pending = ao.find(QueuedBuildReport.class, Query.select().order("ID ASC"));
+            if (pending.length > 0) {
+                log.info("Applying " + Integer.toString(pending.length) + " queued build reports");
+            }
+            for (QueuedBuildReport qbr : pending) {
+                submit(qbr.getID(), toReport(qbr));
+            }
+            started = true;
+        }
+    }
+
+    /**
+     * Persists a report and schedules it to be applied. Once this returns, the report will be applied even if the
+     * plugin restarts first.
+     */
+    public void enqueue(BuildReport report) {
+        if (!started) {
+            synchronized (startLock) {
+                if (!started) {
+                    // onStart() will find it in the table
+                    persist(report);
+                    return;
+                }
+            }
+        }
+        submit(persist(report).getID(), report);
+    }
+
+    private QueuedBuildReport persist(BuildReport report) {
+        return ao.create(QueuedBuildReport.class,
+            new DBParam("REPO_ID", report.getRepoId()),
+            new DBParam("JOB_TYPE", report.getType()),
+            new DBParam("STATE", report.getState().toString()),
+            new DBParam("BUILD_NUMBER", report.getBuildNumber()),
+            new DBParam("BUILD_HEAD", report.getBuildHead()),
+            new DBParam("MERGE_HEAD", report.getMergeHead()),
+            new DBParam("PULL_REQUEST_ID", report.getPullRequestId()));
+    }
+
+    private void submit(final int id, final BuildReport report) {
+        workers.get(workerFor(report)).submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (apply(report)) {
+                        ao.delete(ao.find(QueuedBuildReport.class, supersededBy(id, report)));
+                    }
+                } catch (InterruptedException e) {
+                    // shutting down, the report stays in the table for onStart()
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the report is done with, i.e. it was applied or can never be
+     */
+    private boolean apply(BuildReport report) throws InterruptedException {
+        String desc = "queued build report for repo " + Integer.toString(report.getRepoId()) + " build "
+            + Long.toString(report.getBuildNumber());
+        long delay = retryDelayMillis;
+        for (int attempt = 1;; ++attempt) {
+            try {
+                buildReportManager.report(report);
+                return true;
+            } catch (IllegalArgumentException e) {
+                // retrying won't help a report for something which no longer exists, so drop it
+                log.error("Dropping " + desc, e);
+                return true;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    log.error("Unable to apply " + desc + " after " + Integer.toString(attempt)
+                        + " attempts, leaving it queued until the next restart", e);
+                    return false;
+                }
+                log.warn("Unable to apply " + desc + ", retrying in " + Long.toString(delay) + "ms", e);
+            }
+            Thread.sleep(delay);
+            delay *= 2;
+        }
+    }
+
+    /**
+     * @return a query for the row with the given id and every older row it makes obsolete
+     */
+    private static Query supersededBy(int id, BuildReport report) {
+        if (report.isPullRequest()) {
+            return Query.select().where(
+                "ID <= ? AND REPO_ID = ? AND JOB_TYPE = ? AND BUILD_HEAD = ? AND PULL_REQUEST_ID = ?", id,
+                report.getRepoId(), report.getType(), report.getBuildHead(), report.getPullRequestId());
+        }
+        return Query.select().where(
+            "ID <= ? AND REPO_ID = ? AND JOB_TYPE = ? AND BUILD_HEAD = ? AND PULL_REQUEST_ID IS NULL", id,
+            report.getRepoId(), report.getType(), report.getBuildHead());
+    }
+
+    private static int workerFor(BuildReport report) {
+        int hash;
+        if (report.isPullRequest()) {
+            hash = (31 * report.getRepoId()) + report.getPullRequestId().hashCode();
+        } else {
+            hash = report.getBuildHead().hashCode();
+        }
+        return (hash & Integer.MAX_VALUE) % WORKERS;
+    }
+
+    private static BuildReport toReport(QueuedBuildReport qbr) {
+        return new BuildReport(qbr.getRepoId(), qbr.getJobType(), BuildStatus.State.fromString(qbr.getState()),
+            qbr.getBuildNumber(), qbr.getBuildHead(), qbr.getMergeHead(), qbr.getPullRequestId());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // anything not yet applied stays in the table and is picked up by onStart()
+        for (ExecutorService es : workers) {
+            es.shutdownNow();
+        }
+    }
+}
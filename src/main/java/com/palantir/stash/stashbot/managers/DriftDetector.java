@@ -0,0 +1,315 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.google.common.collect.ImmutableList;
+import com.offbytwo.jenkins.JenkinsServer;
+import com.offbytwo.jenkins.model.Job;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Periodically compares the jobs each repository should have with what exists on its jenkins server, and repairs the
+ * differences slowly in the background.
+ * 
+ * A job is MISSING if jenkins doesn't have it, and STALE if the XML we would generate for it today doesn't match the
+ * fingerprint of what we last sent. Edits made directly in jenkins are not detected, since that would mean fetching
+ * every job's config from jenkins; use force-reload-all for those.
+ * 
+ * A job whose fingerprint was recorded under an older {@link JobTemplateManager#JOB_XML_VERSION} is OUTDATED: the
+ * templates changed for every job, not just this one, so it is reported but left for an explicit reload-all rather
+ * than rewriting every job at once. A job with no fingerprint at all predates fingerprints, so we don't know what
+ * jenkins has; it is treated the same way. No fingerprint is recorded for it until its XML is actually pushed, so the
+ * next reload-all sends it.
+ */
+public class DriftDetector implements LifecycleAware, DisposableBean {
+
+    public static enum DriftKind {
+        MISSING, STALE, OUTDATED;
+    }
+
+    // minutes between scans, 0 disables scheduled scans
+    public static final String INTERVAL_PROPERTY = "stashbot.drift.intervalMinutes";
+    public static final long DEFAULT_INTERVAL_MINUTES = 360;
+    // if "false", only report drift, don't repair it
+    public static final String REPAIR_PROPERTY = "stashbot.drift.repair";
+    // pause between repairs so we never hammer jenkins
+    public static final long REPAIR_DELAY_MS = 2000;
+    public static final int PAGE_SIZE = 500;
+
+    private final RepositoryService repositoryService;
+    private final ConfigurationPersistenceService cpm;
+    private final JobTemplateManager jtm;
+    private final JenkinsJobXmlFormatter xmlFormatter;
+    private final JenkinsClientManager jenkinsClientManager;
+    private final JenkinsManager jenkinsManager;
+    private final SecurityService ss;
+    private final Logger log;
+    private final ScheduledExecutorService ses;
+    private final long repairDelayMs;
+    private final AtomicBoolean scanning = new AtomicBoolean(false);
+
+    private volatile JSONObject lastReport = null;
+
+    public DriftDetector(RepositoryService repositoryService, ConfigurationPersistenceService cpm,
+        JobTemplateManager jtm, JenkinsJobXmlFormatter xmlFormatter, JenkinsClientManager jenkinsClientManager,
+        JenkinsManager jenkinsManager, SecurityService ss, PluginLoggerFactory lf) {
+        this(repositoryService, cpm, jtm, xmlFormatter, jenkinsClientManager, jenkinsManager, ss, REPAIR_DELAY_MS, lf);
+    }
+
+    // for testing
+    DriftDetector(RepositoryService repositoryService, ConfigurationPersistenceService cpm, JobTemplateManager jtm,
+        JenkinsJobXmlFormatter xmlFormatter, JenkinsClientManager jenkinsClientManager, JenkinsManager jenkinsManager,
+        SecurityService ss, long repairDelayMs, PluginLoggerFactory lf) {
+        this.repositoryService = repositoryService;
+        this.cpm = cpm;
+        this.jtm = jtm;
+        this.xmlFormatter = xmlFormatter;
+        this.jenkinsClientManager = jenkinsClientManager;
+        this.jenkinsManager = jenkinsManager;
+        this.ss = ss;
+        this.repairDelayMs = repairDelayMs;
+        this.log = lf.getLoggerForThis(this);
+        this.ses = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stashbot-drift-detector");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void onStart() {
+        long interval = Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MINUTES);
+        if (interval <= 0) {
+            log.info("Scheduled drift detection disabled");
+            return;
+        }
+        ses.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                scan();
+            }
+        }, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Schedules a scan to run as soon as possible.
+     */
+    public void scanNow() {
+        ses.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+    }
+
+    /**
+     * @return the result of the most recent scan, or null if none has run yet
+     */
+    public JSONObject getLastReport() {
+        return lastReport;
+    }
+
+    // package-private for testing
+    void scan() {
+        if (!scanning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final JSONObject report = new JSONObject();
+            report.put("startedAt", System.currentTimeMillis());
+            final JSONArray drift = new JSONArray();
+            ss.withPermission(Permission.REPO_READ, "STASHBOT DRIFT DETECTION").call(
+                new Operation<Void, Exception>() {
+
+                    @Override
+                    public Void perform() throws Exception {
+                        scanAll(drift);
+                        return null;
+                    }
+                });
+            report.put("finishedAt", System.currentTimeMillis());
+            report.put("drift", drift);
+            lastReport = report;
+            log.info("Drift scan found " + drift.length() + " jobs out of sync");
+            int outdated = 0;
+            for (int i = 0; i < drift.length(); ++i) {
+                if (DriftKind.OUTDATED.toString().equals(drift.getJSONObject(i).getString("drift"))) {
+                    ++outdated;
+                }
+            }
+            if (outdated > 0) {
+                log.warn(outdated + " jobs were generated by an older version of the job templates, or before their"
+                    + " XML was tracked, and have not been updated, use reload-all to update them");
+            }
+        } catch (Exception e) {
+            log.error("Drift scan failed", e);
+        } finally {
+            scanning.set(false);
+        }
+    }
+
+    private void scanAll(JSONArray drift) throws Exception {
+        boolean repair = !"false".equals(System.getProperty(REPAIR_PROPERTY));
+        // job lists, fetched once per server per scan
+        Map<String, Map<String, Job>> serverJobs = new HashMap<String, Map<String, Job>>();
+        Map<String, JenkinsServer> servers = new HashMap<String, JenkinsServer>();
+        // servers whose job list couldn't be fetched, their repos are skipped for the rest of the scan
+        Set<String> failedServers = new HashSet<String>();
+
+        PageRequest pageReq = new PageRequestImpl(0, PAGE_SIZE);
+        while (true) {
+            Page<? extends Repository> p = repositoryService.findAll(pageReq);
+            for (Repository r : p.getValues()) {
+                try {
+                    RepositoryConfiguration rc = cpm.getRepositoryConfigurationForRepository(r);
+                    if (!rc.getCiEnabled()) {
+                        continue;
+                    }
+                    String serverName = rc.getJenkinsServerName();
+                    if (failedServers.contains(serverName)) {
+                        continue;
+                    }
+                    if (!servers.containsKey(serverName)) {
+                        try {
+                            JenkinsServerConfiguration jsc = cpm.getJenkinsServerConfiguration(serverName);
+                            JenkinsServer js = jenkinsClientManager.getJenkinsServer(jsc, rc);
+                            Map<String, Job> jobs = js.getJobs();
+                            servers.put(serverName, js);
+                            serverJobs.put(serverName, jobs);
+                        } catch (Exception e) {
+                            log.error("Drift detection skipped all repos on jenkins server " + serverName
+                                + ", could not fetch its jobs", e);
+                            failedServers.add(serverName);
+                            continue;
+                        }
+                    }
+                    JenkinsServer js = servers.get(serverName);
+                    Map<String, Job> jobs = serverJobs.get(serverName);
+
+                    LookupContext lc = new LookupContext(cpm, jtm).withRepositoryConfiguration(r, rc);
+                    for (JobTemplate jt : findDrift(r, rc, jobs, drift, lc)) {
+                        if (!repair) {
+                            continue;
+                        }
+                        Thread.sleep(repairDelayMs);
+                        jenkinsManager.createOrUpdateJob(r, rc, js, jobs, jt, false, false, lc);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    log.error("Drift detection failed for repo " + r.toString(), e);
+                }
+            }
+            if (p.getIsLastPage()) {
+                break;
+            }
+            pageReq = p.getNextPageRequest();
+        }
+    }
+
+    /**
+     * Adds an entry to drift for every job which is out of sync.
+     * 
+     * @return the templates of the jobs which should be repaired
+     */
+    private List<JobTemplate> findDrift(Repository r, RepositoryConfiguration rc, Map<String, Job> jobs,
+        JSONArray drift, LookupContext lc) throws Exception {
+        List<JobTemplate> drifted = new ArrayList<JobTemplate>();
+        for (JobTemplate jt : lc.getJenkinsJobsForRepository(rc)) {
+            String jobName = jt.getBuildNameFor(r);
+            DriftKind kind = null;
+            if (!jobs.containsKey(jobName)) {
+                kind = DriftKind.MISSING;
+            } else if (!rc.getPreserveJenkinsJobConfig()) {
+                String fingerprint = JobTemplateManager.fingerprintXml(xmlFormatter.generateJobXml(jt, r, lc));
+                String recorded = jtm.getJobFingerprint(rc, jt);
+                if (recorded == null) {
+                    kind = DriftKind.OUTDATED;
+                } else if (!fingerprint.equals(recorded)) {
+                    Integer version = jtm.getJobFingerprintVersion(rc, jt);
+                    if (version != null && version < JobTemplateManager.JOB_XML_VERSION) {
+                        kind = DriftKind.OUTDATED;
+                    } else {
+                        kind = DriftKind.STALE;
+                    }
+                }
+            }
+            if (kind != null) {
+                drift.put(toJson(r, rc, jobName, kind));
+                if (kind != DriftKind.OUTDATED) {
+                    drifted.add(jt);
+                }
+            }
+        }
+        return ImmutableList.copyOf(drifted);
+    }
+
+    private JSONObject toJson(Repository r, RepositoryConfiguration rc, String jobName, DriftKind kind)
+        throws JSONException {
+        JSONObject entry = new JSONObject();
+        entry.put("repoId", r.getId());
+        entry.put("repository", r.getProject().getKey() + "/" + r.getSlug());
+        entry.put("jenkinsServer", rc.getJenkinsServerName());
+        entry.put("job", jobName);
+        entry.put("drift", kind.toString());
+        return entry;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        ses.shutdownNow();
+    }
+}
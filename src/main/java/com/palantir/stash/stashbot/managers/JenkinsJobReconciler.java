@@ -0,0 +1,287 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.offbytwo.jenkins.JenkinsServer;
+import com.offbytwo.jenkins.model.Job;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.JenkinsManager.JobUpdateResult;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Brings the jobs on every jenkins server in line with the configuration of every repository.
+ * 
+ * Repositories are grouped by the jenkins server they build on. Each server's job list is fetched once per run, and
+ * each server gets its own small thread pool so a slow server can't starve the others or be flooded by us. All threads
+ * are released when the run finishes.
+ */
+public class JenkinsJobReconciler {
+
+    public static enum ReconcileMode {
+        // create jobs which don't exist, leave existing ones alone
+        CREATE_MISSING,
+        // create missing jobs, update jobs whose XML changed
+        UPDATE_ALL,
+        // create missing jobs, update every job
+        FORCE_UPDATE_ALL;
+    }
+
+    public static final int PAGE_SIZE = 500;
+    public static final int MAX_CONCURRENT_PER_SERVER = 4;
+
+    private final RepositoryService repositoryService;
+    private final ConfigurationPersistenceService cpm;
+    private final JobTemplateManager jtm;
+    private final JenkinsManager jenkinsManager;
+    private final JenkinsClientManager jenkinsClientManager;
+    private final Logger log;
+
+    public JenkinsJobReconciler(RepositoryService repositoryService, ConfigurationPersistenceService cpm,
+        JobTemplateManager jtm, JenkinsManager jenkinsManager, JenkinsClientManager jenkinsClientManager,
+        PluginLoggerFactory lf) {
+        this.repositoryService = repositoryService;
+        this.cpm = cpm;
+        this.jtm = jtm;
+        this.jenkinsManager = jenkinsManager;
+        this.jenkinsClientManager = jenkinsClientManager;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    /**
+     * Reconciles every repository, blocking until done.
+     */
+    public ReconcileStats reconcile(ReconcileMode mode) {
+        ReconcileRun run = startRun(mode);
+        try {
+            PageRequest pageReq = new PageRequestImpl(0, PAGE_SIZE);
+            while (true) {
+                Page<? extends Repository> p = repositoryService.findAll(pageReq);
+                run.reconcile(p.getValues());
+                if (p.getIsLastPage()) {
+                    break;
+                }
+                pageReq = p.getNextPageRequest();
+            }
+        } finally {
+            run.close();
+        }
+        log.info("Reconciliation (" + mode.toString() + ") finished: " + run.getStats().toString());
+        return run.getStats();
+    }
+
+    /**
+     * Starts a run which callers feed repositories to themselves. The run must be closed to release its threads.
+     */
+    public ReconcileRun startRun(ReconcileMode mode) {
+        return new ReconcileRun(mode, new ReconcileStats());
+    }
+
+    /**
+     * Counters for a reconciliation run, safe to read while the run is in progress.
+     */
+    public static class ReconcileStats {
+
+        public final AtomicInteger reposProcessed = new AtomicInteger();
+        public final AtomicInteger jobsCreated = new AtomicInteger();
+        public final AtomicInteger jobsUpdated = new AtomicInteger();
+        public final AtomicInteger jobsSkipped = new AtomicInteger();
+        public final AtomicInteger errors = new AtomicInteger();
+
+        void record(JobUpdateResult result) {
+            switch (result) {
+            case CREATED:
+                jobsCreated.incrementAndGet();
+                break;
+            case UPDATED:
+                jobsUpdated.incrementAndGet();
+                break;
+            default:
+                jobsSkipped.incrementAndGet();
+                break;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "repos: " + reposProcessed.get() + " created: " + jobsCreated.get() + " updated: "
+                + jobsUpdated.get() + " skipped: " + jobsSkipped.get() + " errors: " + errors.get();
+        }
+    }
+
+    /**
+     * A single reconciliation pass. Holds the per-server job lists and thread pools.
+     */
+    public class ReconcileRun {
+
+        private final ReconcileMode mode;
+        private final ReconcileStats stats;
+        private final Map<String, ServerState> servers;
+
+        private volatile boolean stopped = false;
+
+        ReconcileRun(ReconcileMode mode, ReconcileStats stats) {
+            this.mode = mode;
+            this.stats = stats;
+            this.servers = new HashMap<String, ServerState>();
+        }
+
+        public ReconcileStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Reconciles the given repositories, returning once all of them are done or the run is stopped.
+         * 
+         * @return ids of the repositories which were processed, successfully or not. Unless the run was stopped this is
+         *         all of them.
+         */
+        public Set<Integer> reconcile(Iterable<? extends Repository> repos) {
+            final Set<Integer> processed = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            List<Future<Void>> futures = new LinkedList<Future<Void>>();
+            for (final Repository r : repos) {
+                if (stopped) {
+                    break;
+                }
+                final RepositoryConfiguration rc;
+                final ServerState server;
+                try {
+                    rc = cpm.getRepositoryConfigurationForRepository(r);
+                    if (!rc.getCiEnabled()) {
+                        stats.reposProcessed.incrementAndGet();
+                        processed.add(r.getId());
+                        continue;
+                    }
+                    server = getServer(rc);
+                } catch (Exception e) {
+                    log.error("Exception while attempting to reconcile jobs for repo " + r.toString(), e);
+                    stats.errors.incrementAndGet();
+                    stats.reposProcessed.incrementAndGet();
+                    processed.add(r.getId());
+                    continue;
+                }
+                futures.add(server.pool.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        if (stopped) {
+                            return null;
+                        }
+                        try {
+                            reconcileRepo(r, rc, server);
+                        } finally {
+                            stats.reposProcessed.incrementAndGet();
+                            processed.add(r.getId());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get(); // don't care about return, just catch exceptions
+                } catch (ExecutionException e) {
+                    log.error("Exception while attempting to reconcile jobs for a repo: ", e);
+                    stats.errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while reconciling jobs", e);
+                }
+            }
+            return processed;
+        }
+
+        /**
+         * Makes {@link #reconcile(Iterable)} skip any repository it hasn't started on yet, so it returns as soon as the
+         * ones in progress are done. Can be called from any thread.
+         */
+        public void stop() {
+            stopped = true;
+        }
+
+        /**
+         * Releases all threads held by this run.
+         */
+        public void close() {
+            for (ServerState server : servers.values()) {
+                server.pool.shutdownNow();
+            }
+            servers.clear();
+        }
+
+        private ServerState getServer(RepositoryConfiguration rc) throws Exception {
+            String name = rc.getJenkinsServerName();
+            ServerState server = servers.get(name);
+            if (server == null) {
+                JenkinsServerConfiguration jsc = cpm.getJenkinsServerConfiguration(name);
+                server = new ServerState(jenkinsClientManager.getJenkinsServer(jsc, rc));
+                servers.put(name, server);
+            }
+            return server;
+        }
+
+        private void reconcileRepo(Repository r, RepositoryConfiguration rc, ServerState server) throws Exception {
+            Map<String, Job> jobs = server.getJobs(jenkinsManager);
+            for (JobTemplate jobTemplate : jtm.getJenkinsJobsForRepository(rc)) {
+                JobUpdateResult result = jenkinsManager.createOrUpdateJob(r, rc, server.jenkinsServer, jobs,
+                    jobTemplate, mode == ReconcileMode.CREATE_MISSING, mode == ReconcileMode.FORCE_UPDATE_ALL);
+                stats.record(result);
+            }
+        }
+    }
+
+    private static class ServerState {
+
+        private final JenkinsServer jenkinsServer;
+        private final ExecutorService pool;
+        private Map<String, Job> jobs;
+
+        ServerState(JenkinsServer jenkinsServer) {
+            this.jenkinsServer = jenkinsServer;
+            this.pool = Executors.newFixedThreadPool(MAX_CONCURRENT_PER_SERVER);
+        }
+
+        // fetched lazily, once, by whichever worker gets there first
+        synchronized Map<String, Job> getJobs(JenkinsManager jenkinsManager) throws Exception {
+            if (jobs == null) {
+                jobs = jenkinsManager.getJobs(jenkinsServer);
+            }
+            return jobs;
+        }
+    }
+}
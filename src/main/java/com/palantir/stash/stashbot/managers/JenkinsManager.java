@@ -16,39 +16,33 @@ package com.palantir.stash.stashbot.managers;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.HttpResponseException;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.DisposableBean;
 
-import com.atlassian.sal.api.user.UserManager;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.executor.ThreadLocalDelegateExecutorFactory;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.repository.Repository;
-import com.atlassian.stash.repository.RepositoryService;
-import com.atlassian.stash.user.SecurityService;
-import com.atlassian.stash.user.StashUser;
-import com.atlassian.stash.user.UserService;
-import com.atlassian.stash.util.Operation;
-import com.atlassian.stash.util.Page;
-import com.atlassian.stash.util.PageRequest;
-import com.atlassian.stash.util.PageRequestImpl;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.offbytwo.jenkins.JenkinsServer;
 import com.offbytwo.jenkins.model.Job;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.event.StashbotBuildTriggeredEvent;
+import com.palantir.stash.stashbot.event.StashbotBuildTriggeredEvent.Phase;
 import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
 import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.Counter;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
@@ -60,38 +54,55 @@ public class JenkinsManager implements DisposableBean {
     private final JobTemplateManager jtm;
     private final JenkinsJobXmlFormatter xmlFormatter;
     private final JenkinsClientManager jenkinsClientManager;
-    private final RepositoryService repositoryService;
     private final StashbotUrlBuilder sub;
     private final Logger log;
-    private final PluginLoggerFactory lf;
-    private final SecurityService ss;
-    private final UserService us;
-    private final UserManager um;
+    private final EventPublisher publisher;
+    private final MetricsRegistry metrics;
+    private final TriggerLatencyTracker latencyTracker;
+    private final Counter queueDepth;
     private final ExecutorService es;
 
-    public JenkinsManager(RepositoryService repositoryService,
-        ConfigurationPersistenceService cpm, JobTemplateManager jtm, JenkinsJobXmlFormatter xmlFormatter,
-        JenkinsClientManager jenkisnClientManager, StashbotUrlBuilder sub, PluginLoggerFactory lf, SecurityService ss,
-        UserService us, UserManager um) {
-        this.repositoryService = repositoryService;
+    public JenkinsManager(ConfigurationPersistenceService cpm, JobTemplateManager jtm, JenkinsJobXmlFormatter xmlFormatter,
+        JenkinsClientManager jenkisnClientManager, StashbotUrlBuilder sub, PluginLoggerFactory lf,
+        ThreadLocalDelegateExecutorFactory tldef, EventPublisher publisher, MetricsRegistry metrics,
+        TriggerLatencyTracker latencyTracker) {
         this.cpm = cpm;
         this.jtm = jtm;
         this.xmlFormatter = xmlFormatter;
         this.jenkinsClientManager = jenkisnClientManager;
         this.sub = sub;
-        this.lf = lf;
         this.log = lf.getLoggerForThis(this);
-        this.ss = ss;
-        this.us = us;
-        this.um = um;
-        this.es = Executors.newCachedThreadPool();
+        this.publisher = publisher;
+        this.metrics = metrics;
+        this.latencyTracker = latencyTracker;
+        this.queueDepth = metrics.counter("jenkins.trigger.queueDepth");
+        // tasks run with the security context of whoever submitted them, so builds are still triggered as that user
+        this.es = tldef.createExecutorService(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Outcome of reconciling a single job with jenkins
+     */
+    public static enum JobUpdateResult {
+        CREATED, UPDATED, UNCHANGED, PRESERVED, EXISTS;
     }
 
     public void updateRepo(Repository repo) {
         try {
-            Callable<Void> visit = new UpdateAllRepositoryVisitor(
-                jenkinsClientManager, jtm, cpm, repo, lf);
-            visit.call();
+            final LookupContext lc = new LookupContext(cpm, jtm);
+            final RepositoryConfiguration rc = lc.getRepositoryConfiguration(repo);
+            if (!rc.getCiEnabled()) {
+                return;
+            }
+            final JenkinsServerConfiguration jsc = lc.getJenkinsServerConfiguration(rc);
+            final JenkinsServer jenkinsServer = jenkinsClientManager
+                .getJenkinsServer(jsc, rc);
+            Map<String, Job> jobMap = getJobs(jenkinsServer);
+
+            // make sure jobs are up to date
+            for (JobTemplate jobTemplate : lc.getJenkinsJobsForRepository(rc)) {
+                createOrUpdateJob(repo, rc, jenkinsServer, jobMap, jobTemplate, false, false, lc);
+            }
         } catch (Exception e) {
             log.error(
                 "Exception while attempting to create missing jobs for a repo: ",
@@ -112,17 +123,14 @@ public class JenkinsManager implements DisposableBean {
             // If we try to create a job which already exists, we still get a
             // 200... so we should check first to make
             // sure it doesn't already exist
-            Map<String, Job> jobMap = jenkinsServer.getJobs();
+            Map<String, Job> jobMap = getJobs(jenkinsServer);
 
             if (jobMap.containsKey(jobName)) {
                 throw new IllegalArgumentException("Job " + jobName
                     + " already exists");
             }
 
-            String xml = xmlFormatter.generateJobXml(jobTemplate, repo);
-
-            log.trace("Sending XML to jenkins to create job: " + xml);
-            jenkinsServer.createJob(jobName, xml);
+            createOrUpdateJob(repo, rc, jenkinsServer, jobMap, jobTemplate, true, false);
         } catch (IOException e) {
             // TODO: something other than just rethrow?
             throw new RuntimeException(e);
@@ -133,14 +141,26 @@ public class JenkinsManager implements DisposableBean {
         }
     }
 
+    /**
+     * This method IGNORES the current job XML, and regenerates it from scratch, and posts it if it differs from what we
+     * last posted. If any changes were made to the job directly via jenkins UI, this will not notice them.
+     * 
+     * @param repo
+     * @param buildType
+     */
+    public void updateJob(Repository repo, JobTemplate jobTemplate) {
+        updateJob(repo, jobTemplate, false);
+    }
+
     /**
      * This method IGNORES the current job XML, and regenerates it from scratch, and posts it. If any changes were made
      * to the job directly via jenkins UI, this will overwrite those changes.
      * 
      * @param repo
      * @param buildType
+     * @param force if false, skip posting the job when the XML is identical to what was last posted
      */
-    public void updateJob(Repository repo, JobTemplate jobTemplate) {
+    public void updateJob(Repository repo, JobTemplate jobTemplate, boolean force) {
         try {
             final RepositoryConfiguration rc = cpm
                 .getRepositoryConfigurationForRepository(repo);
@@ -148,27 +168,13 @@ public class JenkinsManager implements DisposableBean {
                 .getJenkinsServerConfiguration(rc.getJenkinsServerName());
             final JenkinsServer jenkinsServer = jenkinsClientManager
                 .getJenkinsServer(jsc, rc);
-            final String jobName = jobTemplate.getBuildNameFor(repo);
 
             // If we try to create a job which already exists, we still get a
             // 200... so we should check first to make
             // sure it doesn't already exist
-            Map<String, Job> jobMap = jenkinsServer.getJobs();
-
-            String xml = xmlFormatter.generateJobXml(jobTemplate, repo);
+            Map<String, Job> jobMap = getJobs(jenkinsServer);
 
-            if (jobMap.containsKey(jobName)) {
-                if (!rc.getPreserveJenkinsJobConfig()) {
-                    log.trace("Sending XML to jenkins to update job: " + xml);
-                    jenkinsServer.updateJob(jobName, xml);
-                } else {
-                    log.trace("Skipping sending XML to jenkins. Repo Config is set to preserve jenkins job config.");
-                }
-                return;
-            }
-
-            log.trace("Sending XML to jenkins to create job: " + xml);
-            jenkinsServer.createJob(jobName, xml);
+            createOrUpdateJob(repo, rc, jenkinsServer, jobMap, jobTemplate, false, force);
         } catch (IOException e) {
             // TODO: something other than just rethrow?
             throw new RuntimeException(e);
@@ -179,63 +185,104 @@ public class JenkinsManager implements DisposableBean {
         }
     }
 
+    /**
+     * Creates or updates a single job given a job list already fetched from the repository's jenkins server, so callers
+     * touching many jobs on one server only need to ask for the list once.
+     * 
+     * @param jobMap jobs known to exist on jenkinsServer
+     * @param createOnly if true, never update an existing job
+     * @param force if false, skip posting the job when the XML is identical to what was last posted
+     */
+    public JobUpdateResult createOrUpdateJob(Repository repo, RepositoryConfiguration rc, JenkinsServer jenkinsServer,
+        Map<String, Job> jobMap, JobTemplate jobTemplate, boolean createOnly, boolean force) throws IOException,
+        SQLException {
+        return createOrUpdateJob(repo, rc, jenkinsServer, jobMap, jobTemplate, createOnly, force,
+            new LookupContext(cpm, jtm).withRepositoryConfiguration(repo, rc));
+    }
+
+    /**
+     * Same as above, but reuses configuration already loaded into lc.
+     */
+    public JobUpdateResult createOrUpdateJob(Repository repo, RepositoryConfiguration rc, JenkinsServer jenkinsServer,
+        Map<String, Job> jobMap, JobTemplate jobTemplate, boolean createOnly, boolean force, LookupContext lc)
+        throws IOException, SQLException {
+        final String jobName = jobTemplate.getBuildNameFor(repo);
+
+        if (jobMap.containsKey(jobName)) {
+            if (createOnly) {
+                return JobUpdateResult.EXISTS;
+            }
+            if (rc.getPreserveJenkinsJobConfig()) {
+                log.trace("Skipping sending XML to jenkins. Repo Config is set to preserve jenkins job config.");
+                return JobUpdateResult.PRESERVED;
+            }
+            String xml = xmlFormatter.generateJobXml(jobTemplate, repo, lc);
+            String fingerprint = JobTemplateManager.fingerprintXml(xml);
+            if (!force && fingerprint.equals(jtm.getJobFingerprint(rc, jobTemplate))) {
+                log.trace("Skipping sending XML to jenkins. Job {} is unchanged.", jobName);
+                return JobUpdateResult.UNCHANGED;
+            }
+            log.info("Updating {} job for repo {}", jobTemplate.getName(), repo);
+            log.trace("Sending XML to jenkins to update job: {}", xml);
+            updateJob(jenkinsServer, jobName, xml);
+            jtm.setJobFingerprint(rc, jobTemplate, fingerprint);
+            return JobUpdateResult.UPDATED;
+        }
+
+        String xml = xmlFormatter.generateJobXml(jobTemplate, repo, lc);
+        log.info("Creating {} job for repo {}", jobTemplate.getName(), repo);
+        log.trace("Sending XML to jenkins to create job: {}", xml);
+        createJob(jenkinsServer, jobName, xml);
+        jtm.setJobFingerprint(rc, jobTemplate, JobTemplateManager.fingerprintXml(xml));
+        return JobUpdateResult.CREATED;
+    }
+
     public void triggerBuild(final Repository repo, final JobType jobType,
         final String hashToBuild, final String buildRef) {
 
-        final String username = um.getRemoteUser().getUsername();
-        final StashUser su = us.findUserByNameOrEmail(username);
-
-        es.submit(new Callable<Void>() {
+        final String triggerId = latencyTracker.newTriggerId();
+        triggered(Phase.QUEUED, repo, jobType, hashToBuild, null);
+        submit(new Runnable() {
 
             @Override
-            public Void call() throws Exception {
-                // TODO: See if we can do something like StateTransferringExecutorService here instead
-                ss.impersonating(su, "Running as user '" + username + "' in alternate thread asynchronously")
-                    .call(new Operation<Void, Exception>() {
-
-                        @Override
-                        public Void perform() throws Exception {
-                            synchronousTriggerBuild(repo, jobType, hashToBuild, buildRef);
-                            return null;
-                        }
-                    });
-                return null;
-            };
+            public void run() {
+                synchronousTriggerBuild(repo, jobType, hashToBuild, buildRef, triggerId);
+            }
         });
     }
 
     public void triggerBuild(final Repository repo, final JobType jobType,
         final PullRequest pr) {
 
-        final String username = um.getRemoteUser().getUsername();
-        final StashUser su = us.findUserByNameOrEmail(username);
-
-        es.submit(new Callable<Void>() {
+        final String triggerId = latencyTracker.newTriggerId();
+        triggered(Phase.QUEUED, repo, jobType, pr.getToRef().getLatestChangeset(), pr.getId());
+        submit(new Runnable() {
 
             @Override
-            public Void call() throws Exception {
-                // TODO: See if we can do something like StateTransferringExecutorService here instead
-                ss.impersonating(su, "Running as user '" + username + "' in alternate thread asynchronously")
-                    .call(new Operation<Void, Exception>() {
-
-                        @Override
-                        public Void perform() throws Exception {
-                            synchronousTriggerBuild(repo, jobType, pr);
-                            return null;
-                        }
-                    });
-                return null;
-            };
+            public void run() {
+                synchronousTriggerBuild(repo, jobType, pr, triggerId);
+            }
         });
     }
 
     public void synchronousTriggerBuild(Repository repo, JobType jobType,
         String hashToBuild, String buildRef) {
+        synchronousTriggerBuild(repo, jobType, hashToBuild, buildRef, latencyTracker.newTriggerId());
+    }
+
+    /**
+     * @param triggerId passed to jenkins so the build's reports can be matched up with this trigger, see
+     *            {@link TriggerLatencyTracker}
+     */
+    private void synchronousTriggerBuild(Repository repo, JobType jobType,
+        String hashToBuild, String buildRef, String triggerId) {
+        String jenkinsServerName = null;
         try {
             RepositoryConfiguration rc = cpm
                 .getRepositoryConfigurationForRepository(repo);
             JenkinsServerConfiguration jsc = cpm
                 .getJenkinsServerConfiguration(rc.getJenkinsServerName());
+            jenkinsServerName = jsc.getName();
             JobTemplate jt = jtm.getJobTemplate(jobType, rc);
 
             String jenkinsBuildId = jt.getBuildNameFor(repo);
@@ -249,7 +296,7 @@ public class JenkinsManager implements DisposableBean {
 
             final JenkinsServer js = jenkinsClientManager.getJenkinsServer(jsc,
                 rc);
-            Map<String, Job> jobMap = js.getJobs();
+            Map<String, Job> jobMap = getJobs(js);
             String key = jt.getBuildNameFor(repo);
 
             if (!jobMap.containsKey(key)) {
@@ -259,12 +306,14 @@ public class JenkinsManager implements DisposableBean {
             Builder<String, String> builder = ImmutableMap.builder();
             builder.put("buildHead", hashToBuild);
             builder.put("repoId", repo.getId().toString());
+            builder.put("triggerId", triggerId);
             if (buildRef != null) {
                 builder.put("buildRef", buildRef);
             }
 
-            jobMap.get(key).build(builder.build());
-
+            build(jobMap.get(key), builder.build());
+            latencyTracker.dispatched(triggerId, repo.getId(), jenkinsServerName);
+            triggered(Phase.DISPATCHED, repo, jobType, hashToBuild, null);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         } catch (URISyntaxException e) {
@@ -275,6 +324,8 @@ public class JenkinsManager implements DisposableBean {
                 // BUG in client - this isn't really an error, assume the build
                 // triggered ok and this is just a redirect
                 // to some URL after the fact.
+                latencyTracker.dispatched(triggerId, repo.getId(), jenkinsServerName);
+                triggered(Phase.DISPATCHED, repo, jobType, hashToBuild, null);
                 return;
             }
             // For other HTTP errors, log it for easier debugging
@@ -289,15 +340,22 @@ public class JenkinsManager implements DisposableBean {
 
     public void synchronousTriggerBuild(Repository repo, JobType jobType,
         PullRequest pullRequest) {
+        synchronousTriggerBuild(repo, jobType, pullRequest, latencyTracker.newTriggerId());
+    }
+
+    private void synchronousTriggerBuild(Repository repo, JobType jobType,
+        PullRequest pullRequest, String triggerId) {
 
+        String hashToBuild = pullRequest.getToRef().getLatestChangeset();
+        String jenkinsServerName = null;
         try {
             String pullRequestId = pullRequest.getId().toString();
-            String hashToBuild = pullRequest.getToRef().getLatestChangeset();
 
             RepositoryConfiguration rc = cpm
                 .getRepositoryConfigurationForRepository(repo);
             JenkinsServerConfiguration jsc = cpm
                 .getJenkinsServerConfiguration(rc.getJenkinsServerName());
+            jenkinsServerName = jsc.getName();
             JobTemplate jt = jtm.getJobTemplate(jobType, rc);
 
             String jenkinsBuildId = jt.getBuildNameFor(repo);
@@ -311,7 +369,7 @@ public class JenkinsManager implements DisposableBean {
 
             final JenkinsServer js = jenkinsClientManager.getJenkinsServer(jsc,
                 rc);
-            Map<String, Job> jobMap = js.getJobs();
+            Map<String, Job> jobMap = getJobs(js);
             String key = jt.getBuildNameFor(repo);
 
             if (!jobMap.containsKey(key)) {
@@ -320,8 +378,9 @@ public class JenkinsManager implements DisposableBean {
 
             Builder<String, String> builder = ImmutableMap.builder();
             builder.put("repoId", repo.getId().toString());
+            builder.put("triggerId", triggerId);
             if (pullRequest != null) {
-                log.debug("Determined pullRequestId " + pullRequestId);
+                log.debug("Determined pullRequestId {}", pullRequestId);
                 builder.put("pullRequestId", pullRequestId);
                 // toRef is always present in the repo
                 builder.put("buildHead", pullRequest.getToRef()
@@ -334,7 +393,9 @@ public class JenkinsManager implements DisposableBean {
                     .getLatestChangeset().toString());
             }
 
-            jobMap.get(key).build(builder.build());
+            build(jobMap.get(key), builder.build());
+            latencyTracker.dispatched(triggerId, repo.getId(), jenkinsServerName);
+            triggered(Phase.DISPATCHED, repo, jobType, hashToBuild, pullRequest.getId());
         } catch (SQLException e) {
             throw new RuntimeException(e);
         } catch (URISyntaxException e) {
@@ -345,6 +406,8 @@ public class JenkinsManager implements DisposableBean {
                 // BUG in client - this isn't really an error, assume the build
                 // triggered ok and this is just a redirect
                 // to some URL after the fact.
+                latencyTracker.dispatched(triggerId, repo.getId(), jenkinsServerName);
+                triggered(Phase.DISPATCHED, repo, jobType, hashToBuild, pullRequest.getId());
                 return;
             }
             // For other HTTP errors, log it for easier debugging
@@ -358,171 +421,92 @@ public class JenkinsManager implements DisposableBean {
     }
 
     /**
-     * Code to ensure a given repository has plans that exist in jenkins.
-     * 
-     * @author cmyers
+     * Queues a trigger, keeping track of how many are waiting and how long they take from being queued to being done
      */
-    class CreateMissingRepositoryVisitor implements Callable<Void> {
-
-        private final JenkinsClientManager jcm;
-        private final JobTemplateManager jtm;
-        private final ConfigurationPersistenceService cpm;
-        private final Repository r;
-        private final Logger log;
-
-        public CreateMissingRepositoryVisitor(
-            JenkinsClientManager jcm, JobTemplateManager jtm,
-            ConfigurationPersistenceService cpm, Repository r,
-            PluginLoggerFactory lf) {
-            this.jcm = jcm;
-            this.jtm = jtm;
-            this.cpm = cpm;
-            this.r = r;
-            this.log = lf.getLoggerForThis(this);
-        }
+    private void submit(final Runnable trigger) {
+        final long queuedAt = System.nanoTime();
+        queueDepth.inc();
+        es.submit(new Runnable() {
 
-        @Override
-        public Void call() throws Exception {
-            RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(r);
-            // may someday require repo also...
-            JenkinsServerConfiguration jsc = cpm
-                .getJenkinsServerConfiguration(rc.getJenkinsServerName());
-
-            if (!rc.getCiEnabled())
-                return null;
-
-            // make sure jobs exist
-            List<JobTemplate> templates = jtm.getJenkinsJobsForRepository(rc);
-            JenkinsServer js = jcm.getJenkinsServer(jsc, rc);
-            Map<String, Job> jobs = js.getJobs();
-
-            for (JobTemplate template : templates) {
-                if (!jobs.containsKey(template.getBuildNameFor(r))) {
-                    log.info("Creating " + template.getName()
-                        + " job for repo " + r.toString());
-                    createJob(r, template);
+            @Override
+            public void run() {
+                queueDepth.dec();
+                metrics.timer("jenkins.trigger.queueWait").update(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                try {
+                    trigger.run();
+                } finally {
+                    metrics.timer("jenkins.trigger.dispatch").update(System.nanoTime() - queuedAt,
+                        TimeUnit.NANOSECONDS);
                 }
             }
-            return null;
-        }
+        });
     }
 
-    public void createMissingJobs() {
-
-        ExecutorService es = Executors.newCachedThreadPool();
-        List<Future<Void>> futures = new LinkedList<Future<Void>>();
-
-        PageRequest pageReq = new PageRequestImpl(0, 500);
-        Page<? extends Repository> p = repositoryService.findAll(pageReq);
-        while (true) {
-            for (Repository r : p.getValues()) {
-                Future<Void> f = es.submit(new CreateMissingRepositoryVisitor(
-                    jenkinsClientManager, jtm, cpm, r, lf));
-                futures.add(f);
-            }
-            if (p.getIsLastPage())
-                break;
-            pageReq = p.getNextPageRequest();
-            p = repositoryService.findAll(pageReq);
-        }
-        for (Future<Void> f : futures) {
-            try {
-                f.get(); // don't care about return, just catch exceptions
-            } catch (ExecutionException e) {
-                log.error(
-                    "Exception while attempting to create missing jobs for a repo: ",
-                    e);
-            } catch (InterruptedException e) {
-                log.error("Interrupted: this shouldn't happen", e);
-            }
-        }
-    }
+    // Wrappers around each kind of request we make to jenkins, so we know how long each takes and how it went
 
     /**
-     * Code to ensure a given repository has plans that exist in jenkins.
-     * 
-     * @author cmyers
+     * Fetches the job list from a jenkins server, recorded in the same request metrics as everything else we ask
+     * jenkins for.
      */
-    class UpdateAllRepositoryVisitor implements Callable<Void> {
-
-        private final JenkinsClientManager jcm;
-        private final JobTemplateManager jtm;
-        private final ConfigurationPersistenceService cpm;
-        private final Repository r;
-        private final Logger log;
-
-        public UpdateAllRepositoryVisitor(
-            JenkinsClientManager jcm, JobTemplateManager jtm,
-            ConfigurationPersistenceService cpm, Repository r,
-            PluginLoggerFactory lf) {
-            this.jcm = jcm;
-            this.jtm = jtm;
-            this.cpm = cpm;
-            this.r = r;
-            this.log = lf.getLoggerForThis(this);
-        }
-
-        @Override
-        public Void call() throws Exception {
-            RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(r);
-            // may someday require repo also...
-            JenkinsServerConfiguration jsc = cpm
-                .getJenkinsServerConfiguration(rc.getJenkinsServerName());
-
-            if (!rc.getCiEnabled())
-                return null;
-
-            // make sure jobs are up to date
-            List<JobTemplate> templates = jtm.getJenkinsJobsForRepository(rc);
-            JenkinsServer js = jcm.getJenkinsServer(jsc, rc);
+    public Map<String, Job> getJobs(JenkinsServer js) throws IOException {
+        long start = System.nanoTime();
+        try {
             Map<String, Job> jobs = js.getJobs();
-            for (JobTemplate jobTemplate : templates) {
-                if (!jobs.containsKey(jobTemplate.getBuildNameFor(r))) {
-                    log.info("Creating " + jobTemplate.getName()
-                        + " job for repo " + r.toString());
-                    createJob(r, jobTemplate);
-                } else {
-                    // update job
-                    log.info("Updating " + jobTemplate.getName()
-                        + " job for repo " + r.toString());
-                    updateJob(r, jobTemplate);
-                }
-            }
-            return null;
+            jenkinsRequest("getJobs", start, null);
+            return jobs;
+        } catch (IOException e) {
+            jenkinsRequest("getJobs", start, e);
+            throw e;
         }
     }
 
-    public void updateAllJobs() {
+    private void createJob(JenkinsServer js, String jobName, String xml) throws IOException {
+        long start = System.nanoTime();
+        try {
+            js.createJob(jobName, xml);
+            jenkinsRequest("createJob", start, null);
+        } catch (IOException e) {
+            jenkinsRequest("createJob", start, e);
+            throw e;
+        }
+    }
 
-        ExecutorService es = Executors.newCachedThreadPool();
-        List<Future<Void>> futures = new LinkedList<Future<Void>>();
+    private void updateJob(JenkinsServer js, String jobName, String xml) throws IOException {
+        long start = System.nanoTime();
+        try {
+            js.updateJob(jobName, xml);
+            jenkinsRequest("updateJob", start, null);
+        } catch (IOException e) {
+            jenkinsRequest("updateJob", start, e);
+            throw e;
+        }
+    }
 
-        PageRequest pageReq = new PageRequestImpl(0, 500);
-        Page<? extends Repository> p = repositoryService.findAll(pageReq);
-        while (true) {
-            for (Repository r : p.getValues()) {
-                Future<Void> f = es.submit(new UpdateAllRepositoryVisitor(
-                    jenkinsClientManager, jtm, cpm, r, lf));
-                futures.add(f);
-            }
-            if (p.getIsLastPage())
-                break;
-            pageReq = p.getNextPageRequest();
-            p = repositoryService.findAll(pageReq);
+    private void build(Job job, Map<String, String> params) throws IOException {
+        long start = System.nanoTime();
+        try {
+            job.build(params);
+            jenkinsRequest("build", start, null);
+        } catch (IOException e) {
+            jenkinsRequest("build", start, e);
+            throw e;
         }
-        for (Future<Void> f : futures) {
-            try {
-                f.get(); // don't care about return, just catch exceptions
-            } catch (ExecutionException e) {
-                log.error(
-                    "Exception while attempting to create missing jobs for a repo: ",
-                    e);
-            } catch (InterruptedException e) {
-                log.error("Interrupted: this shouldn't happen", e);
-            }
+    }
+
+    private void jenkinsRequest(String endpoint, long start, IOException e) {
+        String status = "ok";
+        if (e instanceof HttpResponseException) {
+            status = Integer.toString(((HttpResponseException) e).getStatusCode());
+        } else if (e != null) {
+            status = "error";
         }
+        metrics.timer("jenkins.http." + endpoint + "." + status).update(System.nanoTime() - start,
+            TimeUnit.NANOSECONDS);
+    }
+
+    private void triggered(Phase phase, Repository repo, JobType jobType, String buildHead, Long pullRequestId) {
+        publisher.publish(new StashbotBuildTriggeredEvent(this, phase, repo.getId(), jobType, buildHead,
+            pullRequestId));
     }
 
     @Override
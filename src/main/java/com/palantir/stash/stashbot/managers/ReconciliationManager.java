@@ -0,0 +1,316 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileMode;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileRun;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileStats;
+import com.palantir.stash.stashbot.persistence.ReconcileState;
+import com.palantir.stash.stashbot.persistence.ReconcileState.ReconcileStatus;
+
+/**
+ * Runs reconciliation in the background, one run at a time. Repositories are processed in id order and the id of the
+ * last one processed is saved after each batch, so a run interrupted by a restart picks up where it left off when the
+ * plugin starts again, even if repositories were created or deleted in the meantime.
+ */
+public class ReconciliationManager implements LifecycleAware, DisposableBean {
+
+    private final ActiveObjects ao;
+    private final RepositoryService repositoryService;
+    private final SecurityService ss;
+    private final JenkinsJobReconciler reconciler;
+    private final Logger log;
+    private final ExecutorService es;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean shuttingDown = false;
+    private volatile ReconcileStats liveStats = null;
+    private volatile ReconcileRun liveRun = null;
+    // for rate estimation, since a resumed run didn't do all of its work in this JVM
+    private volatile long runningSince = 0;
+    private volatile int doneAtStart = 0;
+
+    public ReconciliationManager(ActiveObjects ao, RepositoryService repositoryService, SecurityService ss,
+        JenkinsJobReconciler reconciler, PluginLoggerFactory lf) {
+        this(ao, repositoryService, ss, reconciler, Executors.newSingleThreadExecutor(), lf);
+    }
+
+    // for testing
+    ReconciliationManager(ActiveObjects ao, RepositoryService repositoryService, SecurityService ss,
+        JenkinsJobReconciler reconciler, ExecutorService es, PluginLoggerFactory lf) {
+        this.ao = ao;
+        this.repositoryService = repositoryService;
+        this.ss = ss;
+        this.reconciler = reconciler;
+        this.log = lf.getLoggerForThis(this);
+        this.es = es;
+    }
+
+    @Override
+    public void onStart() {
+        es.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                ReconcileState state = getState();
+                if (state != null && state.getStatus() == ReconcileStatus.RUNNING) {
+                    log.info("Resuming " + state.getMode().toString() + " reconciliation after repository "
+                        + state.getLastRepoId().toString());
+                    runReconciliation(state);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a background reconciliation.
+     * 
+     * @return false if one is already running
+     */
+    public synchronized boolean start(ReconcileMode mode) {
+        ReconcileState state = getState();
+        if (state != null && state.getStatus() == ReconcileStatus.RUNNING) {
+            return false;
+        }
+        for (ReconcileState old : ao.find(ReconcileState.class)) {
+            ao.delete(old);
+        }
+        long now = System.currentTimeMillis();
+        final ReconcileState newState = ao.create(ReconcileState.class, new DBParam("MODE", mode), new DBParam(
+            "STATUS", ReconcileStatus.RUNNING), new DBParam("STARTED_AT", now), new DBParam("UPDATED_AT", now));
+        cancelled = false;
+        es.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                runReconciliation(newState);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Asks the running reconciliation to stop once the repositories it is currently working on are done.
+     */
+    public void cancel() {
+        cancelled = true;
+        stopRun();
+    }
+
+    public JSONObject getStatus() throws JSONException {
+        JSONObject output = new JSONObject();
+        ReconcileState state = getState();
+        if (state == null) {
+            output.put("status", "NONE");
+            return output;
+        }
+        output.put("status", state.getStatus().toString());
+        output.put("mode", state.getMode().toString());
+        output.put("startedAt", state.getStartedAt());
+        output.put("updatedAt", state.getUpdatedAt());
+        output.put("reposTotal", state.getReposTotal());
+
+        ReconcileStats stats = liveStats;
+        if (state.getStatus() == ReconcileStatus.RUNNING && stats != null) {
+            // more current than what has been saved
+            int done = stats.reposProcessed.get();
+            output.put("reposDone", done);
+            output.put("jobsCreated", stats.jobsCreated.get());
+            output.put("jobsUpdated", stats.jobsUpdated.get());
+            output.put("jobsSkipped", stats.jobsSkipped.get());
+            output.put("errors", stats.errors.get());
+
+            long elapsed = System.currentTimeMillis() - runningSince;
+            int doneHere = done - doneAtStart;
+            if (doneHere > 0 && state.getReposTotal() > done) {
+                output.put("etaSeconds", (state.getReposTotal() - done) * elapsed / doneHere / 1000);
+            }
+        } else {
+            output.put("reposDone", state.getReposDone());
+            output.put("jobsCreated", state.getJobsCreated());
+            output.put("jobsUpdated", state.getJobsUpdated());
+            output.put("jobsSkipped", state.getJobsSkipped());
+            output.put("errors", state.getErrors());
+        }
+        return output;
+    }
+
+    private ReconcileState getState() {
+        ReconcileState[] states = ao.find(ReconcileState.class, Query.select().order("ID DESC").limit(1));
+        if (states.length == 0) {
+            return null;
+        }
+        return states[0];
+    }
+
+    private void runReconciliation(final ReconcileState state) {
+        final ReconcileRun run = reconciler.startRun(state.getMode());
+        final ReconcileStats stats = run.getStats();
+        stats.reposProcessed.set(state.getReposDone());
+        stats.jobsCreated.set(state.getJobsCreated());
+        stats.jobsUpdated.set(state.getJobsUpdated());
+        stats.jobsSkipped.set(state.getJobsSkipped());
+        stats.errors.set(state.getErrors());
+
+        liveStats = stats;
+        liveRun = run;
+        runningSince = System.currentTimeMillis();
+        doneAtStart = state.getReposDone();
+        if (cancelled || shuttingDown) {
+            // asked to stop before we got here
+            run.stop();
+        }
+
+        try {
+            ss.withPermission(Permission.REPO_READ, "STASHBOT RECONCILIATION").call(
+                new Operation<Void, Exception>() {
+
+                    @Override
+                    public Void perform() throws Exception {
+                        List<Integer> ids = listRepositoryIds();
+                        if (state.getReposTotal() == 0) {
+                            state.setReposTotal(ids.size());
+                            state.save();
+                        }
+                        int lastRepoId = state.getLastRepoId();
+                        int start = 0;
+                        while (start < ids.size() && ids.get(start) <= lastRepoId) {
+                            ++start;
+                        }
+                        for (; start < ids.size(); start += JenkinsJobReconciler.PAGE_SIZE) {
+                            List<Integer> batch =
+                                ids.subList(start, Math.min(start + JenkinsJobReconciler.PAGE_SIZE, ids.size()));
+                            List<Repository> repos = new ArrayList<Repository>(batch.size());
+                            Set<Integer> done = new HashSet<Integer>();
+                            for (Integer id : batch) {
+                                Repository r = repositoryService.getById(id);
+                                if (r != null) {
+                                    repos.add(r);
+                                } else {
+                                    // deleted since we listed them
+                                    done.add(id);
+                                }
+                            }
+                            done.addAll(run.reconcile(repos));
+                            // the cursor only moves past repositories which are done, so any skipped because we were
+                            // stopped are picked up on resume
+                            for (Integer id : batch) {
+                                if (!done.contains(id)) {
+                                    break;
+                                }
+                                lastRepoId = id;
+                            }
+                            if (shuttingDown) {
+                                // leave it RUNNING so it resumes from here on next start
+                                saveProgress(state, stats, lastRepoId, ReconcileStatus.RUNNING);
+                                return null;
+                            }
+                            if (cancelled) {
+                                saveProgress(state, stats, lastRepoId, ReconcileStatus.CANCELLED);
+                                return null;
+                            }
+                            saveProgress(state, stats, lastRepoId, ReconcileStatus.RUNNING);
+                        }
+                        saveProgress(state, stats, lastRepoId, ReconcileStatus.FINISHED);
+                        return null;
+                    }
+                });
+            log.info("Reconciliation (" + state.getMode().toString() + ") " + state.getStatus().toString() + ": "
+                + stats.toString());
+        } catch (Exception e) {
+            log.error("Reconciliation failed", e);
+            saveProgress(state, stats, state.getLastRepoId(), ReconcileStatus.FAILED);
+        } finally {
+            run.close();
+            liveRun = null;
+            liveStats = null;
+        }
+    }
+
+    private void stopRun() {
+        ReconcileRun run = liveRun;
+        if (run != null) {
+            run.stop();
+        }
+    }
+
+    private void saveProgress(ReconcileState state, ReconcileStats stats, int lastRepoId, ReconcileStatus status) {
+        state.setLastRepoId(lastRepoId);
+        state.setStatus(status);
+        state.setReposDone(stats.reposProcessed.get());
+        state.setJobsCreated(stats.jobsCreated.get());
+        state.setJobsUpdated(stats.jobsUpdated.get());
+        state.setJobsSkipped(stats.jobsSkipped.get());
+        state.setErrors(stats.errors.get());
+        state.setUpdatedAt(System.currentTimeMillis());
+        state.save();
+    }
+
+    /**
+     * @return ids of every repository, in ascending order
+     */
+    private List<Integer> listRepositoryIds() {
+        List<Integer> ids = new ArrayList<Integer>();
+        PageRequest pageReq = new PageRequestImpl(0, JenkinsJobReconciler.PAGE_SIZE);
+        while (true) {
+            Page<? extends Repository> p = repositoryService.findAll(pageReq);
+            for (Repository r : p.getValues()) {
+                ids.add(r.getId());
+            }
+            if (p.getIsLastPage()) {
+                break;
+            }
+            pageReq = p.getNextPageRequest();
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // stop once the repositories in progress are done, the saved cursor lets us resume on next start
+        shuttingDown = true;
+        stopRun();
+        es.shutdown();
+        es.awaitTermination(60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.user.UserCleanupEvent;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+
+/**
+ * Caches the StashUser objects we resolve by name, mostly the stashbot user of each jenkins server configuration which
+ * every pull request build report impersonates.
+ * 
+ * Deleted users are dropped when stash tells us about them, anything else (renames, email changes, etc.) is picked up
+ * once the entry expires.
+ */
+public class StashUserCache {
+
+    private static final long TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private final UserService us;
+    private final Logger log;
+    private final ConcurrentMap<String, CachedUser> users;
+
+    public StashUserCache(UserService us, PluginLoggerFactory lf) {
+        this.us = us;
+        this.log = lf.getLoggerForThis(this);
+        this.users = new ConcurrentHashMap<String, CachedUser>();
+    }
+
+    public StashUser getStashbotUser(JenkinsServerConfiguration jsc) {
+        return getUser(jsc.getStashUsername());
+    }
+
+    /**
+     * @return the user with the given name (or email), or null if there isn't one. Misses are not cached.
+     */
+    public StashUser getUser(String nameOrEmail) {
+        long now = System.currentTimeMillis();
+        CachedUser cached = users.get(nameOrEmail);
+        if (cached != null && cached.expires > now) {
+            return cached.user;
+        }
+        StashUser user = us.findUserByNameOrEmail(nameOrEmail);
+        if (user == null) {
+            users.remove(nameOrEmail);
+            return null;
+        }
+        users.put(nameOrEmail, new CachedUser(user, now + TTL_MS));
+        return user;
+    }
+
+    public void invalidate(String nameOrEmail) {
+        users.remove(nameOrEmail);
+    }
+
+    public void invalidateAll() {
+        users.clear();
+    }
+
+    @EventListener
+    public void onUserCleanup(UserCleanupEvent event) {
+        // entries may be keyed by name or email, so just start over - this is rare
+        log.debug("User deleted, clearing user cache");
+        invalidateAll();
+    }
+
+    private static class CachedUser {
+
+        private final StashUser user;
+        private final long expires;
+
+        public CachedUser(StashUser user, long expires) {
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+}
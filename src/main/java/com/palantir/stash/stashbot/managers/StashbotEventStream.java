@@ -0,0 +1,216 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.pull.PullRequest;
+import com.palantir.stash.stashbot.event.StashbotBuildTriggeredEvent;
+import com.palantir.stash.stashbot.event.StashbotMetadataUpdatedEvent;
+
+/**
+ * Keeps the most recent stashbot state changes (pull request build state and build triggers) in a ring buffer so that
+ * clients can wait for new ones instead of polling, and pick up where they left off after reconnecting.
+ * 
+ * Event ids start at the plugin start time (in microseconds), so ids handed out before a restart are recognized as
+ * unknown and the client is told to resync rather than silently missing events.
+ */
+public class StashbotEventStream implements DisposableBean {
+
+    private static final int CAPACITY = 2048;
+
+    private final StreamEvent[] buffer;
+    private final long firstId;
+    // guarded by this
+    private long nextId;
+    private boolean closed;
+
+    public StashbotEventStream() {
+        this.buffer = new StreamEvent[CAPACITY];
+        this.firstId = System.currentTimeMillis() * 1000;
+        this.nextId = firstId;
+        this.closed = false;
+    }
+
+    @EventListener
+    public void onMetadataUpdated(StashbotMetadataUpdatedEvent event) {
+        PullRequest pr = event.getPullRequest();
+        String type;
+        if (Boolean.TRUE.equals(event.getOverride())) {
+            type = "build-overridden";
+        } else if (Boolean.TRUE.equals(event.getFailed())) {
+            type = "build-failed";
+        } else if (Boolean.TRUE.equals(event.getSuccess())) {
+            type = "build-passed";
+        } else if (Boolean.TRUE.equals(event.getBuildStarted())) {
+            type = "build-started";
+        } else {
+            type = "build-updated";
+        }
+        append(new StreamEvent(type, pr.getToRef().getRepository().getId(), pr.getId(), null, event.getToSha(),
+            event.getFromSha()));
+    }
+
+    @EventListener
+    public void onBuildTriggered(StashbotBuildTriggeredEvent event) {
+        String type = event.getPhase() == StashbotBuildTriggeredEvent.Phase.QUEUED ? "trigger-queued"
+            : "trigger-dispatched";
+        append(new StreamEvent(type, event.getRepositoryId(), event.getPullRequestId(), event.getJobType().name(),
+            event.getBuildHead(), null));
+    }
+
+    public synchronized void append(StreamEvent event) {
+        event.id = nextId;
+        buffer[(int) (nextId % CAPACITY)] = event;
+        ++nextId;
+        notifyAll();
+    }
+
+    /**
+     * Waits up to timeoutMs for events after lastEventId which match the filters.
+     * 
+     * @param lastEventId the id of the last event the client saw, or null to only see events from now on
+     * @param repoId only events for this repository, or null for all
+     * @param pullRequestId only events for this pull request (of repoId), or null for all
+     */
+    public synchronized Result await(Long lastEventId, Integer repoId, Long pullRequestId, long timeoutMs)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long cursor = lastEventId == null ? nextId - 1 : lastEventId;
+        // we can only resume from ids we handed out and haven't overwritten yet
+        if (cursor < Math.max(firstId, nextId - CAPACITY) - 1 || cursor >= nextId) {
+            return new Result(new ArrayList<StreamEvent>(), nextId - 1, true);
+        }
+        while (true) {
+            if (cursor < nextId - CAPACITY - 1) {
+                // so many events arrived while we waited that some were overwritten
+                return new Result(new ArrayList<StreamEvent>(), nextId - 1, true);
+            }
+            List<StreamEvent> events = new ArrayList<StreamEvent>();
+            for (long id = cursor + 1; id < nextId; ++id) {
+                StreamEvent e = buffer[(int) (id % CAPACITY)];
+                if (e.matches(repoId, pullRequestId)) {
+                    events.add(e);
+                }
+            }
+            cursor = nextId - 1;
+            long remaining = deadline - System.currentTimeMillis();
+            if (!events.isEmpty() || remaining <= 0 || closed) {
+                return new Result(events, cursor, false);
+            }
+            wait(remaining);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        // let anyone waiting go so their requests can finish
+        closed = true;
+        notifyAll();
+    }
+
+    public static class StreamEvent {
+
+        private long id;
+        private final String type;
+        private final int repoId;
+        private final Long pullRequestId;
+        private final String jobType;
+        private final String buildHead;
+        private final String mergeHead;
+
+        public StreamEvent(String type, int repoId, Long pullRequestId, String jobType, String buildHead,
+            String mergeHead) {
+            this.type = type;
+            this.repoId = repoId;
+            this.pullRequestId = pullRequestId;
+            this.jobType = jobType;
+            this.buildHead = buildHead;
+            this.mergeHead = mergeHead;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        private boolean matches(Integer repoId, Long pullRequestId) {
+            if (repoId != null && repoId != this.repoId) {
+                return false;
+            }
+            return pullRequestId == null || pullRequestId.equals(this.pullRequestId);
+        }
+
+        public void write(JSONWriter jw) throws JSONException {
+            jw.object();
+            jw.key("id").value(id);
+            jw.key("type").value(type);
+            jw.key("repoId").value(repoId);
+            if (pullRequestId != null) {
+                jw.key("pullRequestId").value(pullRequestId);
+            }
+            if (jobType != null) {
+                jw.key("jobType").value(jobType);
+            }
+            if (buildHead != null) {
+                jw.key("buildHead").value(buildHead);
+            }
+            if (mergeHead != null) {
+                jw.key("mergeHead").value(mergeHead);
+            }
+            jw.endObject();
+        }
+    }
+
+    public static class Result {
+
+        private final List<StreamEvent> events;
+        private final long lastEventId;
+        private final boolean reset;
+
+        public Result(List<StreamEvent> events, long lastEventId, boolean reset) {
+            this.events = events;
+            this.lastEventId = lastEventId;
+            this.reset = reset;
+        }
+
+        public List<StreamEvent> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return the id to resume from next time
+         */
+        public long getLastEventId() {
+            return lastEventId;
+        }
+
+        /**
+         * @return true if the requested id was unknown (too old, or from before a restart), in which case the client
+         *         should re-read whatever state it cares about
+         */
+        public boolean isReset() {
+            return reset;
+        }
+    }
+}
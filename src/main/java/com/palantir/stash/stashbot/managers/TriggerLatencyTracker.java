@@ -0,0 +1,197 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.build.BuildStatus.State;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+
+/**
+ * Follows each build we trigger from the moment it is queued until jenkins reports it finished, recording how long
+ * each stage took:
+ * <ul>
+ * <li>latency.dispatch - queued in stashbot until jenkins accepted the trigger</li>
+ * <li>latency.jenkinsQueue - accepted by jenkins until the build reported it was in progress</li>
+ * <li>latency.start - queued in stashbot until the build reported it was in progress</li>
+ * <li>latency.build - in progress until the build reported success or failure</li>
+ * </ul>
+ * Each stage is also recorded per jenkins server (latency.STAGE.server.NAME) and per repository
+ * (latency.STAGE.repo.ID).
+ * 
+ * Builds are matched up by a trigger id which is passed to jenkins as a build parameter and echoed back on the
+ * reporting URL. The id starts with the time it was created, so even a report for a build we have no record of (e.g.
+ * triggered by another node) still tells us the overall latency.
+ */
+public class TriggerLatencyTracker {
+
+    // builds which never report back (aborted, deleted, etc.) are forgotten eventually
+    private static final long MAX_AGE_MS = TimeUnit.HOURS.toMillis(12);
+    private static final int MAX_PENDING = 10000;
+
+    private final MetricsRegistry metrics;
+    private final Logger log;
+    private final Random random;
+    private final ConcurrentMap<String, Trigger> pending;
+
+    public TriggerLatencyTracker(MetricsRegistry metrics, PluginLoggerFactory lf) {
+        this.metrics = metrics;
+        this.log = lf.getLoggerForThis(this);
+        this.random = new Random();
+        this.pending = new ConcurrentHashMap<String, Trigger>();
+    }
+
+    /**
+     * @return a new, unique id for a build we are about to queue
+     */
+    public String newTriggerId() {
+        return newTriggerId(System.currentTimeMillis());
+    }
+
+    String newTriggerId(long now) {
+        return Long.toString(now, 36) + "-" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    /**
+     * Called once jenkins has accepted the trigger.
+     * 
+     * @param jenkinsServerName may be null if unknown
+     */
+    public void dispatched(String triggerId, int repoId, String jenkinsServerName) {
+        long now = System.currentTimeMillis();
+        Long queuedAt = getQueuedAt(triggerId, now);
+        if (queuedAt == null) {
+            return;
+        }
+        Trigger t = new Trigger(queuedAt, now, repoId, jenkinsServerName);
+        record("dispatch", now - queuedAt, t);
+
+        if (pending.size() >= MAX_PENDING) {
+            prune(now);
+            if (pending.size() >= MAX_PENDING) {
+                log.debug("Too many builds in flight, not tracking trigger " + triggerId);
+                return;
+            }
+        }
+        pending.put(triggerId, t);
+    }
+
+    /**
+     * Called when jenkins reports on a build.
+     * 
+     * @param triggerId the id echoed back by jenkins, may be null or empty for jobs created before trigger ids existed
+     */
+    public void reported(String triggerId, int repoId, State state) {
+        long now = System.currentTimeMillis();
+        Long queuedAt = getQueuedAt(triggerId, now);
+        if (queuedAt == null) {
+            return;
+        }
+        Trigger t = pending.get(triggerId);
+        if (t == null || t.repoId != repoId) {
+            // not one of ours, we can still tell how long it took to start but not where the time went
+            if (state == State.INPROGRESS) {
+                metrics.timer("latency.start").update(now - queuedAt, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        switch (state) {
+        case INPROGRESS:
+            if (t.startedAt == 0) {
+                t.startedAt = now;
+                record("jenkinsQueue", now - t.dispatchedAt, t);
+                record("start", now - t.queuedAt, t);
+            }
+            break;
+        case SUCCESSFUL:
+        case FAILED:
+            if (pending.remove(triggerId) != null && t.startedAt != 0) {
+                record("build", now - t.startedAt, t);
+            }
+            break;
+        }
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private void record(String stage, long elapsedMs, Trigger t) {
+        metrics.timer("latency." + stage).update(elapsedMs, TimeUnit.MILLISECONDS);
+        metrics.timer("latency." + stage + ".repo." + Integer.toString(t.repoId)).update(elapsedMs,
+            TimeUnit.MILLISECONDS);
+        if (t.jenkinsServerName != null) {
+            metrics.timer("latency." + stage + ".server." + t.jenkinsServerName).update(elapsedMs,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return when the trigger was queued, or null if the id is malformed or implausible (it comes in on an
+     *         unauthenticated URL, after all)
+     */
+    private Long getQueuedAt(String triggerId, long now) {
+        if (triggerId == null || triggerId.isEmpty()) {
+            return null;
+        }
+        int dash = triggerId.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        long queuedAt;
+        try {
+            queuedAt = Long.parseLong(triggerId.substring(0, dash), 36);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (queuedAt > now || now - queuedAt > MAX_AGE_MS) {
+            return null;
+        }
+        return queuedAt;
+    }
+
+    private void prune(long now) {
+        Iterator<Trigger> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().queuedAt > MAX_AGE_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Trigger {
+
+        private final long queuedAt;
+        private final long dispatchedAt;
+        private final int repoId;
+        private final String jenkinsServerName;
+        private volatile long startedAt;
+
+        public Trigger(long queuedAt, long dispatchedAt, int repoId, String jenkinsServerName) {
+            this.queuedAt = queuedAt;
+            this.dispatchedAt = dispatchedAt;
+            this.repoId = repoId;
+            this.jenkinsServerName = jenkinsServerName;
+            this.startedAt = 0;
+        }
+    }
+}
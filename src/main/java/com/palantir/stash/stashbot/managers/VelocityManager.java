@@ -29,6 +29,8 @@ public class VelocityManager {
 
     private final VelocityEngine velocityEngine;
     private final EscapeTool escapeTool;
+    // holds the tools every template gets, contexts handed out chain to this rather than copying it
+    private final VelocityContext baseContext;
 
     public VelocityManager() {
         velocityEngine = new VelocityEngine();
@@ -36,13 +38,16 @@ public class VelocityManager {
         velocityEngine.setProperty("classpath.resource.loader.class", ClasspathResourceLoader.class.getName());
         velocityEngine.init();
         escapeTool = new EscapeTool();
-
+        baseContext = new VelocityContext();
+        baseContext.put("esc", escapeTool);
     }
 
     // This is for testing/mocking
     public VelocityManager(VelocityEngine ve, EscapeTool esc) {
         velocityEngine = ve;
         escapeTool = esc;
+        baseContext = new VelocityContext();
+        baseContext.put("esc", escapeTool);
     }
 
     public VelocityEngine getVelocityEngine() {
@@ -50,8 +55,6 @@ public class VelocityManager {
     }
 
     public VelocityContext getVelocityContext() {
-        VelocityContext vc = new VelocityContext();
-        vc.put("esc", escapeTool);
-        return vc;
+        return new VelocityContext(baseContext);
     }
 }
@@ -0,0 +1,40 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value which only goes up or down by whole steps, e.g. number of things queued
+ */
+public class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void inc(long n) {
+        value.addAndGet(n);
+    }
+
+    public void dec() {
+        value.decrementAndGet();
+    }
+
+    public long getValue() {
+        return value.get();
+    }
+}
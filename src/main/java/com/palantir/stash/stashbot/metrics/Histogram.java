@@ -0,0 +1,98 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in power of two buckets, so updates are a couple of atomic increments and
+ * percentiles are accurate to within a factor of two, which is plenty to tell 5ms from 500ms.
+ */
+public class Histogram {
+
+    // bucket 0 holds 0, bucket i holds [2^(i-1), 2^i)
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void update(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * @return an upper bound for the given percentile (0-100) of values seen so far
+     */
+    public long getPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(c * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                // the top of the bucket, but never more than the largest value actually seen
+                return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param scale divides every value reported (other than count), e.g. to report nanoseconds as milliseconds
+     */
+    Map<String, Number> snapshot(double scale) {
+        Map<String, Number> m = new LinkedHashMap<String, Number>();
+        m.put("count", getCount());
+        m.put("mean", getMean() / scale);
+        m.put("max", getMax() / scale);
+        m.put("p50", getPercentile(50) / scale);
+        m.put("p95", getPercentile(95) / scale);
+        m.put("p99", getPercentile(99) / scale);
+        return m;
+    }
+}
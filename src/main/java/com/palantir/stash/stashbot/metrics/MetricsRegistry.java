@@ -0,0 +1,236 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+
+/**
+ * Holds every counter, timer, histogram and gauge stashbot keeps, by name. Metrics are created the first time they
+ * are asked for, so callers just ask for the metric by name whenever they need it.
+ * 
+ * Everything is exposed over JMX as a single MBean (with one attribute per value, e.g.
+ * "hook.onReceive.total.p95") and as JSON by the metrics servlet.
+ */
+public class MetricsRegistry implements LifecycleAware, DisposableBean {
+
+    public static final String OBJECT_NAME = "com.palantir.stash.stashbot:type=Metrics";
+
+    private final Logger log;
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private volatile ObjectName objectName;
+
+    public MetricsRegistry(PluginLoggerFactory lf) {
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    public Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new Counter());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+    public Timer timer(String name) {
+        Timer t = timers.get(name);
+        if (t == null) {
+            timers.putIfAbsent(name, new Timer());
+            t = timers.get(name);
+        }
+        return t;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge with the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return every value currently known, with names flattened the same way as the JMX attributes
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().getValue());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            flatten(values, e.getKey(), e.getValue().snapshot(1));
+        }
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            flatten(values, e.getKey(), e.getValue().snapshot());
+        }
+        return values;
+    }
+
+    /**
+     * @return timers and histograms as nested objects, counters and gauges as plain values; times are in milliseconds
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject ret = new JSONObject();
+        JSONObject c = new JSONObject();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            c.put(e.getKey(), e.getValue().getValue());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            c.put(e.getKey(), e.getValue().getValue());
+        }
+        JSONObject h = new JSONObject();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            h.put(e.getKey(), new JSONObject(e.getValue().snapshot(1)));
+        }
+        JSONObject t = new JSONObject();
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            t.put(e.getKey(), new JSONObject(e.getValue().snapshot()));
+        }
+        ret.put("counters", c);
+        ret.put("histograms", h);
+        ret.put("timers", t);
+        return ret;
+    }
+
+    @Override
+    public void onStart() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left over from a previous copy of the plugin which wasn't shut down cleanly
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(), name);
+            objectName = name;
+        } catch (JMException e) {
+            log.error("Unable to register metrics with JMX", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        ObjectName name = objectName;
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            log.warn("Unable to unregister metrics from JMX", e);
+        }
+        objectName = null;
+    }
+
+    private static void flatten(Map<String, Number> values, String prefix, Map<String, Number> snapshot) {
+        for (Map.Entry<String, Number> e : snapshot.entrySet()) {
+            values.put(prefix + "." + e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Read only view of the registry; the attribute list is rebuilt whenever it is asked for, so new metrics show up
+     * in JMX consoles as soon as they are reconnected.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a)) {
+                    list.add(new Attribute(a, values.get(a)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+                attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true,
+                    false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Stashbot metrics",
+                attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
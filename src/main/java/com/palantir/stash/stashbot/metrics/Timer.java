@@ -0,0 +1,66 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A histogram of durations, reported in milliseconds
+ */
+public class Timer {
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Histogram histogram = new Histogram();
+
+    public void update(long duration, TimeUnit unit) {
+        histogram.update(unit.toNanos(duration));
+    }
+
+    /**
+     * Starts timing something, call {@link Context#stop()} (in a finally block) when it is done.
+     */
+    public Context time() {
+        return new Context(this);
+    }
+
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    Map<String, Number> snapshot() {
+        return histogram.snapshot(NANOS_PER_MILLI);
+    }
+
+    public static class Context {
+
+        private final Timer timer;
+        private final long start;
+
+        private Context(Timer timer) {
+            this.timer = timer;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * @return the elapsed time in nanoseconds
+         */
+        public long stop() {
+            long elapsed = System.nanoTime() - start;
+            timer.update(elapsed, TimeUnit.NANOSECONDS);
+            return elapsed;
+        }
+    }
+}
@@ -180,4 +180,11 @@ public interface JenkinsServerConfiguration extends Entity {
 
     @Mutator("LOCKED")
     public void setLocked(Boolean isLocked);
+
+    // If true, build reports from this server are queued and applied in the background
+    @NotNull
+    @Default("false")
+    public Boolean getAsyncReporting();
+
+    public void setAsyncReporting(Boolean asyncReporting);
 }
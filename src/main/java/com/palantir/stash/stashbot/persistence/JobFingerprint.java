@@ -0,0 +1,47 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.persistence;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.Default;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * Hash of the job XML most recently pushed to jenkins for a given repository and job template, used to avoid
+ * re-sending unchanged jobs.
+ */
+@Table("JobFingerprint001")
+public interface JobFingerprint extends Entity {
+
+    public RepositoryConfiguration getRepositoryConfiguration();
+
+    public void setRepositoryConfiguration(RepositoryConfiguration rc);
+
+    public JobTemplate getJobTemplate();
+
+    public void setJobTemplate(JobTemplate jjt);
+
+    @NotNull
+    public String getXmlHash();
+
+    public void setXmlHash(String xmlHash);
+
+    // JobTemplateManager.JOB_XML_VERSION when the hash was recorded, 0 for hashes recorded before versions existed
+    @NotNull
+    @Default("0")
+    public Integer getXmlVersion();
+
+    public void setXmlVersion(Integer xmlVersion);
+}
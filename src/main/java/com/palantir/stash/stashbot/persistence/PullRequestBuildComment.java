@@ -0,0 +1,52 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.persistence;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * The comment stashbot keeps up to date with the latest build of a given job type for a pull request, when the
+ * repository is configured to edit one comment rather than post one per build state.
+ */
+@Table("PRBuildComment001")
+public interface PullRequestBuildComment extends Entity {
+
+    @NotNull
+    public Integer getRepoId();
+
+    public void setRepoId(Integer repoId);
+
+    @NotNull
+    public Long getPullRequestId();
+
+    public void setPullRequestId(Long pullRequestId);
+
+    @NotNull
+    public String getJobTypeRaw();
+
+    public void setJobTypeRaw(String jobTypeRaw);
+
+    @NotNull
+    public Long getCommentId();
+
+    public void setCommentId(Long commentId);
+
+    // needed to edit the comment, stash rejects edits of an out of date version
+    @NotNull
+    public Integer getCommentVersion();
+
+    public void setCommentVersion(Integer commentVersion);
+}
@@ -0,0 +1,61 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.persistence;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * A build report accepted from jenkins but not yet applied. Rows are applied in ID order and deleted once applied, so
+ * anything left here at startup was interrupted (or kept failing) and is applied then.
+ */
+@Table("QueuedBuildReport001")
+public interface QueuedBuildReport extends Entity {
+
+    @NotNull
+    public Integer getRepoId();
+
+    public void setRepoId(Integer repoId);
+
+    @NotNull
+    public String getJobType();
+
+    public void setJobType(String jobType);
+
+    @NotNull
+    public String getState();
+
+    public void setState(String state);
+
+    @NotNull
+    public Long getBuildNumber();
+
+    public void setBuildNumber(Long buildNumber);
+
+    @NotNull
+    public String getBuildHead();
+
+    public void setBuildHead(String buildHead);
+
+    // null unless this is a pull request build
+    public String getMergeHead();
+
+    public void setMergeHead(String mergeHead);
+
+    // null unless this is a pull request build
+    public Long getPullRequestId();
+
+    public void setPullRequestId(Long pullRequestId);
+}
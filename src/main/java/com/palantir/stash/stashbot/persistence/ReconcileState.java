@@ -0,0 +1,96 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.persistence;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.Default;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileMode;
+
+/**
+ * Progress of the most recent background reconciliation, persisted after every batch of repositories so it can be
+ * resumed after a restart.
+ */
+@Table("ReconcileState001")
+public interface ReconcileState extends Entity {
+
+    public static enum ReconcileStatus {
+        RUNNING, FINISHED, CANCELLED, FAILED;
+    }
+
+    @NotNull
+    public ReconcileMode getMode();
+
+    public void setMode(ReconcileMode mode);
+
+    @NotNull
+    public ReconcileStatus getStatus();
+
+    public void setStatus(ReconcileStatus status);
+
+    // repositories are processed in id order, this is the id of the last one processed
+    @NotNull
+    @Default("0")
+    public Integer getLastRepoId();
+
+    public void setLastRepoId(Integer lastRepoId);
+
+    @NotNull
+    @Default("0")
+    public Integer getReposTotal();
+
+    public void setReposTotal(Integer reposTotal);
+
+    @NotNull
+    @Default("0")
+    public Integer getReposDone();
+
+    public void setReposDone(Integer reposDone);
+
+    @NotNull
+    @Default("0")
+    public Integer getJobsCreated();
+
+    public void setJobsCreated(Integer jobsCreated);
+
+    @NotNull
+    @Default("0")
+    public Integer getJobsUpdated();
+
+    public void setJobsUpdated(Integer jobsUpdated);
+
+    @NotNull
+    @Default("0")
+    public Integer getJobsSkipped();
+
+    public void setJobsSkipped(Integer jobsSkipped);
+
+    @NotNull
+    @Default("0")
+    public Integer getErrors();
+
+    public void setErrors(Integer errors);
+
+    @NotNull
+    public Long getStartedAt();
+
+    public void setStartedAt(Long startedAt);
+
+    @NotNull
+    public Long getUpdatedAt();
+
+    public void setUpdatedAt(Long updatedAt);
+}
@@ -181,4 +181,11 @@ public interface RepositoryConfiguration extends Entity {
 
     public void setPreserveJenkinsJobConfig(Boolean preserveJenkinsJobConfig);
 
+    // Keep one comment per PR and job type up to date, instead of commenting on every build state change
+    @NotNull
+    @Default("false")
+    public Boolean getSingleBuildComment();
+
+    public void setSingleBuildComment(Boolean singleBuildComment);
+
 }
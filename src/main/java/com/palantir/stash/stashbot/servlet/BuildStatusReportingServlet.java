@@ -15,7 +15,19 @@ package com.palantir.stash.stashbot.servlet;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -26,18 +38,30 @@ import org.apache.commons.lang.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.JSONWriter;
 import org.slf4j.Logger;
 
+import com.atlassian.sal.api.executor.ThreadLocalDelegateExecutorFactory;
 import com.atlassian.stash.nav.NavBuilder;
 import com.atlassian.stash.project.Project;
 import com.atlassian.stash.project.ProjectService;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestMergeVeto;
 import com.atlassian.stash.pull.PullRequestMergeability;
+import com.atlassian.stash.pull.PullRequestParticipant;
+import com.atlassian.stash.pull.PullRequestSearchRequest;
 import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.google.common.collect.Iterables;
+import com.palantir.stash.stashbot.config.ConfigurationVersionTracker;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.util.ETags;
 
 public class BuildStatusReportingServlet extends HttpServlet {
 
@@ -50,22 +74,53 @@ public class BuildStatusReportingServlet extends HttpServlet {
      * REPO_ID is the stash internal ID of the repository<br/>
      * PULLREQUEST_ID is the pull request ID<br/>
      * 
+     * <br/>
+     * Many pull requests can be checked at once by POSTing to BASE_URL a JSON object of the form
+     * {"pullRequests":[{"repo":REPO_ID_OR_SLUG,"prId":PULLREQUEST_ID}, ...], "repos":[REPO_ID_OR_SLUG, ...]}<br/>
+     * where "repos" means every open pull request to that repository. Either list may be omitted. The response is
+     * {"results":[...]} with one entry per pull request, in order, each either the GET output or an "error".<br/>
+     * 
+     * <br/>
+     * GET responses carry an ETag, so pollers can send If-None-Match and get a 304 instead of re-running merge checks.
+     * 
      */
     private static final long serialVersionUID = 1L;
+
+    // merge checks are expensive, so limit how many we run at once across all bulk requests
+    private static final int MAX_PARALLELISM = 4;
+    private static final int MAX_PULL_REQUESTS = 1000;
+    private static final int PAGE_SIZE = 500;
+
     private final Logger log;
 
     private final RepositoryService rs;
     private final ProjectService ps;
     private final PullRequestService prs;
     private final NavBuilder nb;
+    private final ConfigurationVersionTracker versionTracker;
+    private final ExecutorService es;
 
     public BuildStatusReportingServlet(RepositoryService rs, ProjectService ps, PullRequestService prs,
-        NavBuilder nb, PluginLoggerFactory lf) {
+        NavBuilder nb, ConfigurationVersionTracker versionTracker, PluginLoggerFactory lf,
+        ThreadLocalDelegateExecutorFactory tldef) {
         this.rs = rs;
         this.ps = ps;
         this.prs = prs;
         this.nb = nb;
+        this.versionTracker = versionTracker;
         this.log = lf.getLoggerForThis(this);
+        // merge checks are evaluated as the requesting user, so the workers need their security context
+        this.es = tldef.createExecutorService(Executors.newFixedThreadPool(MAX_PARALLELISM, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stashbot-build-status-" + Integer.toString(count.incrementAndGet()));
+                t.setDaemon(true);
+                return t;
+            }
+        }));
     }
 
     @Override
@@ -91,103 +146,303 @@ public class BuildStatusReportingServlet extends HttpServlet {
             // First part is always empty because string starts with '/', last is pr, the rest is the slug
             String slugOrId = StringUtils.join(Arrays.copyOfRange(parts, 1, parts.length - 1), "/");
 
-            Repository repo;
-            try {
-                int repoId = Integer.valueOf(slugOrId);
-                repo = rs.getById(repoId);
-                if (repo == null) {
-                    throw new IllegalArgumentException("Unable to find repository for repo id " + repoId);
-                }
-            } catch (NumberFormatException e) {
-                // we have a slug, try to get a repo ID from that
-                // slug should look like this: projects/PROJECT_KEY/repos/REPO_SLUG/pull-requests
-                String[] newParts = slugOrId.split("/");
-
-                if (newParts.length != 5) {
-                    throw new IllegalArgumentException(
-                        "The format of the REPO_ID_OR_SLUG is an ID, or projects/PROJECT_KEY/repos/REPO_SLUG/pull-requests");
-                }
-                Project p = ps.getByKey(newParts[1]);
-                if (p == null) {
-                    throw new IllegalArgumentException("Unable to find project for project key" + newParts[1]);
-                }
-                repo = rs.getBySlug(p.getKey(), newParts[3]);
-                if (repo == null) {
-                    throw new IllegalArgumentException("Unable to find repository for project key" + newParts[1]
-                        + " and repo slug " + newParts[3]);
-                }
-            }
+            Repository repo = getRepository(slugOrId);
 
             final long pullRequestId;
-            final PullRequest pullRequest;
 
             try {
                 pullRequestId = Long.parseLong(pullRequestPart);
             } catch (NumberFormatException e) {
                 throw new IllegalArgumentException(
-                    "Unable to parse pull request id " + parts[7], e);
+                    "Unable to parse pull request id " + pullRequestPart, e);
             }
-            pullRequest = prs.getById(repo.getId(), pullRequestId);
-            if (pullRequest == null) {
-                throw new IllegalArgumentException(
-                    "Unable to find pull request for repo id "
-                        + repo.getId().toString() + " pr id "
-                        + pullRequestId);
+            PullRequest pullRequest = getPullRequest(repo, pullRequestId);
+
+            // if none of the pull request, its approvals or our configuration and metadata changed, neither did the
+            // answer, so skip the merge checks
+            String etag = getETag(req, repo, pullRequest);
+            if (ETags.isNotModified(req, etag)) {
+                res.reset();
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                res.setHeader("ETag", etag);
+                return;
             }
 
             PullRequestMergeability canMerge = prs.canMerge(repo.getId(), pullRequestId);
 
-            JSONObject output = new JSONObject();
-            output.put("repoId", repo.getId());
-            output.put("prId", pullRequestId);
-            output.put("url", nb.repo(repo).pullRequest(pullRequest.getId()).buildAbsolute());
-            output.put("canMerge", canMerge.canMerge());
-            if (!canMerge.canMerge()) {
-                JSONArray vetoes = new JSONArray();
-                for (PullRequestMergeVeto prmv : canMerge.getVetos()) {
-                    JSONObject prmvjs = new JSONObject();
-                    prmvjs.put("summary", prmv.getSummaryMessage());
-                    prmvjs.put("details", prmv.getDetailedMessage());
-                    vetoes.put(prmvjs);
+            log.debug("Serving build status for repo " + repo.getId().toString() + " pr "
+                + Long.toString(pullRequestId));
+            res.reset();
+            res.setStatus(200);
+            res.setHeader("ETag", etag);
+            res.setContentType("application/json;charset=UTF-8");
+            Writer w = res.getWriter();
+            writeStatus(new JSONWriter(w), repo, pullRequest, canMerge);
+            w.close();
+        } catch (Exception e) {
+            printError(res, 500, e.getMessage());
+        }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse res)
+        throws ServletException, IOException {
+        final List<Target> targets = new ArrayList<Target>();
+        try {
+            JSONObject body = new JSONObject(new JSONTokener(req.getReader()));
+            // repositories are looked up once per request, however often they are mentioned
+            Map<String, Repository> repos = new HashMap<String, Repository>();
+
+            JSONArray pullRequests = body.optJSONArray("pullRequests");
+            for (int i = 0; pullRequests != null && i < pullRequests.length(); ++i) {
+                JSONObject o = pullRequests.getJSONObject(i);
+                targets.add(new Target(o.get("repo").toString(), o.getLong("prId")));
+            }
+            JSONArray allOpen = body.optJSONArray("repos");
+            for (int i = 0; allOpen != null && i < allOpen.length(); ++i) {
+                String slugOrId = allOpen.get(i).toString();
+                Repository repo = getRepository(slugOrId, repos);
+                PullRequestSearchRequest prsr = new PullRequestSearchRequest.Builder()
+                    .toRepositoryId(repo.getId()).state(PullRequestState.OPEN).build();
+                PageRequest pageReq = new PageRequestImpl(0, PAGE_SIZE);
+                Page<PullRequest> page = prs.search(prsr, pageReq);
+                while (targets.size() <= MAX_PULL_REQUESTS) {
+                    for (PullRequest pr : page.getValues()) {
+                        targets.add(new Target(slugOrId, pr.getId(), repo, pr));
+                    }
+                    if (page.getIsLastPage()) {
+                        break;
+                    }
+                    pageReq = page.getNextPageRequest();
+                    page = prs.search(prsr, pageReq);
                 }
-                // You might expect a conflict would be included in the list of merge blockers.  You'd be mistaken.
-                if (canMerge.isConflicted()) {
-                    JSONObject prmvjs = new JSONObject();
-                    prmvjs.put("summary", "This pull request is unmergeable due to conflicts.");
-                    prmvjs.put("details", "You will need to resolve conflicts to be able to merge.");
-                    vetoes.put(prmvjs);
+            }
+            if (targets.size() > MAX_PULL_REQUESTS) {
+                printError(res, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most "
+                    + Integer.toString(MAX_PULL_REQUESTS) + " pull requests may be checked at once");
+                return;
+            }
+            for (Target t : targets) {
+                if (t.repo == null) {
+                    try {
+                        t.repo = getRepository(t.slugOrId, repos);
+                    } catch (IllegalArgumentException e) {
+                        t.error = e.getMessage();
+                    }
                 }
-                output.put("vetoes", vetoes);
             }
+        } catch (JSONException e) {
+            printError(res, HttpServletResponse.SC_BAD_REQUEST, "Invalid build status request: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            printError(res, HttpServletResponse.SC_BAD_REQUEST, "Invalid build status request: " + e.getMessage());
+            return;
+        }
 
-            log.debug("Serving build status: " + output.toString());
-            printOutput(output, req, res);
-        } catch (Exception e) {
-            res.reset();
-            res.setStatus(500);
-            res.setContentType("application/json");
-            Writer w = res.getWriter();
-            try {
-                w.append(new JSONObject().put("error", e.getMessage()).toString());
-            } catch (JSONException e1) {
-                throw new RuntimeException("Errorception!", e1);
+        // the same pull request may be asked for more than once, only check it once
+        Map<String, Future<Status>> checks = new LinkedHashMap<String, Future<Status>>();
+        for (final Target t : targets) {
+            if (t.error != null || checks.containsKey(t.key())) {
+                continue;
             }
-            w.close();
+            checks.put(t.key(), es.submit(new Callable<Status>() {
+
+                @Override
+                public Status call() throws Exception {
+                    PullRequest pullRequest = t.pullRequest;
+                    if (pullRequest == null) {
+                        pullRequest = getPullRequest(t.repo, t.prId);
+                    }
+                    return new Status(pullRequest, prs.canMerge(t.repo.getId(), t.prId));
+                }
+            }));
         }
-    }
+        log.debug("Serving build status for " + Integer.toString(checks.size()) + " pull requests");
 
-    private void printOutput(JSONObject output, HttpServletRequest req, HttpServletResponse res)
-        throws IOException {
+        // results are streamed out in order as the checks complete, rather than collected first
         res.reset();
         res.setStatus(200);
         res.setContentType("application/json;charset=UTF-8");
         Writer w = res.getWriter();
         try {
-            w.append(output.toString(4));
+            JSONWriter jw = new JSONWriter(w);
+            jw.object().key("results").array();
+            for (Target t : targets) {
+                if (t.error != null) {
+                    writeError(jw, t, t.error);
+                    continue;
+                }
+                try {
+                    Status status = checks.get(t.key()).get();
+                    writeStatus(jw, t.repo, status.pullRequest, status.canMerge);
+                } catch (ExecutionException e) {
+                    writeError(jw, t, e.getCause().getMessage());
+                }
+                w.flush();
+            }
+            jw.endArray().endObject();
         } catch (JSONException e) {
-            w.append(output.toString());
+            throw new ServletException(e);
+        } catch (InterruptedException e) {
+            for (Future<Status> f : checks.values()) {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new ServletException(e);
+        }
+        w.close();
+    }
+
+    @Override
+    public void destroy() {
+        es.shutdownNow();
+        super.destroy();
+    }
+
+    private String getETag(HttpServletRequest req, Repository repo, PullRequest pullRequest) {
+        StringBuilder approvals = new StringBuilder();
+        for (PullRequestParticipant p : Iterables.concat(pullRequest.getReviewers(), pullRequest.getParticipants())) {
+            approvals.append(p.getUser().getId()).append(p.isApproved() ? "+" : "-").append(',');
+        }
+        return ETags.of(versionTracker.getMetadataVersion(repo.getId()), req.getRemoteUser(),
+            pullRequest.getState().name(), Integer.toString(pullRequest.getVersion()),
+            pullRequest.getFromRef().getLatestChangeset(), pullRequest.getToRef().getLatestChangeset(),
+            approvals.toString());
+    }
+
+    private void writeStatus(JSONWriter jw, Repository repo, PullRequest pullRequest,
+        PullRequestMergeability canMerge) throws JSONException {
+        jw.object();
+        jw.key("repoId").value(repo.getId());
+        jw.key("prId").value(pullRequest.getId());
+        jw.key("url").value(nb.repo(repo).pullRequest(pullRequest.getId()).buildAbsolute());
+        jw.key("canMerge").value(canMerge.canMerge());
+        if (!canMerge.canMerge()) {
+            jw.key("vetoes").array();
+            for (PullRequestMergeVeto prmv : canMerge.getVetos()) {
+                jw.object();
+                jw.key("summary").value(prmv.getSummaryMessage());
+                jw.key("details").value(prmv.getDetailedMessage());
+                jw.endObject();
+            }
+            // You might expect a conflict would be included in the list of merge blockers.  You'd be mistaken.
+            if (canMerge.isConflicted()) {
+                jw.object();
+                jw.key("summary").value("This pull request is unmergeable due to conflicts.");
+                jw.key("details").value("You will need to resolve conflicts to be able to merge.");
+                jw.endObject();
+            }
+            jw.endArray();
+        }
+        jw.endObject();
+    }
+
+    private void writeError(JSONWriter jw, Target t, String message) throws JSONException {
+        jw.object();
+        jw.key("repo").value(t.slugOrId);
+        jw.key("prId").value(t.prId);
+        jw.key("error").value(message);
+        jw.endObject();
+    }
+
+    private Repository getRepository(String slugOrId, Map<String, Repository> cache) {
+        Repository repo = cache.get(slugOrId);
+        if (repo == null) {
+            repo = getRepository(slugOrId);
+            cache.put(slugOrId, repo);
+        }
+        return repo;
+    }
+
+    private Repository getRepository(String slugOrId) {
+        Repository repo;
+        try {
+            int repoId = Integer.valueOf(slugOrId);
+            repo = rs.getById(repoId);
+            if (repo == null) {
+                throw new IllegalArgumentException("Unable to find repository for repo id " + repoId);
+            }
+        } catch (NumberFormatException e) {
+            // we have a slug, try to get a repo ID from that
+            // slug should look like this: projects/PROJECT_KEY/repos/REPO_SLUG/pull-requests
+            String[] newParts = slugOrId.split("/");
+
+            if (newParts.length != 5) {
+                throw new IllegalArgumentException(
+                    "The format of the REPO_ID_OR_SLUG is an ID, or projects/PROJECT_KEY/repos/REPO_SLUG/pull-requests");
+            }
+            Project p = ps.getByKey(newParts[1]);
+            if (p == null) {
+                throw new IllegalArgumentException("Unable to find project for project key" + newParts[1]);
+            }
+            repo = rs.getBySlug(p.getKey(), newParts[3]);
+            if (repo == null) {
+                throw new IllegalArgumentException("Unable to find repository for project key" + newParts[1]
+                    + " and repo slug " + newParts[3]);
+            }
+        }
+        return repo;
+    }
+
+    private PullRequest getPullRequest(Repository repo, long pullRequestId) {
+        PullRequest pullRequest = prs.getById(repo.getId(), pullRequestId);
+        if (pullRequest == null) {
+            throw new IllegalArgumentException(
+                "Unable to find pull request for repo id "
+                    + repo.getId().toString() + " pr id "
+                    + pullRequestId);
+        }
+        return pullRequest;
+    }
+
+    private void printError(HttpServletResponse res, int status, String message) throws IOException {
+        res.reset();
+        res.setStatus(status);
+        res.setContentType("application/json");
+        Writer w = res.getWriter();
+        try {
+            w.append(new JSONObject().put("error", message).toString());
+        } catch (JSONException e1) {
+            throw new RuntimeException("Errorception!", e1);
         }
         w.close();
     }
 
+    /**
+     * One pull request asked about in a bulk request
+     */
+    private static class Target {
+
+        private final String slugOrId;
+        private final long prId;
+        private final PullRequest pullRequest;
+        private Repository repo;
+        private String error;
+
+        public Target(String slugOrId, long prId) {
+            this(slugOrId, prId, null, null);
+        }
+
+        public Target(String slugOrId, long prId, Repository repo, PullRequest pullRequest) {
+            this.slugOrId = slugOrId;
+            this.prId = prId;
+            this.repo = repo;
+            this.pullRequest = pullRequest;
+        }
+
+        public String key() {
+            return repo.getId().toString() + "/" + Long.toString(prId);
+        }
+    }
+
+    private static class Status {
+
+        private final PullRequest pullRequest;
+        private final PullRequestMergeability canMerge;
+
+        public Status(PullRequest pullRequest, PullRequestMergeability canMerge) {
+            this.pullRequest = pullRequest;
+            this.canMerge = canMerge;
+        }
+    }
 }
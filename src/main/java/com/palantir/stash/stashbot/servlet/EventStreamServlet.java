@@ -0,0 +1,204 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.Semaphore;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.StashbotEventStream;
+import com.palantir.stash.stashbot.managers.StashbotEventStream.Result;
+import com.palantir.stash.stashbot.managers.StashbotEventStream.StreamEvent;
+
+public class EventStreamServlet extends HttpServlet {
+
+    /**
+     * Streams stashbot state changes (build started/passed/failed/overridden, trigger queued/dispatched) so clients
+     * don't have to poll.
+     * 
+     * URL is of the form BASE_URL/[REPO_ID[/PULLREQUEST_ID]] <br/>
+     * 
+     * <br/>
+     * Without a repository, all events are streamed, which requires system admin.<br/>
+     * Clients sending "Accept: text/event-stream" get server-sent events for up to a minute, after which they are
+     * expected to reconnect with a Last-Event-ID header. Anyone else gets a long poll: a JSON object
+     * {"lastEventId":..., "reset":..., "events":[...]} as soon as there are events after the lastEventId parameter,
+     * or an empty list after 25 seconds. If "reset" is true, events were missed (or the id was from before a restart)
+     * and the client should re-read the state it cares about.
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    private static final long LONG_POLL_MS = 25000;
+    private static final long STREAM_MS = 60000;
+    private static final long KEEPALIVE_MS = 15000;
+    // each waiting client holds a request thread, so don't let them take all of them
+    private static final int MAX_WAITING_CLIENTS = 64;
+
+    private final RepositoryService rs;
+    private final PermissionValidationService permissionValidationService;
+    private final StashbotEventStream eventStream;
+    private final Semaphore waitingClients;
+    private final Logger log;
+
+    public EventStreamServlet(RepositoryService rs, PermissionValidationService permissionValidationService,
+        StashbotEventStream eventStream, PluginLoggerFactory lf) {
+        this.rs = rs;
+        this.permissionValidationService = permissionValidationService;
+        this.eventStream = eventStream;
+        this.waitingClients = new Semaphore(MAX_WAITING_CLIENTS);
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        Integer repoId = null;
+        Long pullRequestId = null;
+        Long lastEventId = null;
+        try {
+            String pathInfo = req.getPathInfo() == null ? "" : req.getPathInfo();
+            String[] parts = pathInfo.replaceAll("^/+|/+$", "").split("/");
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("The format of the URL is BASE_URL/[REPO_ID[/PULLREQUEST_ID]]");
+            }
+            if (!parts[0].isEmpty()) {
+                repoId = Integer.valueOf(parts[0]);
+            }
+            if (parts.length == 2) {
+                pullRequestId = Long.valueOf(parts[1]);
+            }
+            String last = req.getHeader("Last-Event-ID");
+            if (last == null) {
+                last = req.getParameter("lastEventId");
+            }
+            if (last != null && !last.isEmpty()) {
+                lastEventId = Long.valueOf(last);
+            }
+        } catch (NumberFormatException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid id: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        try {
+            if (repoId == null) {
+                permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+            } else {
+                Repository repo = rs.getById(repoId);
+                if (repo == null) {
+                    res.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                permissionValidationService.validateForRepository(repo, Permission.REPO_READ);
+            }
+        } catch (AuthorisationException e) {
+            res.sendError(HttpServletResponse.SC_UNAUTHORIZED, "You do not have permission to access this stream.");
+            return;
+        }
+
+        if (!waitingClients.tryAcquire()) {
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many clients waiting, try again later");
+            return;
+        }
+        try {
+            String accept = req.getHeader("Accept");
+            if (accept != null && accept.contains("text/event-stream")) {
+                stream(res, repoId, pullRequestId, lastEventId);
+            } else {
+                longPoll(res, repoId, pullRequestId, lastEventId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        } finally {
+            waitingClients.release();
+        }
+    }
+
+    private void longPoll(HttpServletResponse res, Integer repoId, Long pullRequestId, Long lastEventId)
+        throws IOException, InterruptedException, JSONException {
+        Result result = eventStream.await(lastEventId, repoId, pullRequestId, LONG_POLL_MS);
+        res.setStatus(200);
+        res.setContentType("application/json;charset=UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        PrintWriter w = res.getWriter();
+        JSONWriter jw = new JSONWriter(w);
+        jw.object();
+        jw.key("lastEventId").value(result.getLastEventId());
+        jw.key("reset").value(result.isReset());
+        jw.key("events").array();
+        for (StreamEvent e : result.getEvents()) {
+            e.write(jw);
+        }
+        jw.endArray();
+        jw.endObject();
+        w.close();
+    }
+
+    private void stream(HttpServletResponse res, Integer repoId, Long pullRequestId, Long lastEventId)
+        throws IOException, InterruptedException, JSONException {
+        res.setStatus(200);
+        res.setContentType("text/event-stream;charset=UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        PrintWriter w = res.getWriter();
+        w.write("retry: 2000\n\n");
+        w.flush();
+
+        long end = System.currentTimeMillis() + STREAM_MS;
+        Long cursor = lastEventId;
+        long remaining;
+        while ((remaining = end - System.currentTimeMillis()) > 0) {
+            Result result = eventStream.await(cursor, repoId, pullRequestId, Math.min(KEEPALIVE_MS, remaining));
+            if (result.isReset()) {
+                w.write("id: " + Long.toString(result.getLastEventId()) + "\nevent: reset\ndata: {}\n\n");
+            }
+            for (StreamEvent e : result.getEvents()) {
+                StringWriter data = new StringWriter();
+                e.write(new JSONWriter(data));
+                w.write("id: " + Long.toString(e.getId()) + "\nevent: " + e.getType() + "\ndata: " + data.toString()
+                    + "\n\n");
+            }
+            if (!result.isReset() && result.getEvents().isEmpty()) {
+                // keeps proxies from timing out the connection, and tells us if the client went away
+                w.write(": keepalive\n\n");
+            }
+            w.flush();
+            if (w.checkError()) {
+                log.debug("Event stream client went away");
+                return;
+            }
+            cursor = result.getLastEventId();
+        }
+        w.close();
+    }
+}
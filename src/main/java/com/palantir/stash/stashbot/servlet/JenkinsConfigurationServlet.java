@@ -14,7 +14,9 @@
 package com.palantir.stash.stashbot.servlet;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.sql.SQLException;
 
 import javax.servlet.ServletException;
@@ -22,6 +24,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 
 import com.atlassian.sal.api.auth.LoginUriProvider;
@@ -36,8 +40,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
-import com.palantir.stash.stashbot.managers.JenkinsManager;
+import com.palantir.stash.stashbot.logger.Tracer;
+import com.palantir.stash.stashbot.managers.DriftDetector;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileMode;
 import com.palantir.stash.stashbot.managers.PluginUserManager;
+import com.palantir.stash.stashbot.managers.ReconciliationManager;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
 
@@ -53,7 +60,9 @@ public class JenkinsConfigurationServlet extends HttpServlet {
     private final PageBuilderService pageBuilderService;
     private final ConfigurationPersistenceService configurationPersistanceManager;
     private final PluginUserManager pluginUserManager;
-    private final JenkinsManager jenkinsManager;
+    private final ReconciliationManager reconciliationManager;
+    private final DriftDetector driftDetector;
+    private final Tracer tracer;
     private final LoginUriProvider lup;
     private final PermissionValidationService permissionValidationService;
     private final Logger log;
@@ -61,13 +70,15 @@ public class JenkinsConfigurationServlet extends HttpServlet {
     public JenkinsConfigurationServlet(SoyTemplateRenderer soyTemplateRenderer,
         PageBuilderService pageBuilderService,
         ConfigurationPersistenceService configurationPersistenceManager, PluginUserManager pluginUserManager,
-        JenkinsManager jenkinsManager, LoginUriProvider lup, PluginLoggerFactory lf,
-        PermissionValidationService permissionValidationService) {
+        ReconciliationManager reconciliationManager, DriftDetector driftDetector, Tracer tracer,
+        LoginUriProvider lup, PluginLoggerFactory lf, PermissionValidationService permissionValidationService) {
         this.soyTemplateRenderer = soyTemplateRenderer;
         this.pageBuilderService = pageBuilderService;
         this.configurationPersistanceManager = configurationPersistenceManager;
         this.pluginUserManager = pluginUserManager;
-        this.jenkinsManager = jenkinsManager;
+        this.reconciliationManager = reconciliationManager;
+        this.driftDetector = driftDetector;
+        this.tracer = tracer;
         this.permissionValidationService = permissionValidationService;
         this.log = lf.getLoggerForThis(this);
         this.lup = lup;
@@ -101,7 +112,13 @@ public class JenkinsConfigurationServlet extends HttpServlet {
             .replaceAll("/+$", "")
             .replaceAll("/delete/?.*$", "")
             .replaceAll("/reload-all/?.*$", "")
+            .replaceAll("/force-reload-all/?.*$", "")
             .replaceAll("/create-new/?.*$", "")
+            .replaceAll("/reconcile-cancel/?.*$", "")
+            .replaceAll("/reconcile-status/?.*$", "")
+            .replaceAll("/drift-scan/?.*$", "")
+            .replaceAll("/drift-report/?.*$", "")
+            .replaceAll("/trace/?.*$", "")
             .replaceAll("\\?notice=.*$", "")
             .replaceAll("\\?error=.*$", "");
 
@@ -115,12 +132,73 @@ public class JenkinsConfigurationServlet extends HttpServlet {
                 return;
             }
             if (parts[1].equals("reload-all")) {
-                jenkinsManager.updateAllJobs();
-                res.sendRedirect(relUrl);
+                startReconciliation(ReconcileMode.UPDATE_ALL, relUrl, res);
+                return;
+            }
+            if (parts[1].equals("force-reload-all")) {
+                startReconciliation(ReconcileMode.FORCE_UPDATE_ALL, relUrl, res);
+                return;
             }
             if (parts[1].equals("create-new")) {
-                jenkinsManager.createMissingJobs();
-                res.sendRedirect(relUrl);
+                startReconciliation(ReconcileMode.CREATE_MISSING, relUrl, res);
+                return;
+            }
+            if (parts[1].equals("reconcile-cancel")) {
+                reconciliationManager.cancel();
+                res.sendRedirect(relUrl + "?notice=" + URLEncoder.encode("Reconciliation cancelled", "UTF-8"));
+                return;
+            }
+            if (parts[1].equals("reconcile-status")) {
+                res.setContentType("application/json;charset=UTF-8");
+                Writer w = res.getWriter();
+                try {
+                    w.append(reconciliationManager.getStatus().toString());
+                } catch (JSONException e) {
+                    throw new ServletException(e);
+                }
+                w.close();
+                return;
+            }
+            if (parts[1].equals("drift-scan")) {
+                driftDetector.scanNow();
+                res.sendRedirect(relUrl + "?notice="
+                    + URLEncoder.encode("Drift scan started, see drift-report for results", "UTF-8"));
+                return;
+            }
+            if (parts[1].equals("drift-report")) {
+                res.setContentType("application/json;charset=UTF-8");
+                Writer w = res.getWriter();
+                JSONObject report = driftDetector.getLastReport();
+                w.append(report == null ? "{}" : report.toString());
+                w.close();
+                return;
+            }
+            if (parts[1].equals("trace")) {
+                // trace/?repo=ID&enabled=true|false and/or trace/?sample=N, responds with the current settings
+                try {
+                    String repo = req.getParameter("repo");
+                    if (repo != null) {
+                        tracer.setRepositoryTraced(Integer.parseInt(repo),
+                            !"false".equals(req.getParameter("enabled")));
+                    }
+                    String sample = req.getParameter("sample");
+                    if (sample != null) {
+                        tracer.setSampleRate(Integer.parseInt(sample));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // includes NumberFormatException
+                    res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                    return;
+                }
+                res.setContentType("application/json;charset=UTF-8");
+                Writer w = res.getWriter();
+                try {
+                    w.append(tracer.getStatus().toString());
+                } catch (JSONException e) {
+                    throw new ServletException(e);
+                }
+                w.close();
+                return;
             }
         }
 
@@ -203,6 +281,16 @@ public class JenkinsConfigurationServlet extends HttpServlet {
         doGet(req, res);
     }
 
+    private void startReconciliation(ReconcileMode mode, String relUrl, HttpServletResponse res) throws IOException {
+        if (reconciliationManager.start(mode)) {
+            res.sendRedirect(relUrl + "?notice="
+                + URLEncoder.encode("Reconciliation started, see reconcile-status for progress", "UTF-8"));
+        } else {
+            res.sendRedirect(relUrl + "?error="
+                + URLEncoder.encode("A reconciliation is already running, cancel it first", "UTF-8"));
+        }
+    }
+
     private URI getUri(HttpServletRequest req) {
         StringBuffer builder = req.getRequestURL();
         if (req.getQueryString() != null) {
@@ -0,0 +1,74 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+
+/**
+ * Dumps the metrics registry as JSON for system administrators. The same values are available over JMX.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final MetricsRegistry metrics;
+    private final PermissionValidationService permissionValidationService;
+    private final Logger log;
+
+    public MetricsServlet(MetricsRegistry metrics, PermissionValidationService permissionValidationService,
+        PluginLoggerFactory lf) {
+        this.metrics = metrics;
+        this.permissionValidationService = permissionValidationService;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException notAdminException) {
+            log.warn("User {} is not a system administrator", req.getRemoteUser());
+            res.sendError(HttpServletResponse.SC_UNAUTHORIZED, "You do not have permission to access this page.");
+            return;
+        }
+
+        res.setContentType("application/json;charset=UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        Writer w = res.getWriter();
+        try {
+            w.append(metrics.toJson().toString());
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        }
+        w.close();
+    }
+}
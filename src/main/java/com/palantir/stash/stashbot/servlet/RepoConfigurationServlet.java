@@ -160,6 +160,7 @@ public class RepoConfigurationServlet extends HttpServlet {
                         .put("isEmailSendToIndividuals", rc.getEmailSendToIndividuals())
                         .put("isStrictVerifyMode", rc.getStrictVerifyMode())
                         .put("isPreserveJenkinsJobConfig", rc.getPreserveJenkinsJobConfig())
+                        .put("isSingleBuildComment", rc.getSingleBuildComment())
                         .put("isLocked", isLocked(theJsc))
                         .put("verificationEnabled",
                             configurationPersistanceManager.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT))
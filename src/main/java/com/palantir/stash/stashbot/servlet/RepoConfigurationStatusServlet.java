@@ -43,12 +43,14 @@ import com.atlassian.stash.util.PageRequestImpl;
 import com.atlassian.webresource.api.assembler.PageBuilderService;
 import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.ConfigurationVersionTracker;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
 import com.palantir.stash.stashbot.managers.JenkinsManager;
 import com.palantir.stash.stashbot.managers.PluginUserManager;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+import com.palantir.stash.stashbot.util.ETags;
 
 public class RepoConfigurationStatusServlet extends HttpServlet {
 
@@ -65,13 +67,14 @@ public class RepoConfigurationStatusServlet extends HttpServlet {
     private final JenkinsManager jenkinsManager;
     private final PluginUserManager pluginUserManager;
     private final PermissionValidationService permissionValidationService;
+    private final ConfigurationVersionTracker versionTracker;
     private final Logger log;
 
     public RepoConfigurationStatusServlet(RepositoryService repositoryService, PullRequestService prs,
         SoyTemplateRenderer soyTemplateRenderer, PageBuilderService pageBuilderService,
         ConfigurationPersistenceService configurationPersistenceManager, JenkinsManager jenkinsManager,
         PluginUserManager pluginUserManager, PermissionValidationService permissionValidationService,
-        PluginLoggerFactory lf) {
+        ConfigurationVersionTracker versionTracker, PluginLoggerFactory lf) {
         this.repositoryService = repositoryService;
         this.prs = prs;
         this.soyTemplateRenderer = soyTemplateRenderer;
@@ -80,6 +83,7 @@ public class RepoConfigurationStatusServlet extends HttpServlet {
         this.jenkinsManager = jenkinsManager;
         this.permissionValidationService = permissionValidationService;
         this.pluginUserManager = pluginUserManager;
+        this.versionTracker = versionTracker;
         this.log = lf.getLoggerForThis(this);
     }
 
@@ -90,12 +94,20 @@ public class RepoConfigurationStatusServlet extends HttpServlet {
             res.sendError(404);
             return;
         }
+        // only the configuration can change the answer, so don't even look it up if that hasn't changed
+        String etag = ETags.of(versionTracker.getConfigurationVersion(rep.getId()));
+        if (ETags.isNotModified(req, etag)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            res.setHeader("ETag", etag);
+            return;
+        }
         RepositoryConfiguration rc;
         try {
             rc = configurationPersistanceManager.getRepositoryConfigurationForRepository(rep);
         } catch (SQLException e1) {
             throw new ServletException(e1);
         }
+        res.setHeader("ETag", etag);
         res.setContentType("text/html;charset=UTF-8");
         res.getWriter().print(rc.getCiEnabled());
         res.getWriter().flush();
@@ -16,7 +16,14 @@ package com.palantir.stash.stashbot.urlbuilder;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.event.RepositoryModifiedEvent;
+import com.atlassian.stash.event.project.ProjectModifiedEvent;
 import com.atlassian.stash.nav.NavBuilder;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.repository.Repository;
@@ -25,19 +32,90 @@ import com.atlassian.stash.repository.RepositoryService;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 
+/**
+ * Builds the URLs we hand to jenkins and users. The per-repository pieces (clone and browse links) only change when a
+ * repository or its project is renamed or moved, so they are cached until stash tells us that happened. There is no
+ * event for base URL changes, so that is just re-read every minute.
+ */
 public class StashbotUrlBuilder {
 
+    private static final long BASE_URL_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
     private final NavBuilder nb;
     private final RepositoryService rs;
+    private final ConcurrentMap<Integer, String> cloneUrls;
+    private final ConcurrentMap<Integer, String> repositoryLinks;
+    private volatile String baseUrl;
+    private volatile long baseUrlExpires;
 
     public StashbotUrlBuilder(NavBuilder nb, RepositoryService rs) {
         this.nb = nb;
         this.rs = rs;
+        this.cloneUrls = new ConcurrentHashMap<Integer, String>();
+        this.repositoryLinks = new ConcurrentHashMap<Integer, String>();
+        this.baseUrl = null;
+        this.baseUrlExpires = 0;
+    }
+
+    public String getBaseUrl() {
+        String url = baseUrl;
+        long now = System.currentTimeMillis();
+        if (url == null || now > baseUrlExpires) {
+            url = nb.buildAbsolute();
+            baseUrl = url;
+            baseUrlExpires = now + BASE_URL_TTL_MS;
+        }
+        return url;
+    }
+
+    /**
+     * @return the http clone URL for the repository, without any credentials
+     */
+    public String getCloneUrl(Repository repo) {
+        String url = cloneUrls.get(repo.getId());
+        if (url == null) {
+            RepositoryCloneLinksRequest rclr =
+                new RepositoryCloneLinksRequest.Builder().repository(repo).protocol("http").user(null).build();
+            url = rs.getCloneLinks(rclr).iterator().next().getHref();
+            cloneUrls.put(repo.getId(), url);
+        }
+        return url;
+    }
+
+    public String getRepositoryLink(Repository repo) {
+        String url = repositoryLinks.get(repo.getId());
+        if (url == null) {
+            url = nb.repo(repo).browse().buildAbsolute();
+            repositoryLinks.put(repo.getId(), url);
+        }
+        return url;
+    }
+
+    @EventListener
+    public void onRepositoryModified(RepositoryModifiedEvent event) {
+        invalidate(event.getRepository());
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        invalidate(event.getRepository());
+    }
+
+    @EventListener
+    public void onProjectModified(ProjectModifiedEvent event) {
+        // the project key is part of every URL in it, and this is rare enough to not bother working out which
+        cloneUrls.clear();
+        repositoryLinks.clear();
+    }
+
+    private void invalidate(Repository repo) {
+        cloneUrls.remove(repo.getId());
+        repositoryLinks.remove(repo.getId());
     }
 
     public String getJenkinsTriggerUrl(Repository repo, JobType jt,
         String buildHead, PullRequest pullRequest) throws SQLException {
-        StringBuffer urlB = new StringBuffer(nb.buildAbsolute());
+        StringBuffer urlB = new StringBuffer(getBaseUrl());
         urlB.append("/plugins/servlet/stashbot/build-trigger/");
         urlB.append(repo.getId().toString()).append("/");
         urlB.append(jt.toString()).append("/");
@@ -54,22 +132,19 @@ public class StashbotUrlBuilder {
     public String buildReportingUrl(Repository repo, JobType jobType,
         JenkinsServerConfiguration jsc, String status) {
         // Look at the BuildSuccessReportinServlet if you change this:
-        // "BASE_URL/REPO_ID/JOB_NAME/STATE/BUILD_NUMBER/BUILD_HEAD[/MERGE_HEAD/PULLREQUEST_ID]";
+        // "BASE_URL/REPO_ID/JOB_NAME/STATE/BUILD_NUMBER/BUILD_HEAD[/MERGE_HEAD/PULLREQUEST_ID]?triggerId=TRIGGER_ID";
         // SEE ALSO:
         // https://wiki.jenkins-ci.org/display/JENKINS/Building+a+software+project#Buildingasoftwareproject-JenkinsSetEnvironmentVariables
         // TODO: Remove $repoId, hardcode ID?
-        String url = nb
-            .buildAbsolute()
+        String url = getBaseUrl()
             .concat("/plugins/servlet/stashbot/build-reporting/$repoId/"
                 + jobType.toString() + "/" + status
-                + "/$BUILD_NUMBER/$buildHead/$mergeHead/$pullRequestId");
+                + "/$BUILD_NUMBER/$buildHead/$mergeHead/$pullRequestId?triggerId=$triggerId");
         return url;
     }
 
     public String buildCloneUrl(Repository repo, JenkinsServerConfiguration jsc) {
-        RepositoryCloneLinksRequest rclr =
-            new RepositoryCloneLinksRequest.Builder().repository(repo).protocol("http").user(null).build();
-        String url = rs.getCloneLinks(rclr).iterator().next().getHref();
+        String url = getCloneUrl(repo);
         // we build without username because we insert username AND password, and need both, in the case where we are using USERNAME_AND_PASSWORD.
         switch (jsc.getAuthenticationMode()) {
         case USERNAME_AND_PASSWORD:
@@ -0,0 +1,58 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.util.Operation;
+import com.google.common.collect.Multimap;
+
+/**
+ * Adds many build statuses under one permission elevation. A status which can't be added doesn't stop the rest; its
+ * failure is available from {@link #getFailure(BuildStatus)} afterwards.
+ */
+public class BuildStatusBatchAddOperation implements Operation<Void, Exception> {
+
+    private final BuildStatusService bss;
+    private final Multimap<String, BuildStatus> statuses;
+    private final Map<BuildStatus, Exception> failures;
+
+    public BuildStatusBatchAddOperation(BuildStatusService bss, Multimap<String, BuildStatus> statuses) {
+        this.bss = bss;
+        this.statuses = statuses;
+        this.failures = new IdentityHashMap<BuildStatus, Exception>();
+    }
+
+    @Override
+    public Void perform() throws Exception {
+        for (Map.Entry<String, BuildStatus> e : statuses.entries()) {
+            try {
+                bss.add(e.getKey(), e.getValue());
+            } catch (Exception ex) {
+                failures.put(e.getValue(), ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return why the given status could not be added, or null if it was
+     */
+    public Exception getFailure(BuildStatus bs) {
+        return failures.get(bs);
+    }
+}
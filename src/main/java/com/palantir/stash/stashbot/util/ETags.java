@@ -0,0 +1,74 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Helpers for answering conditional GETs
+ */
+public class ETags {
+
+    private ETags() {
+    }
+
+    /**
+     * @return a quoted entity tag derived from the given parts, any of which may be null
+     */
+    public static String of(String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String part : parts) {
+                md.update(String.valueOf(part).getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            byte[] digest = md.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2 + 2);
+            sb.append('"');
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            sb.append('"');
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true if the request's If-None-Match header matches the given entity tag
+     */
+    public static boolean isNotModified(HttpServletRequest req, String etag) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.palantir.stash.stashbot.util;
 
+import com.atlassian.stash.comment.Comment;
 import com.atlassian.stash.pull.PullRequestService;
 import com.atlassian.stash.util.Operation;
 
@@ -23,6 +24,8 @@ public class PullRequestCommentAddOperation implements Operation<Void, Exception
     private final Long prId;
     private final String commentText;
 
+    private Comment comment;
+
     public PullRequestCommentAddOperation(PullRequestService prs, Integer repoId, Long prId, String commentText) {
         this.prs = prs;
         this.repoId = repoId;
@@ -32,7 +35,14 @@ public class PullRequestCommentAddOperation implements Operation<Void, Exception
 
     @Override
     public Void perform() throws Exception {
-        prs.addComment(repoId, prId, commentText);
+        comment = prs.addComment(repoId, prId, commentText);
         return null;
     }
+
+    /**
+     * @return the comment added by perform(), or null if it hasn't run
+     */
+    public Comment getComment() {
+        return comment;
+    }
 }
@@ -0,0 +1,53 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.util;
+
+import com.atlassian.stash.comment.Comment;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.util.Operation;
+
+public class PullRequestCommentUpdateOperation implements Operation<Void, Exception> {
+
+    private final PullRequestService prs;
+    private final Integer repoId;
+    private final Long prId;
+    private final Long commentId;
+    private final Integer version;
+    private final String commentText;
+
+    private Comment comment;
+
+    public PullRequestCommentUpdateOperation(PullRequestService prs, Integer repoId, Long prId, Long commentId,
+        Integer version, String commentText) {
+        this.prs = prs;
+        this.repoId = repoId;
+        this.prId = prId;
+        this.commentId = commentId;
+        this.version = version;
+        this.commentText = commentText;
+    }
+
+    @Override
+    public Void perform() throws Exception {
+        comment = prs.updateComment(repoId, prId, commentId, version, commentText);
+        return null;
+    }
+
+    /**
+     * @return the updated comment, or null if perform() hasn't run
+     */
+    public Comment getComment() {
+        return comment;
+    }
+}
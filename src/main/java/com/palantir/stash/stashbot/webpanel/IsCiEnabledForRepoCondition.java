@@ -13,26 +13,19 @@
 // limitations under the License.
 package com.palantir.stash.stashbot.webpanel;
 
-import java.sql.SQLException;
 import java.util.Map;
 
-import org.slf4j.Logger;
-
 import com.atlassian.plugin.PluginParseException;
 import com.atlassian.plugin.web.Condition;
 import com.atlassian.stash.repository.Repository;
-import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
-import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
-import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+import com.palantir.stash.stashbot.config.CiEnabledCache;
 
 public class IsCiEnabledForRepoCondition implements Condition {
 
-    private final ConfigurationPersistenceService cpm;
-    private final Logger log;
+    private final CiEnabledCache ciEnabledCache;
 
-    public IsCiEnabledForRepoCondition(ConfigurationPersistenceService cpm, PluginLoggerFactory lf) {
-        this.cpm = cpm;
-        this.log = lf.getLoggerForThis(this);
+    public IsCiEnabledForRepoCondition(CiEnabledCache ciEnabledCache) {
+        this.ciEnabledCache = ciEnabledCache;
     }
 
     @Override
@@ -44,20 +37,10 @@ public class IsCiEnabledForRepoCondition implements Condition {
 
         // request, principal, changeset, repository
         Repository repo = (Repository) context.get("repository");
-        RepositoryConfiguration rc;
         if (repo == null) {
             return false;
         }
-        try {
-            rc = cpm.getRepositoryConfigurationForRepository(repo);
-        } catch (SQLException e) {
-            rc = null;
-            log.error("Failed to get RepositoryConfiguration for repo: " + repo.toString(), e);
-        }
-
-        if (rc != null && rc.getCiEnabled()) {
-            return true;
-        }
-        return false;
+        // this is evaluated for every commit shown, so don't go to the database
+        return ciEnabledCache.isCiEnabled(repo.getId());
     }
 }
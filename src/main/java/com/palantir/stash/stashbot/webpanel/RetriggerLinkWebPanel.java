@@ -24,21 +24,20 @@ import org.slf4j.Logger;
 import com.atlassian.plugin.web.model.WebPanel;
 import com.atlassian.stash.content.Changeset;
 import com.atlassian.stash.repository.Repository;
-import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.CiEnabledCache;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
-import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 import com.palantir.stash.stashbot.urlbuilder.StashbotUrlBuilder;
 
 public class RetriggerLinkWebPanel implements WebPanel {
 
-    private final ConfigurationPersistenceService cpm;
+    private final CiEnabledCache ciEnabledCache;
     private final StashbotUrlBuilder ub;
     private final Logger log;
 
-    public RetriggerLinkWebPanel(ConfigurationPersistenceService cpm,
+    public RetriggerLinkWebPanel(CiEnabledCache ciEnabledCache,
         StashbotUrlBuilder ub, PluginLoggerFactory lf) {
-        this.cpm = cpm;
+        this.ciEnabledCache = ciEnabledCache;
         this.ub = ub;
         this.log = lf.getLoggerForThis(this);
     }
@@ -60,10 +59,8 @@ public class RetriggerLinkWebPanel implements WebPanel {
         throws IOException {
         try {
             Repository repo = (Repository) context.get("repository");
-            RepositoryConfiguration rc = cpm
-                .getRepositoryConfigurationForRepository(repo);
 
-            if (!rc.getCiEnabled()) {
+            if (!ciEnabledCache.isCiEnabled(repo.getId())) {
                 // No link
                 return;
             }
@@ -0,0 +1,230 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.admin;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.sal.api.executor.ThreadLocalDelegateExecutorFactory;
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestMergeability;
+import com.atlassian.stash.pull.PullRequestSearchRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.config.ConfigurationVersionTracker;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.servlet.BuildStatusReportingServlet;
+
+public class BuildStatusReportingServletTest {
+
+    private static final int REPO_ID = 1;
+
+    @Mock
+    private RepositoryService rs;
+    @Mock
+    private ProjectService ps;
+    @Mock
+    private PullRequestService prs;
+    @Mock
+    private ConfigurationVersionTracker versionTracker;
+    @Mock
+    private ThreadLocalDelegateExecutorFactory tldef;
+
+    @Mock
+    private HttpServletRequest req;
+    @Mock
+    private HttpServletResponse res;
+    @Mock
+    private Repository repo;
+    @Mock
+    private PullRequest pr5;
+    @Mock
+    private PullRequest pr6;
+    @Mock
+    private PullRequestMergeability mergeable;
+    @Mock
+    private Page<PullRequest> page;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private StringWriter mockWriter;
+    private BuildStatusReportingServlet bsrs;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(rs.getById(REPO_ID)).thenReturn(repo);
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(pr5.getId()).thenReturn(5L);
+        Mockito.when(pr6.getId()).thenReturn(6L);
+        Mockito.when(prs.getById(REPO_ID, 5L)).thenReturn(pr5);
+        Mockito.when(prs.getById(REPO_ID, 6L)).thenReturn(pr6);
+        Mockito.when(mergeable.canMerge()).thenReturn(true);
+        Mockito.when(prs.canMerge(REPO_ID, 5L)).thenReturn(mergeable);
+        Mockito.when(prs.canMerge(REPO_ID, 6L)).thenReturn(mergeable);
+
+        // no security context to carry over in tests, so just use the plain pool
+        Mockito.when(tldef.createExecutorService(Mockito.any(ExecutorService.class))).thenAnswer(
+            new Answer<ExecutorService>() {
+
+                @Override
+                public ExecutorService answer(InvocationOnMock invocation) {
+                    return (ExecutorService) invocation.getArguments()[0];
+                }
+            });
+
+        mockWriter = new StringWriter();
+        Mockito.when(res.getWriter()).thenReturn(new PrintWriter(mockWriter));
+
+        NavBuilder nb = Mockito.mock(NavBuilder.class, Mockito.RETURNS_DEEP_STUBS);
+        bsrs = new BuildStatusReportingServlet(rs, ps, prs, nb, versionTracker, lf, tldef);
+    }
+
+    @After
+    public void tearDown() {
+        bsrs.destroy();
+    }
+
+    @Test
+    public void testDuplicatePullRequestsAreCheckedOnce() throws Exception {
+        post("{\"pullRequests\":[" + target(REPO_ID, 5) + "," + target(REPO_ID, 5) + "]}");
+
+        Mockito.verify(prs, Mockito.times(1)).canMerge(REPO_ID, 5L);
+        Mockito.verify(rs, Mockito.times(1)).getById(REPO_ID);
+        JSONArray results = results();
+        Assert.assertEquals(2, results.length());
+        for (int i = 0; i < results.length(); ++i) {
+            Assert.assertEquals(5, results.getJSONObject(i).getLong("prId"));
+            Assert.assertTrue(results.getJSONObject(i).getBoolean("canMerge"));
+        }
+    }
+
+    @Test
+    public void testReposExpandsToOpenPullRequests() throws Exception {
+        Mockito.when(prs.search(Mockito.any(PullRequestSearchRequest.class), Mockito.any(PageRequest.class)))
+            .thenReturn(page);
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(pr5, pr6));
+        Mockito.when(page.getIsLastPage()).thenReturn(true);
+
+        post("{\"repos\":[\"" + Integer.toString(REPO_ID) + "\"]}");
+
+        JSONArray results = results();
+        Assert.assertEquals(2, results.length());
+        Assert.assertEquals(5, results.getJSONObject(0).getLong("prId"));
+        Assert.assertEquals(6, results.getJSONObject(1).getLong("prId"));
+        // the search already found the pull requests, so they aren't looked up again
+        Mockito.verify(prs, Mockito.never()).getById(Mockito.anyInt(), Mockito.anyLong());
+    }
+
+    @Test
+    public void testTooManyPullRequests() throws Exception {
+        List<PullRequest> values = Collections.nCopies(501, pr5);
+        Mockito.when(prs.search(Mockito.any(PullRequestSearchRequest.class), Mockito.any(PageRequest.class)))
+            .thenReturn(page);
+        Mockito.when(page.getValues()).thenReturn(values);
+        Mockito.when(page.getIsLastPage()).thenReturn(false);
+
+        post("{\"repos\":[\"" + Integer.toString(REPO_ID) + "\"]}");
+
+        Mockito.verify(res).setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        Mockito.verify(prs, Mockito.never()).canMerge(Mockito.anyInt(), Mockito.anyLong());
+        Assert.assertTrue(new JSONObject(mockWriter.toString()).has("error"));
+    }
+
+    @Test
+    public void testErrorsAreReportedPerPullRequest() throws Exception {
+        post("{\"pullRequests\":[" + target(REPO_ID, 5) + "," + target(99, 1) + "," + target(REPO_ID, 7) + "]}");
+
+        Mockito.verify(res).setStatus(200);
+        JSONArray results = results();
+        Assert.assertEquals(3, results.length());
+        Assert.assertTrue(results.getJSONObject(0).getBoolean("canMerge"));
+        Assert.assertEquals("99", results.getJSONObject(1).getString("repo"));
+        Assert.assertTrue(results.getJSONObject(1).getString("error").contains("99"));
+        Assert.assertEquals(7, results.getJSONObject(2).getLong("prId"));
+        Assert.assertTrue(results.getJSONObject(2).has("error"));
+    }
+
+    @Test
+    public void testResultsAreInRequestOrder() throws Exception {
+        // the first check can't finish until the second has
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        Mockito.when(prs.canMerge(REPO_ID, 5L)).thenAnswer(new Answer<PullRequestMergeability>() {
+
+            @Override
+            public PullRequestMergeability answer(InvocationOnMock invocation) throws Throwable {
+                Assert.assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+                return mergeable;
+            }
+        });
+        Mockito.when(prs.canMerge(REPO_ID, 6L)).thenAnswer(new Answer<PullRequestMergeability>() {
+
+            @Override
+            public PullRequestMergeability answer(InvocationOnMock invocation) {
+                secondDone.countDown();
+                return mergeable;
+            }
+        });
+
+        post("{\"pullRequests\":[" + target(REPO_ID, 5) + "," + target(REPO_ID, 6) + "]}");
+
+        JSONArray results = results();
+        Assert.assertEquals(2, results.length());
+        Assert.assertEquals(5, results.getJSONObject(0).getLong("prId"));
+        Assert.assertEquals(6, results.getJSONObject(1).getLong("prId"));
+    }
+
+    private void post(String body) throws Exception {
+        Mockito.when(req.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        bsrs.doPost(req, res);
+    }
+
+    private JSONArray results() throws Exception {
+        return new JSONObject(mockWriter.toString()).getJSONArray("results");
+    }
+
+    private static String target(int repoId, long prId) {
+        return "{\"repo\":" + Integer.toString(repoId) + ",\"prId\":" + Long.toString(prId) + "}";
+    }
+}
@@ -13,8 +13,10 @@
 // limitations under the License.
 package com.palantir.stash.stashbot.admin;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 
 import javax.servlet.ServletException;
@@ -23,6 +25,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.Assert;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -35,6 +39,7 @@ import org.mockito.stubbing.Answer;
 import com.atlassian.stash.build.BuildStatus;
 import com.atlassian.stash.build.BuildStatus.State;
 import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.comment.Comment;
 import com.atlassian.stash.project.Project;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestRef;
@@ -51,8 +56,15 @@ import com.palantir.stash.stashbot.config.ConfigurationPersistenceImpl;
 import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.managers.BuildReportManager;
+import com.palantir.stash.stashbot.managers.BuildReportManager.BuildReport;
+import com.palantir.stash.stashbot.managers.BuildReportQueue;
+import com.palantir.stash.stashbot.managers.StashUserCache;
+import com.palantir.stash.stashbot.managers.TriggerLatencyTracker;
 import com.palantir.stash.stashbot.mocks.MockJobTemplateFactory;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.PullRequestBuildComment;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 import com.palantir.stash.stashbot.servlet.BuildSuccessReportingServlet;
@@ -74,6 +86,8 @@ public class BuildSuccessReportingServletTest {
     @Mock
     private RepositoryService repositoryService;
     @Mock
+    private BuildReportQueue brq;
+    @Mock
     private BuildStatusService bss;
     @Mock
     private PullRequestService prs;
@@ -166,8 +180,10 @@ public class BuildSuccessReportingServletTest {
         mockWriter = new StringWriter();
         Mockito.when(res.getWriter()).thenReturn(new PrintWriter(mockWriter));
 
-        bsrs = new BuildSuccessReportingServlet(cpm, repositoryService, bss,
-            prs, ub, jtm, ss, us, lf);
+        MetricsRegistry metrics = new MetricsRegistry(lf);
+        bsrs = new BuildSuccessReportingServlet(new BuildReportManager(cpm, repositoryService, bss,
+            prs, ub, jtm, ss, new StashUserCache(us, lf), metrics, lf), brq, new TriggerLatencyTracker(metrics, lf),
+            lf);
     }
 
     @Test
@@ -269,6 +285,155 @@ public class BuildSuccessReportingServletTest {
         Assert.assertTrue(commentText.contains("passed"));
     }
 
+    @Test
+    public void testMergeBuildReportingLoadsConfigurationOnce() throws Exception {
+        Mockito.when(req.getPathInfo()).thenReturn(
+            buildPathInfo(REPO_ID, JobType.VERIFY_COMMIT, FAILED,
+                BUILD_NUMBER, HEAD, MERGE_HEAD, PULL_REQUEST_ID));
+
+        bsrs.doGet(req, res);
+
+        Mockito.verify(cpm, Mockito.times(1)).getRepositoryConfigurationForRepository(repo);
+        Mockito.verify(cpm, Mockito.times(1)).getJenkinsServerConfiguration(Mockito.anyString());
+        Mockito.verify(jtm, Mockito.times(1)).getRepositoryJobs(rc);
+    }
+
+    @Test
+    public void testStashbotUserIsLookedUpOnce() throws Exception {
+        Mockito.when(jsc.getStashUsername()).thenReturn("stashbot");
+        Mockito.when(us.findUserByNameOrEmail("stashbot")).thenReturn(Mockito.mock(StashUser.class));
+        Mockito.when(req.getPathInfo()).thenReturn(
+            buildPathInfo(REPO_ID, JobType.VERIFY_COMMIT, SUCCESSFUL,
+                BUILD_NUMBER, HEAD, MERGE_HEAD, PULL_REQUEST_ID));
+
+        bsrs.doGet(req, res);
+        bsrs.doGet(req, res);
+
+        Mockito.verify(prs, Mockito.times(2)).addComment(Mockito.eq(REPO_ID), Mockito.eq(PULL_REQUEST_ID),
+            Mockito.anyString());
+        Mockito.verify(us, Mockito.times(1)).findUserByNameOrEmail("stashbot");
+    }
+
+    @Test
+    public void testSingleBuildCommentIsEdited() throws Exception {
+        PullRequestBuildComment prbc = Mockito.mock(PullRequestBuildComment.class);
+        Comment edited = Mockito.mock(Comment.class);
+        Mockito.when(rc.getSingleBuildComment()).thenReturn(true);
+        Mockito.when(cpm.getPullRequestBuildComment(pr, JobType.VERIFY_COMMIT)).thenReturn(prbc);
+        Mockito.when(prbc.getCommentId()).thenReturn(5L);
+        Mockito.when(prbc.getCommentVersion()).thenReturn(2);
+        Mockito.when(prs.updateComment(Mockito.eq(REPO_ID), Mockito.eq(PULL_REQUEST_ID), Mockito.eq(5L),
+            Mockito.eq(2), Mockito.anyString())).thenReturn(edited);
+        Mockito.when(edited.getId()).thenReturn(5L);
+        Mockito.when(edited.getVersion()).thenReturn(3);
+        Mockito.when(req.getPathInfo()).thenReturn(
+            buildPathInfo(REPO_ID, JobType.VERIFY_COMMIT, SUCCESSFUL,
+                BUILD_NUMBER, HEAD, MERGE_HEAD, PULL_REQUEST_ID));
+
+        bsrs.doGet(req, res);
+
+        Mockito.verify(prs, Mockito.never()).addComment(Mockito.anyInt(), Mockito.anyLong(), Mockito.anyString());
+        Mockito.verify(cpm).setPullRequestBuildComment(pr, JobType.VERIFY_COMMIT, 5L, 3);
+        Mockito.verify(res).setStatus(200);
+    }
+
+    @Test
+    public void testBatchReporting() throws Exception {
+        String batch = "["
+            + batchEntry(JobType.VERIFY_COMMIT, INPROGRESS) + ","
+            + batchEntry(JobType.VERIFY_COMMIT, SUCCESSFUL) + ","
+            + "{\"repoId\":" + Integer.toString(REPO_ID) + ",\"type\":\"bogus\",\"state\":\"successful\","
+            + "\"buildNumber\":1,\"buildHead\":\"" + HEAD + "\"}"
+            + "]";
+        Mockito.when(req.getReader()).thenReturn(new BufferedReader(new StringReader(batch)));
+
+        bsrs.doPost(req, res);
+
+        // the in progress report was replaced by the successful one, so only one status is written
+        ArgumentCaptor<BuildStatus> buildStatusCaptor = ArgumentCaptor.forClass(BuildStatus.class);
+        Mockito.verify(bss, Mockito.times(1)).add(Mockito.eq(HEAD), buildStatusCaptor.capture());
+        Assert.assertEquals(SUCCESSFUL, buildStatusCaptor.getValue().getState());
+        Mockito.verify(repositoryService, Mockito.times(1)).getById(REPO_ID);
+        Mockito.verify(res).setStatus(200);
+
+        JSONArray results = new JSONObject(mockWriter.toString()).getJSONArray("results");
+        Assert.assertEquals(3, results.length());
+        Assert.assertEquals("ok", results.getJSONObject(0).getString("status"));
+        Assert.assertTrue(results.getJSONObject(0).getBoolean("superseded"));
+        Assert.assertEquals("ok", results.getJSONObject(1).getString("status"));
+        Assert.assertEquals("error", results.getJSONObject(2).getString("status"));
+    }
+
+    @Test
+    public void testSupersededReportGetsResultOfReplacement() throws Exception {
+        Mockito.doThrow(new RuntimeException("boom")).when(bss).add(Mockito.eq(HEAD), Mockito.any(BuildStatus.class));
+        String batch = "["
+            + batchEntry(JobType.VERIFY_COMMIT, INPROGRESS) + ","
+            + batchEntry(JobType.VERIFY_COMMIT, SUCCESSFUL)
+            + "]";
+        Mockito.when(req.getReader()).thenReturn(new BufferedReader(new StringReader(batch)));
+
+        bsrs.doPost(req, res);
+
+        // the replacement failed, so the report it replaced wasn't recorded either
+        JSONArray results = new JSONObject(mockWriter.toString()).getJSONArray("results");
+        Assert.assertEquals(2, results.length());
+        Assert.assertEquals("error", results.getJSONObject(0).getString("status"));
+        Assert.assertTrue(results.getJSONObject(0).getBoolean("superseded"));
+        Assert.assertEquals("error", results.getJSONObject(1).getString("status"));
+    }
+
+    @Test
+    public void testBatchReportingFailsOnlyTheStatusesWhichFailed() throws Exception {
+        Mockito.doThrow(new RuntimeException("boom")).when(bss).add(Mockito.eq(MERGE_HEAD),
+            Mockito.any(BuildStatus.class));
+        String batch = "["
+            + batchEntry(JobType.VERIFY_COMMIT, SUCCESSFUL, HEAD) + ","
+            + batchEntry(JobType.VERIFY_COMMIT, SUCCESSFUL, MERGE_HEAD)
+            + "]";
+        Mockito.when(req.getReader()).thenReturn(new BufferedReader(new StringReader(batch)));
+
+        bsrs.doPost(req, res);
+
+        Mockito.verify(bss).add(Mockito.eq(HEAD), Mockito.any(BuildStatus.class));
+        Mockito.verify(res).setStatus(200);
+
+        JSONArray results = new JSONObject(mockWriter.toString()).getJSONArray("results");
+        Assert.assertEquals(2, results.length());
+        Assert.assertEquals("ok", results.getJSONObject(0).getString("status"));
+        Assert.assertEquals("error", results.getJSONObject(1).getString("status"));
+        Assert.assertEquals("boom", results.getJSONObject(1).getString("message"));
+    }
+
+    private String batchEntry(JobType jt, State state) {
+        return batchEntry(jt, state, HEAD);
+    }
+
+    private String batchEntry(JobType jt, State state, String head) {
+        return "{\"repoId\":" + Integer.toString(REPO_ID) + ",\"type\":\"" + jt.toString() + "\",\"state\":\""
+            + state.toString() + "\",\"buildNumber\":" + Long.toString(BUILD_NUMBER) + ",\"buildHead\":\"" + head
+            + "\"}";
+    }
+
+    @Test
+    public void testAsyncReportingQueues() throws Exception {
+        Mockito.when(jsc.getAsyncReporting()).thenReturn(true);
+        Mockito.when(req.getPathInfo()).thenReturn(
+            buildPathInfo(REPO_ID, JobType.VERIFY_COMMIT, SUCCESSFUL,
+                BUILD_NUMBER, HEAD, MERGE_HEAD, PULL_REQUEST_ID));
+
+        bsrs.doGet(req, res);
+
+        ArgumentCaptor<BuildReport> reportCaptor = ArgumentCaptor.forClass(BuildReport.class);
+        Mockito.verify(brq).enqueue(reportCaptor.capture());
+        Assert.assertEquals(Long.valueOf(PULL_REQUEST_ID), reportCaptor.getValue().getPullRequestId());
+        Mockito.verify(res).setStatus(HttpServletResponse.SC_ACCEPTED);
+        Mockito.verify(prs, Mockito.never()).addComment(Mockito.anyInt(), Mockito.anyLong(), Mockito.anyString());
+        Mockito.verify(cpm, Mockito.never()).setPullRequestMetadata(Mockito.any(PullRequest.class),
+            Mockito.anyString(), Mockito.anyString(), Mockito.anyBoolean(), Mockito.anyBoolean(),
+            Mockito.anyBoolean(), Mockito.anyBoolean());
+    }
+
     // path info:
     // "/BASE_URL/REPO_ID/TYPE/STATE/BUILD_NUMBER/BUILD_HEAD[/MERGE_HEAD/PULLREQUEST_ID]"
     private String buildPathInfo(int repoId, JobType jt, State state,
@@ -26,6 +26,7 @@ import com.atlassian.webresource.api.assembler.WebResourceAssembler;
 import com.google.common.collect.ImmutableList;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceImpl;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
 import com.palantir.stash.stashbot.managers.PluginUserManager;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
@@ -139,7 +140,8 @@ public class JenkinsConfigurationServletTest {
         when(pageBuilderService.assembler()).thenReturn(webResourceAssembler);
         when(webResourceAssembler.resources()).thenReturn(rr);
 
-        jcs = new JenkinsConfigurationServlet(soyTemplateRenderer, pageBuilderService, cpm, pum, null, lup, lf, pvs);
+        jcs = new JenkinsConfigurationServlet(soyTemplateRenderer, pageBuilderService, cpm, pum, null, null,
+            new Tracer(lf), lup, lf, pvs);
     }
 
     @Test
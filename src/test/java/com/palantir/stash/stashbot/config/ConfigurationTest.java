@@ -33,6 +33,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.activeobjects.test.TestActiveObjects;
@@ -44,11 +46,17 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService.EmailSettings;
 import com.palantir.stash.stashbot.config.ConfigurationTest.DataStuff;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
 import com.palantir.stash.stashbot.event.StashbotMetadataUpdatedEvent;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration.AuthenticationMode;
+import com.palantir.stash.stashbot.persistence.JobMapping;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.JobTypeStatusMapping;
+import com.palantir.stash.stashbot.persistence.PullRequestBuildComment;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
@@ -96,7 +104,8 @@ public class ConfigurationTest {
 
         ao = new TestActiveObjects(entityManager);
 
-        cpm = new ConfigurationPersistenceImpl(ao, lf, publisher);
+        cpm = new ConfigurationPersistenceImpl(ao, new JobTemplateManager(ao, lf), lf, publisher,
+            new MetricsRegistry(lf));
     }
 
     @Test
@@ -241,7 +250,8 @@ public class ConfigurationTest {
         @Override
         public void update(EntityManager entityManager) throws Exception {
             entityManager.migrate(JenkinsServerConfiguration.class,
-                RepositoryConfiguration.class, PullRequestMetadata.class, JobTypeStatusMapping.class);
+                RepositoryConfiguration.class, PullRequestMetadata.class, JobTypeStatusMapping.class,
+                JobTemplate.class, JobMapping.class, PullRequestBuildComment.class);
 
             RepositoryConfiguration rc = entityManager.create(
                 RepositoryConfiguration.class, new DBParam("REPO_ID",
@@ -257,6 +267,72 @@ public class ConfigurationTest {
 
     }
 
+    @Test
+    public void testConfigurationChangesBumpVersions() throws Exception {
+        final ConfigurationVersionTracker tracker = new ConfigurationVersionTracker();
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object event = invocation.getArguments()[0];
+                if (event instanceof StashbotConfigurationUpdatedEvent) {
+                    tracker.onConfigurationUpdated((StashbotConfigurationUpdatedEvent) event);
+                }
+                return null;
+            }
+        }).when(publisher).publish(Mockito.any());
+
+        Repository repo = Mockito.mock(Repository.class);
+        Mockito.when(repo.getId()).thenReturn(1);
+        String before = tracker.getConfigurationVersion(1);
+        String otherBefore = tracker.getConfigurationVersion(2);
+
+        cpm.setRepositoryConfigurationForRepository(repo, true, "verifyBranchRegex", "verifyBuildCommand",
+            "publishBranchRegex", "publishBuildCommand", "prebuildCommand", false);
+
+        String after = tracker.getConfigurationVersion(1);
+        Assert.assertFalse(before.equals(after));
+        Assert.assertEquals(otherBefore, tracker.getConfigurationVersion(2));
+
+        // server changes affect every repository
+        cpm.setJenkinsServerConfiguration("foo", "url", "yuser", "pw", null, "stashuser", "stashpw", 10, false);
+        Assert.assertFalse(after.equals(tracker.getConfigurationVersion(1)));
+        Assert.assertFalse(otherBefore.equals(tracker.getConfigurationVersion(2)));
+    }
+
+    @Test
+    public void testCiEnabledCache() throws Exception {
+        final CiEnabledCache cache = new CiEnabledCache(ao, lf);
+        cache.onStart();
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object event = invocation.getArguments()[0];
+                if (event instanceof StashbotConfigurationUpdatedEvent) {
+                    cache.onConfigurationUpdated((StashbotConfigurationUpdatedEvent) event);
+                }
+                return null;
+            }
+        }).when(publisher).publish(Mockito.any());
+
+        Repository repo = Mockito.mock(Repository.class);
+        Mockito.when(repo.getId()).thenReturn(1);
+
+        int size = ao.count(RepositoryConfiguration.class);
+        Assert.assertFalse(cache.isCiEnabled(1));
+        // never creates configurations
+        Assert.assertEquals(size, ao.count(RepositoryConfiguration.class));
+
+        cpm.setRepositoryConfigurationForRepository(repo, true, "verifyBranchRegex", "verifyBuildCommand",
+            "publishBranchRegex", "publishBuildCommand", "prebuildCommand", false);
+        Assert.assertTrue(cache.isCiEnabled(1));
+
+        cpm.setRepositoryConfigurationForRepository(repo, false, "verifyBranchRegex", "verifyBuildCommand",
+            "publishBranchRegex", "publishBuildCommand", "prebuildCommand", false);
+        Assert.assertFalse(cache.isCiEnabled(1));
+    }
+
     @Test
     public void testPullRequestMetadata() throws Exception {
         Assert.assertEquals(0, ao.count(PullRequestMetadata.class));
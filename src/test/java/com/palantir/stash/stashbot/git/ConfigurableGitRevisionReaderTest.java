@@ -0,0 +1,88 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+
+public class ConfigurableGitRevisionReaderTest {
+
+    private static final ImmutableList<String> PLUS = ImmutableList.of("refs/heads/master");
+    private static final ImmutableList<String> MINUS = ImmutableList.of("refs/heads/other");
+    private static final ImmutableList<String> CHANGESETS = ImmutableList.of("aaaa", "bbbb");
+
+    @Mock
+    private GitRevisionReader cli;
+    @Mock
+    private GitRevisionReader jgit;
+    @Mock
+    private Repository repo;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(cli.getBranches(repo)).thenReturn(PLUS);
+        Mockito.when(cli.getChangesets(repo, PLUS, MINUS, 0)).thenReturn(CHANGESETS);
+    }
+
+    @Test
+    public void testUsesCliByDefault() {
+        ConfigurableGitRevisionReader grr = new ConfigurableGitRevisionReader(cli, null, lf);
+
+        Assert.assertEquals(PLUS, grr.getBranches(repo));
+        Assert.assertEquals(CHANGESETS, grr.getChangesets(repo, PLUS, MINUS, 0));
+    }
+
+    @Test
+    public void testUsesJGitWhenEnabled() {
+        Mockito.when(jgit.getChangesets(repo, PLUS, MINUS, 0)).thenReturn(CHANGESETS);
+        ConfigurableGitRevisionReader grr = new ConfigurableGitRevisionReader(cli, jgit, lf);
+
+        Assert.assertEquals(CHANGESETS, grr.getChangesets(repo, PLUS, MINUS, 0));
+        Mockito.verifyZeroInteractions(cli);
+    }
+
+    @Test
+    public void testFallsBackToCliWhenJGitFails() {
+        Mockito.when(jgit.getBranches(repo)).thenThrow(new RuntimeException("corrupt pack"));
+        Mockito.when(jgit.getChangesets(repo, PLUS, MINUS, 0)).thenThrow(new RuntimeException("corrupt pack"));
+        ConfigurableGitRevisionReader grr = new ConfigurableGitRevisionReader(cli, jgit, lf);
+
+        Assert.assertEquals(PLUS, grr.getBranches(repo));
+        Assert.assertEquals(CHANGESETS, grr.getChangesets(repo, PLUS, MINUS, 0));
+        Mockito.verify(cli).getChangesets(repo, PLUS, MINUS, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailsWhenBothFail() {
+        Mockito.when(jgit.getChangesets(repo, PLUS, MINUS, 0)).thenThrow(
+            new IllegalArgumentException("Unable to resolve revision refs/heads/other"));
+        Mockito.when(cli.getChangesets(repo, PLUS, MINUS, 0)).thenThrow(
+            new IllegalArgumentException("rev-list failed"));
+        ConfigurableGitRevisionReader grr = new ConfigurableGitRevisionReader(cli, jgit, lf);
+
+        grr.getChangesets(repo, PLUS, MINUS, 0);
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.io.File;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.google.common.collect.ImmutableList;
+
+public class JGitRevisionReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Mock
+    private ApplicationPropertiesService aps;
+    @Mock
+    private Repository repo;
+
+    private Git git;
+    private RevCommit first;
+    private RevCommit second;
+    private RevCommit third;
+
+    private JGitRevisionReader grr;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        File dir = tmp.newFolder("repo");
+        git = Git.init().setDirectory(dir).call();
+        first = git.commit().setMessage("first").call();
+        second = git.commit().setMessage("second").call();
+        git.branchCreate().setName("other").call();
+        third = git.commit().setMessage("third").call();
+
+        Mockito.when(aps.getRepositoryDir(repo)).thenReturn(new File(dir, ".git"));
+
+        grr = new JGitRevisionReader(aps);
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    @Test
+    public void testGetBranches() {
+        ImmutableList<String> branches = grr.getBranches(repo);
+
+        Assert.assertEquals(2, branches.size());
+        Assert.assertTrue(branches.contains("refs/heads/master"));
+        Assert.assertTrue(branches.contains("refs/heads/other"));
+    }
+
+    @Test
+    public void testGetChangesetsOldToNew() {
+        ImmutableList<String> changesets =
+            grr.getChangesets(repo, ImmutableList.of(third.getName()), ImmutableList.<String> of(), 0);
+
+        Assert.assertEquals(ImmutableList.of(first.getName(), second.getName(), third.getName()), changesets);
+    }
+
+    @Test
+    public void testGetChangesetsExcludesBranches() {
+        ImmutableList<String> changesets =
+            grr.getChangesets(repo, ImmutableList.of(third.getName()), ImmutableList.of("refs/heads/other"), 0);
+
+        Assert.assertEquals(ImmutableList.of(third.getName()), changesets);
+    }
+
+    @Test
+    public void testGetChangesetsKeepsNewestWhenLimited() {
+        ImmutableList<String> changesets =
+            grr.getChangesets(repo, ImmutableList.of(third.getName()), ImmutableList.<String> of(), 2);
+
+        Assert.assertEquals(ImmutableList.of(second.getName(), third.getName()), changesets);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetChangesetsFailsOnMissingExclusion() {
+        // same as git rev-list, which fails rather than ignoring a revision it can't find
+        grr.getChangesets(repo, ImmutableList.of(third.getName()), ImmutableList.of("refs/heads/nonexistent"), 0);
+    }
+}
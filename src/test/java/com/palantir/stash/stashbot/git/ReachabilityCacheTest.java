@@ -0,0 +1,197 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.git;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+
+public class ReachabilityCacheTest {
+
+    private static final String FIRST = "15e5e7272bec0e0c1093327b0e8e02deefa6d1e5";
+    private static final String SECOND = "cac9954e06013073c1bf9e17b2c1c919095817dc";
+    private static final String THIRD = "38356e8abe0e97648dd1007278ecc02c3bf3d2cb";
+    private static final ImmutableList<String> VERIFY_BRANCHES = ImmutableList.of("refs/heads/master");
+
+    @Mock
+    private GitRevisionReader grr;
+    @Mock
+    private Repository repo;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+    private final QueueingExecutor seeder = new QueueingExecutor();
+
+    private ReachabilityCache rc;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(grr.getChangesets(repo, VERIFY_BRANCHES, ImmutableList.<String> of(),
+            ReachabilityCache.MAX_COMMITS_PER_REPOSITORY + 1)).thenReturn(ImmutableList.of(FIRST, SECOND));
+
+        rc = new ReachabilityCache(grr, seeder, 0, lf);
+    }
+
+    @Test
+    public void testSeedsInBackground() {
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+
+        // nothing has been walked yet
+        Assert.assertFalse(rc.isWarm(repo));
+        Assert.assertTrue(rc.isTracked(repo));
+        Mockito.verifyZeroInteractions(grr);
+
+        seeder.runAll();
+
+        Assert.assertTrue(rc.isWarm(repo));
+        Assert.assertEquals(ImmutableList.of(THIRD), rc.recordNew(repo, ImmutableList.of(SECOND, THIRD)));
+    }
+
+    @Test
+    public void testOnlyOneSeedAtATime() {
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+
+        Assert.assertEquals(1, seeder.tasks.size());
+    }
+
+    @Test
+    public void testInvalidateDiscardsSeedInProgress() {
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        // e.g. a force push while the seed was walking, so it may have seen commits which are now gone
+        rc.invalidate(repo);
+        seeder.runAll();
+
+        Assert.assertFalse(rc.isWarm(repo));
+        Assert.assertFalse(rc.isTracked(repo));
+    }
+
+    @Test
+    public void testFailedSeedLeavesRepositoryCold() {
+        Mockito.when(grr.getChangesets(repo, VERIFY_BRANCHES, ImmutableList.<String> of(),
+            ReachabilityCache.MAX_COMMITS_PER_REPOSITORY + 1)).thenThrow(new RuntimeException("rev-list failed"));
+
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        seeder.runAll();
+
+        Assert.assertFalse(rc.isWarm(repo));
+        Assert.assertFalse(rc.isTracked(repo));
+    }
+
+    @Test
+    public void testSeedsAtMostOncePerInterval() {
+        rc = new ReachabilityCache(grr, seeder, ReachabilityCache.SEED_INTERVAL_MILLIS, lf);
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        seeder.runAll();
+        rc.invalidate(repo);
+
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+
+        Assert.assertTrue(seeder.tasks.isEmpty());
+        Assert.assertFalse(rc.isWarm(repo));
+    }
+
+    @Test
+    public void testConfigurationChangeForgetsRepository() {
+        rc = new ReachabilityCache(grr, seeder, ReachabilityCache.SEED_INTERVAL_MILLIS, lf);
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        seeder.runAll();
+
+        // server-wide changes leave it alone
+        rc.onConfigurationUpdated(new StashbotConfigurationUpdatedEvent(this, null));
+        Assert.assertTrue(rc.isWarm(repo));
+
+        // the verify branch regex may have changed, so it is seeded again straight away
+        rc.onConfigurationUpdated(new StashbotConfigurationUpdatedEvent(this, 1));
+        Assert.assertFalse(rc.isWarm(repo));
+        rc.requestSeed(repo, VERIFY_BRANCHES);
+        Assert.assertEquals(1, seeder.tasks.size());
+    }
+
+    @Test
+    public void testRecordNewOnColdRepository() {
+        Assert.assertNull(rc.recordNew(repo, ImmutableList.of(FIRST)));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        rc.seed(repo, ImmutableList.of(FIRST));
+        for (int i = 0; i < ReachabilityCache.MAX_REPOSITORIES; ++i) {
+            Repository other = Mockito.mock(Repository.class);
+            Mockito.when(other.getId()).thenReturn(2 + i);
+            rc.seed(other, ImmutableList.<String> of());
+        }
+
+        Assert.assertFalse(rc.isWarm(repo));
+    }
+
+    /**
+     * Holds on to submitted seeds until the test runs them.
+     */
+    private static class QueueingExecutor extends AbstractExecutorService {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        void runAll() {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            tasks.clear();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -37,6 +37,7 @@ import com.google.common.collect.ImmutableList;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
 
@@ -139,7 +140,7 @@ public class PullRequestBuildSuccessMergeCheckTest {
         Mockito.when(bsA.getSuccessfulCount()).thenReturn(1);
         Mockito.when(bsB.getSuccessfulCount()).thenReturn(1);
 
-        prmc = new PullRequestBuildSuccessMergeCheck(cs, bss, cpm, lf);
+        prmc = new PullRequestBuildSuccessMergeCheck(cs, bss, cpm, new MetricsRegistry(lf), lf);
     }
 
     @Test
@@ -30,8 +30,11 @@ import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.repository.Repository;
 import com.google.common.collect.ImmutableList;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceImpl;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
 import com.palantir.stash.stashbot.managers.JenkinsManager;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.PullRequestMetadata;
@@ -52,6 +55,8 @@ public class PullRequestListenerTest {
     private JenkinsManager jenkinsManager;
     @Mock
     private RepositoryConfiguration rc;
+    @Mock
+    private GitRevisionReader grr;
 
     private PullRequestListener prl;
 
@@ -127,7 +132,7 @@ public class PullRequestListenerTest {
         Mockito.when(rc.getVerifyBranchRegex()).thenReturn(".*master.*");
         Mockito.when(rc.getRebuildOnTargetUpdate()).thenReturn(true);
 
-        prl = new PullRequestListener(cpm, jenkinsManager, lf);
+        prl = new PullRequestListener(cpm, jenkinsManager, new ReachabilityCache(grr, lf), new Tracer(lf), lf);
 
     }
 
@@ -0,0 +1,250 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.hooks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+import com.palantir.stash.stashbot.git.JGitRevisionReader;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
+import com.palantir.stash.stashbot.managers.JenkinsManager;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+/**
+ * Pushes to a real (JGit) repository, since whether the reachability cache gives the right answer depends on the
+ * actual commit graph.
+ */
+public class TriggerJenkinsBuildHookReachabilityTest {
+
+    private static final String MASTER = "refs/heads/master";
+    private static final int REPO_ID = 1;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Mock
+    private ConfigurationPersistenceService cpm;
+    @Mock
+    private JenkinsManager jenkinsManager;
+    @Mock
+    private RepositoryConfiguration rc;
+    @Mock
+    private JenkinsServerConfiguration jsc;
+    @Mock
+    private ApplicationPropertiesService aps;
+    @Mock
+    private Repository repo;
+    @Mock
+    private HookResponse hr;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private Git git;
+    private RevCommit first;
+    private RevCommit second;
+    private RevCommit third;
+
+    private GitRevisionReader grr;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo)).thenReturn(rc);
+        Mockito.when(cpm.getJenkinsServerConfiguration(Mockito.anyString())).thenReturn(jsc);
+        Mockito.when(cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT)).thenReturn(true);
+        Mockito.when(rc.getCiEnabled()).thenReturn(true);
+        Mockito.when(rc.getVerifyBranchRegex()).thenReturn(MASTER);
+
+        // master starts at first, second and third are pushed (and un-pushed) by the tests
+        File dir = tmp.newFolder("repo");
+        git = Git.init().setDirectory(dir).call();
+        first = git.commit().setMessage("first").call();
+        second = git.commit().setMessage("second").call();
+        third = git.commit().setMessage("third").call();
+        moveBranch(MASTER, first);
+
+        Mockito.when(aps.getRepositoryDir(repo)).thenReturn(new File(dir, ".git"));
+        grr = new JGitRevisionReader(aps);
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    @Test
+    public void testWarmCacheSkipsAlreadyVerifiedCommits() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(0);
+        TriggerJenkinsBuildHook tjbh = newHook(reachabilityCache);
+        // second is already on a verify branch, so only third is new
+        reachabilityCache.seed(repo, ImmutableList.of(first.getName(), second.getName()));
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, third)), hr);
+
+        verifyBuilt(second, 0);
+        verifyBuilt(third, 1);
+    }
+
+    @Test
+    public void testColdCacheIsSeeded() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(0);
+        TriggerJenkinsBuildHook tjbh = newHook(reachabilityCache);
+
+        RefChange change = push(MASTER, first, second);
+        tjbh.onReceive(repo, ImmutableList.of(change), hr);
+
+        verifyBuilt(second, 1);
+        Assert.assertTrue(reachabilityCache.isWarm(repo));
+
+        // pushing the same commit again finds nothing new
+        tjbh.onReceive(repo, ImmutableList.of(change), hr);
+        verifyBuilt(second, 1);
+    }
+
+    @Test
+    public void testForcePushedAwayCommitsAreBuiltAgain() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(0);
+        TriggerJenkinsBuildHook tjbh = newHook(reachabilityCache);
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, third)), hr);
+        Assert.assertTrue(reachabilityCache.isWarm(repo));
+
+        // force push master back to first, so second and third are no longer on any verify branch
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, third, first)), hr);
+
+        // and push them again
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, third)), hr);
+
+        verifyBuilt(second, 2);
+        verifyBuilt(third, 2);
+    }
+
+    @Test
+    public void testEvictedRepositoryFallsBackToFullRevList() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(0);
+        TriggerJenkinsBuildHook tjbh = newHook(reachabilityCache);
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, second)), hr);
+        evict(reachabilityCache);
+        Assert.assertFalse(reachabilityCache.isWarm(repo));
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, second, third)), hr);
+
+        verifyBuilt(second, 1);
+        verifyBuilt(third, 1);
+        // and is seeded again, the seed interval having passed
+        Assert.assertTrue(reachabilityCache.isWarm(repo));
+    }
+
+    @Test
+    public void testEvictedRepositoryIsNotReseededWithinInterval() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(ReachabilityCache.SEED_INTERVAL_MILLIS);
+        TriggerJenkinsBuildHook tjbh = newHook(reachabilityCache);
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, second)), hr);
+        Assert.assertTrue(reachabilityCache.isWarm(repo));
+        evict(reachabilityCache);
+
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, second, third)), hr);
+
+        verifyBuilt(third, 1);
+        Assert.assertFalse(reachabilityCache.isWarm(repo));
+    }
+
+    @Test
+    public void testLargePushFallsBackToFullRevList() throws IOException {
+        ReachabilityCache reachabilityCache = newCache(0);
+        TriggerJenkinsBuildHook tjbh = new TriggerJenkinsBuildHook(cpm, jenkinsManager, grr, reachabilityCache,
+            new MetricsRegistry(lf), new Tracer(lf), 1, lf);
+        reachabilityCache.seed(repo, ImmutableList.of(first.getName(), second.getName()));
+
+        // two commits is more than the hook will walk incrementally, so it forgets what it knew and uses the full
+        // rev-list, which doesn't know second was already verified
+        tjbh.onReceive(repo, ImmutableList.of(push(MASTER, first, third)), hr);
+
+        verifyBuilt(second, 1);
+        verifyBuilt(third, 1);
+    }
+
+    private ReachabilityCache newCache(long seedIntervalMillis) {
+        // seeds run inline so the tests can see their result straight away
+        return new ReachabilityCache(grr, MoreExecutors.sameThreadExecutor(), seedIntervalMillis, lf);
+    }
+
+    private TriggerJenkinsBuildHook newHook(ReachabilityCache reachabilityCache) {
+        return new TriggerJenkinsBuildHook(cpm, jenkinsManager, grr, reachabilityCache, new MetricsRegistry(lf),
+            new Tracer(lf), lf);
+    }
+
+    private void evict(ReachabilityCache reachabilityCache) {
+        for (int i = 0; i < ReachabilityCache.MAX_REPOSITORIES; ++i) {
+            Repository other = Mockito.mock(Repository.class);
+            Mockito.when(other.getId()).thenReturn(REPO_ID + 1 + i);
+            reachabilityCache.seed(other, ImmutableList.<String> of());
+        }
+    }
+
+    /**
+     * Moves the branch, as the push would have before the post-receive hook runs, and describes the change.
+     */
+    private RefChange push(String refId, RevCommit from, RevCommit to) throws IOException {
+        moveBranch(refId, to);
+        RefChange change = Mockito.mock(RefChange.class);
+        Mockito.when(change.getRefId()).thenReturn(refId);
+        Mockito.when(change.getFromHash()).thenReturn(from.getName());
+        Mockito.when(change.getToHash()).thenReturn(to.getName());
+        Mockito.when(change.getType()).thenReturn(RefChangeType.UPDATE);
+        return change;
+    }
+
+    private void moveBranch(String refId, RevCommit to) throws IOException {
+        RefUpdate ru = git.getRepository().updateRef(refId);
+        ru.setNewObjectId(to);
+        ru.forceUpdate();
+    }
+
+    private void verifyBuilt(RevCommit commit, int times) {
+        Mockito.verify(jenkinsManager, Mockito.times(times)).triggerBuild(repo, JobType.VERIFY_COMMIT,
+            commit.getName(), "");
+    }
+}
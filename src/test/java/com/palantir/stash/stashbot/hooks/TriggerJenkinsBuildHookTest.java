@@ -16,6 +16,7 @@ package com.palantir.stash.stashbot.hooks;
 import java.sql.SQLException;
 import java.util.ArrayList;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -29,10 +30,16 @@ import com.atlassian.stash.repository.RefChangeType;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.scm.git.GitCommandBuilderFactory;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.git.CliGitRevisionReader;
+import com.palantir.stash.stashbot.git.GitRevisionReader;
+import com.palantir.stash.stashbot.git.ReachabilityCache;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.logger.Tracer;
 import com.palantir.stash.stashbot.managers.JenkinsManager;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.mocks.MockGitCommandBuilderFactory;
 import com.palantir.stash.stashbot.outputhandler.CommandOutputHandlerFactory;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
@@ -74,6 +81,7 @@ public class TriggerJenkinsBuildHookTest {
     private ArrayList<RefChange> changes;
 
     private final PluginLoggerFactory lf = new PluginLoggerFactory();
+    private final MetricsRegistry metrics = new MetricsRegistry(lf);
 
     @Before
     public void setUp() throws SQLException {
@@ -106,8 +114,10 @@ public class TriggerJenkinsBuildHookTest {
 
         gcbf = mgc.getGitCommandBuilderFactory();
         cohf = new CommandOutputHandlerFactory();
+        GitRevisionReader grr = new CliGitRevisionReader(gcbf, cohf);
+        ReachabilityCache reachabilityCache = new ReachabilityCache(grr, MoreExecutors.sameThreadExecutor(), 0, lf);
 
-        tjbh = new TriggerJenkinsBuildHook(cpm, jenkinsManager, gcbf, cohf, lf);
+        tjbh = new TriggerJenkinsBuildHook(cpm, jenkinsManager, grr, reachabilityCache, metrics, new Tracer(lf), lf);
     }
 
     @Test
@@ -117,6 +127,16 @@ public class TriggerJenkinsBuildHookTest {
         Mockito.verify(jenkinsManager).triggerBuild(repo, JobType.VERIFY_COMMIT, HEAD, "");
     }
 
+    @Test
+    public void testRecordsPhaseTimings() {
+        tjbh.onReceive(repo, changes, hr);
+
+        Assert.assertEquals(1, metrics.timer("hook.onReceive.total").getCount());
+        Assert.assertEquals(1, metrics.timer("hook.onReceive.revlist").getCount());
+        Assert.assertEquals(1, metrics.timer("hook.onReceive.trigger").getCount());
+        Assert.assertEquals(1L, metrics.snapshot().get("hook.revlist.size.count"));
+    }
+
     @Test
     public void testDoesntTriggerBuildOnPushWhenDisabled() {
         Mockito.when(cpm.getJobTypeStatusMapping(rc, JobType.VERIFY_COMMIT)).thenReturn(false);
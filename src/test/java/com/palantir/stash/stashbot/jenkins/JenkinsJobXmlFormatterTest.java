@@ -73,8 +73,6 @@ public class JenkinsJobXmlFormatterTest {
     @Mock
     private ConfigurationPersistenceService cpm;
     @Mock
-    private StashbotUrlBuilder sub;
-    @Mock
     private RepositoryService rs;
 
     // nav builder intermediaries - god damn this is annoying to mock
@@ -139,7 +137,7 @@ public class JenkinsJobXmlFormatterTest {
             }
         }).when(velocityTemplate).merge(Mockito.eq(velocityContext), writerCaptor.capture());
 
-        jjxf = new JenkinsJobXmlFormatter(velocityManager, cpm, sub, navBuilder, rs);
+        jjxf = new JenkinsJobXmlFormatter(velocityManager, cpm, new StashbotUrlBuilder(navBuilder, rs));
     }
 
     @Test
@@ -165,4 +163,24 @@ public class JenkinsJobXmlFormatterTest {
 
         Assert.assertEquals(EXAMPLE_XML_TEXT, jobXml);
     }
+
+    @Test
+    public void testJJXFParsesTemplateOnce() throws Exception {
+
+        jjxf.generateJobXml(jobTemplate, repo);
+        jjxf.generateJobXml(jobTemplate, repo);
+
+        Mockito.verify(velocityEngine, Mockito.times(1)).getTemplate(TEMPLATE_NAME);
+        Mockito.verify(cpm, Mockito.times(2)).getJenkinsServerConfiguration("NAME");
+    }
+
+    @Test
+    public void testJJXFReparsesModifiedTemplate() throws Exception {
+
+        jjxf.generateJobXml(jobTemplate, repo);
+        Mockito.when(velocityTemplate.isSourceModified()).thenReturn(true);
+        jjxf.generateJobXml(jobTemplate, repo);
+
+        Mockito.verify(velocityEngine, Mockito.times(2)).getTemplate(TEMPLATE_NAME);
+    }
 }
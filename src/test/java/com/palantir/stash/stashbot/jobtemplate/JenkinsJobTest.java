@@ -15,6 +15,7 @@ package com.palantir.stash.stashbot.jobtemplate;
 
 import junit.framework.Assert;
 import net.java.ao.EntityManager;
+import net.java.ao.Query;
 import net.java.ao.test.jdbc.Data;
 import net.java.ao.test.jdbc.DatabaseUpdater;
 import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
@@ -36,8 +37,12 @@ import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RepositoryService;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceImpl;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.event.StashbotConfigurationUpdatedEvent;
 import com.palantir.stash.stashbot.jobtemplate.JenkinsJobTest.DataStuff;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.persistence.JobFingerprint;
 import com.palantir.stash.stashbot.persistence.JobMapping;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.JobTypeStatusMapping;
@@ -93,7 +98,7 @@ public class JenkinsJobTest {
         ao = new TestActiveObjects(entityManager);
 
         jtm = new JobTemplateManager(ao, lf);
-        cpm = new ConfigurationPersistenceImpl(ao, lf, publisher);
+        cpm = new ConfigurationPersistenceImpl(ao, jtm, lf, publisher, new MetricsRegistry(lf));
 
         verifyCommitJT = jtm.getDefaultVerifyJob();
         verifyPRJT = jtm.getDefaultVerifyPullRequestJob();
@@ -156,13 +161,96 @@ public class JenkinsJobTest {
         Assert.assertEquals(JobType.VERIFY_PR, prjt.getJobType());
     }
 
+    @Test
+    public void testTemplateDispatch() throws Exception {
+        Assert.assertEquals(verifyPRJT.getID(), jtm.getJobTemplate(JobType.VERIFY_PR, rc).getID());
+        Assert.assertEquals(publishJT.getID(), jtm.fromString(rc, "PUBLISH").getID());
+        Assert.assertNull(jtm.getJobTemplate(JobType.NOOP, rc));
+        Assert.assertNull(jtm.fromString(rc, "nonexistent"));
+    }
+
+    @Test
+    public void testJobFingerprint() throws Exception {
+        Assert.assertNull(jtm.getJobFingerprint(rc, verifyCommitJT));
+        Assert.assertNull(jtm.getJobFingerprintVersion(rc, verifyCommitJT));
+
+        String fp = JobTemplateManager.fingerprintXml("<xml/>");
+        jtm.setJobFingerprint(rc, verifyCommitJT, fp);
+        Assert.assertEquals(fp, jtm.getJobFingerprint(rc, verifyCommitJT));
+        Assert.assertEquals(JobTemplateManager.JOB_XML_VERSION, (int) jtm.getJobFingerprintVersion(rc, verifyCommitJT));
+        Assert.assertNull(jtm.getJobFingerprint(rc, publishJT));
+
+        String fp2 = JobTemplateManager.fingerprintXml("<xml></xml>");
+        Assert.assertFalse(fp.equals(fp2));
+        jtm.setJobFingerprint(rc, verifyCommitJT, fp2);
+        Assert.assertEquals(fp2, jtm.getJobFingerprint(rc, verifyCommitJT));
+        Assert.assertEquals(1, ao.count(JobFingerprint.class));
+    }
+
+    @Test
+    public void testDefaultMappingsCreatedWithConfiguration() throws Exception {
+        Repository repo2 = Mockito.mock(Repository.class);
+        Mockito.when(repo2.getId()).thenReturn(5678);
+
+        RepositoryConfiguration rc2 = cpm.getRepositoryConfigurationForRepository(repo2);
+
+        Assert.assertEquals(3, ao.find(JobMapping.class,
+            Query.select().where("REPOSITORY_CONFIGURATION_ID = ?", rc2.getID())).length);
+        Assert.assertEquals(3, jtm.getJenkinsJobsForRepository(rc2).size());
+    }
+
+    @Test
+    public void testJobTemplateChangeIsSeenByNextLookup() throws Exception {
+        JobTemplate before = jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc);
+        Assert.assertEquals("jenkins-verify-job.vm", before.getTemplateFile());
+
+        jtm.setJobTemplate(before.getName(), "other-verify-job.vm", JobType.VERIFY_COMMIT);
+
+        JobTemplate after = jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc);
+        Assert.assertEquals("other-verify-job.vm", after.getTemplateFile());
+    }
+
+    @Test
+    public void testTemplatesAreCachedUntilConfigurationChanges() throws Exception {
+        JobTemplate before = jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc);
+        Assert.assertSame(before, jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc));
+        Assert.assertSame(before, jtm.fromString(rc, JobType.VERIFY_COMMIT.toString()));
+        try {
+            before.save();
+            Assert.fail("cached templates are read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // changed behind the manager's back, e.g. by an upgrade task
+        verifyCommitJT.setTemplateFile("other-verify-job.vm");
+        verifyCommitJT.save();
+        Assert.assertEquals("jenkins-verify-job.vm", jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc).getTemplateFile());
+
+        jtm.onConfigurationUpdated(new StashbotConfigurationUpdatedEvent(this, null));
+        Assert.assertEquals("other-verify-job.vm", jtm.getJobTemplate(JobType.VERIFY_COMMIT, rc).getTemplateFile());
+    }
+
+    @Test
+    public void testLookupContextKeepsTemplatesForOneRequest() throws Exception {
+        LookupContext lc = new LookupContext(cpm, jtm);
+        JobTemplate before = lc.getJobTemplate(rc, JobType.VERIFY_COMMIT);
+        Assert.assertSame(before, lc.fromString(rc, JobType.VERIFY_COMMIT.toString()));
+        Assert.assertSame(lc.getJenkinsJobsForRepository(rc), lc.getJenkinsJobsForRepository(rc));
+
+        jtm.setJobTemplate(before.getName(), "other-verify-job.vm", JobType.VERIFY_COMMIT);
+
+        JobTemplate after = new LookupContext(cpm, jtm).getJobTemplate(rc, JobType.VERIFY_COMMIT);
+        Assert.assertEquals("other-verify-job.vm", after.getTemplateFile());
+    }
+
     public static class DataStuff implements DatabaseUpdater {
 
         @SuppressWarnings("unchecked")
         @Override
         public void update(EntityManager entityManager) throws Exception {
             entityManager.migrate(JobTemplate.class, JobMapping.class,
-                RepositoryConfiguration.class, JobTypeStatusMapping.class);
+                RepositoryConfiguration.class, JobTypeStatusMapping.class, JobFingerprint.class);
         }
 
     }
@@ -38,4 +38,51 @@ public class LoggerTest {
         testLogger.warn("warn");
         testLogger.error("error");
     }
+
+    @Test
+    public void testFactoriesShareLoggers() {
+        PluginLoggerFactory lf1 = new PluginLoggerFactory();
+        PluginLoggerFactory lf2 = new PluginLoggerFactory();
+
+        Logger log = lf1.getLoggerForThis(this);
+        Assert.assertEquals(LoggerTest.class.getName(), log.getName());
+        Assert.assertSame(log, lf1.getLogger(LoggerTest.class));
+        Assert.assertSame(log, lf2.getLoggerForThis(this));
+    }
+
+    @Test
+    public void testDestroyedFactoryIsReplaced() {
+        // its own context, so the factories other tests share are left alone
+        PluginLoggerFactory.SharedContext sc = new PluginLoggerFactory.SharedContext();
+        PluginLoggerFactory lf = new PluginLoggerFactory(".", sc);
+        Logger old = lf.getLogger("stashbot.test");
+        lf.destroy();
+        Assert.assertFalse(isStarted(old));
+
+        Logger log = new PluginLoggerFactory(".", sc).getLogger("stashbot.test");
+        Assert.assertNotSame(old, log);
+        Assert.assertTrue(isStarted(log));
+        log.info("still works");
+    }
+
+    @Test
+    public void testContextOutlivesAllButTheLastFactory() {
+        PluginLoggerFactory.SharedContext sc = new PluginLoggerFactory.SharedContext();
+        PluginLoggerFactory lf1 = new PluginLoggerFactory(".", sc);
+        PluginLoggerFactory lf2 = new PluginLoggerFactory(".", sc);
+        Logger log = lf2.getLogger("stashbot.test");
+
+        lf1.destroy();
+        // destroying the same factory twice doesn't count twice
+        lf1.destroy();
+        Assert.assertTrue(isStarted(log));
+        log.info("still works");
+
+        lf2.destroy();
+        Assert.assertFalse(isStarted(log));
+    }
+
+    private static boolean isStarted(Logger log) {
+        return ((ch.qos.logback.classic.Logger) log).getLoggerContext().isStarted();
+    }
 }
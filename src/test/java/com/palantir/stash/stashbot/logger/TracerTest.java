@@ -0,0 +1,91 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.logger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+import com.palantir.stash.stashbot.metrics.Timer;
+
+public class TracerTest {
+
+    @Mock
+    private Repository repo;
+    @Mock
+    private Repository otherRepo;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private Tracer tracer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(otherRepo.getId()).thenReturn(2);
+        tracer = new Tracer(lf);
+    }
+
+    @Test
+    public void testNotTracedByDefault() {
+        Span span = tracer.start("test", repo);
+        Assert.assertFalse(span.isTraced());
+        Assert.assertFalse(span.child("child").isTraced());
+        span.end();
+    }
+
+    @Test
+    public void testTracesOneRepository() {
+        tracer.setRepositoryTraced(1, true);
+
+        Span span = tracer.start("test", repo);
+        Assert.assertTrue(span.isTraced());
+        Assert.assertTrue(span.child("child").tag("key", "value").isTraced());
+        span.message("a {} message", "parameterized");
+        span.end();
+        Assert.assertFalse(tracer.start("test", otherRepo).isTraced());
+
+        tracer.setRepositoryTraced(1, false);
+        Assert.assertFalse(tracer.start("test", repo).isTraced());
+    }
+
+    @Test
+    public void testSampling() {
+        tracer.setSampleRate(3);
+        int traced = 0;
+        for (int i = 0; i < 9; ++i) {
+            if (tracer.start("test", otherRepo).isTraced()) {
+                ++traced;
+            }
+        }
+        Assert.assertEquals(3, traced);
+    }
+
+    @Test
+    public void testUntracedSpansStillUpdateTimers() {
+        Timer timer = new MetricsRegistry(lf).timer("t");
+        Span span = tracer.start("test", repo, timer);
+        span.child("child", timer).end();
+        span.end();
+
+        Assert.assertFalse(span.isTraced());
+        Assert.assertEquals(2, timer.getCount());
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.stash.build.BuildStatus.State;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.BuildReportManager.BuildReport;
+import com.palantir.stash.stashbot.persistence.QueuedBuildReport;
+
+public class BuildReportQueueTest {
+
+    private static final String HEAD = "38356e8abe0e97648dd1007278ecc02c3bf3d2cb";
+
+    @Mock
+    private ActiveObjects ao;
+    @Mock
+    private BuildReportManager brm;
+    @Mock
+    private QueuedBuildReport qbr;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private BuildReport report;
+    private BuildReportQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        report = new BuildReport(1, "verification", State.SUCCESSFUL, 2, HEAD, null, null);
+
+        Mockito.when(qbr.getID()).thenReturn(7);
+        Mockito.when(qbr.getRepoId()).thenReturn(1);
+        Mockito.when(qbr.getJobType()).thenReturn("verification");
+        Mockito.when(qbr.getState()).thenReturn(State.SUCCESSFUL.toString());
+        Mockito.when(qbr.getBuildNumber()).thenReturn(2L);
+        Mockito.when(qbr.getBuildHead()).thenReturn(HEAD);
+        Mockito.when(ao.create(Mockito.eq(QueuedBuildReport.class), Mockito.<DBParam> anyVararg())).thenReturn(qbr);
+
+        List<ExecutorService> workers = new ArrayList<ExecutorService>();
+        for (int i = 0; i < BuildReportQueue.WORKERS; ++i) {
+            workers.add(MoreExecutors.sameThreadExecutor());
+        }
+        queue = new BuildReportQueue(ao, brm, workers, 0, lf);
+    }
+
+    @Test
+    public void testReportIsAppliedAndDeleted() throws Exception {
+        start();
+
+        queue.enqueue(report);
+
+        InOrder inOrder = Mockito.inOrder(brm, ao);
+        inOrder.verify(brm).report(Mockito.any(BuildReport.class));
+        inOrder.verify(ao).delete(qbr);
+    }
+
+    @Test
+    public void testFailedReportIsRetried() throws Exception {
+        start();
+        Mockito.doThrow(new RuntimeException("database hiccup")).doNothing().when(brm).report(
+            Mockito.any(BuildReport.class));
+
+        queue.enqueue(report);
+
+        Mockito.verify(brm, Mockito.times(2)).report(Mockito.any(BuildReport.class));
+        Mockito.verify(ao).delete(qbr);
+    }
+
+    @Test
+    public void testReportWhichKeepsFailingStaysQueued() throws Exception {
+        start();
+        Mockito.doThrow(new RuntimeException("jenkins user is gone")).when(brm).report(
+            Mockito.any(BuildReport.class));
+
+        queue.enqueue(report);
+
+        Mockito.verify(brm, Mockito.times(BuildReportQueue.MAX_ATTEMPTS)).report(Mockito.any(BuildReport.class));
+        Mockito.verify(ao, Mockito.never()).delete(qbr);
+    }
+
+    @Test
+    public void testAppliedReportDropsOlderFailedOnes() throws Exception {
+        start();
+        Mockito.doThrow(new RuntimeException("database hiccup")).when(brm).report(report);
+        queue.enqueue(report);
+        Mockito.verify(ao, Mockito.never()).delete(qbr);
+
+        // a later build of the same commit arrives and is applied
+        BuildReport newer = new BuildReport(1, "verification", State.FAILED, 3, HEAD, null, null);
+        QueuedBuildReport newerRow = Mockito.mock(QueuedBuildReport.class);
+        Mockito.when(newerRow.getID()).thenReturn(8);
+        Mockito.when(ao.create(Mockito.eq(QueuedBuildReport.class), Mockito.<DBParam> anyVararg())).thenReturn(
+            newerRow);
+        queue.enqueue(newer);
+
+        // which takes the failed one with it, rather than leaving it to be replayed over the newer result
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(ao, Mockito.atLeastOnce()).find(Mockito.eq(QueuedBuildReport.class), query.capture());
+        Query deleted = query.getValue();
+        Assert.assertTrue(deleted.getWhereClause().startsWith("ID <= ?"));
+        Assert.assertArrayEquals(new Object[] { 8, 1, "verification", HEAD }, deleted.getWhereParams());
+        Mockito.verify(ao).delete(qbr);
+    }
+
+    @Test
+    public void testReportForMissingRepoIsDropped() throws Exception {
+        start();
+        Mockito.doThrow(new IllegalArgumentException("no such repo")).when(brm).report(
+            Mockito.any(BuildReport.class));
+
+        queue.enqueue(report);
+
+        Mockito.verify(brm, Mockito.times(1)).report(Mockito.any(BuildReport.class));
+        Mockito.verify(ao).delete(qbr);
+    }
+
+    @Test
+    public void testReportQueuedBeforeStartIsAppliedOnceByReplay() throws Exception {
+        queue.enqueue(report);
+
+        Mockito.verify(ao).create(Mockito.eq(QueuedBuildReport.class), Mockito.<DBParam> anyVararg());
+        Mockito.verify(brm, Mockito.never()).report(Mockito.any(BuildReport.class));
+
+        stored(qbr);
+        queue.onStart();
+
+        Mockito.verify(brm, Mockito.times(1)).report(Mockito.any(BuildReport.class));
+        Mockito.verify(ao).delete(qbr);
+    }
+
+    // starts with nothing left over from before
+    private void start() {
+        stored();
+        queue.onStart();
+        stored(qbr);
+    }
+
+    private void stored(QueuedBuildReport... rows) {
+        Mockito.when(ao.find(Mockito.eq(QueuedBuildReport.class), Mockito.any(Query.class))).thenReturn(rows);
+    }
+}
@@ -0,0 +1,244 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.common.collect.ImmutableList;
+import com.offbytwo.jenkins.JenkinsServer;
+import com.offbytwo.jenkins.model.Job;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
+import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager.RepositoryJobs;
+import com.palantir.stash.stashbot.jobtemplate.JobType;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.DriftDetector.DriftKind;
+import com.palantir.stash.stashbot.mocks.MockSecurityServiceBuilder;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+public class DriftDetectorTest {
+
+    private static final String JOB_NAME = "repo_verification";
+    private static final String XML = "<project/>";
+    private static final String OLD_XML = "<project><old/></project>";
+
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private ConfigurationPersistenceService cpm;
+    @Mock
+    private JobTemplateManager jtm;
+    @Mock
+    private JenkinsJobXmlFormatter xmlFormatter;
+    @Mock
+    private JenkinsClientManager jenkinsClientManager;
+    @Mock
+    private JenkinsManager jenkinsManager;
+
+    @Mock
+    private Page<Repository> page;
+    @Mock
+    private Repository repo;
+    @Mock
+    private Project project;
+    @Mock
+    private RepositoryConfiguration rc;
+    @Mock
+    private JenkinsServerConfiguration jsc;
+    @Mock
+    private JenkinsServer jenkinsServer;
+    @Mock
+    private JobTemplate jt;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private Map<String, Job> jobs;
+    private DriftDetector dd;
+
+    @Before
+    public void setUp() throws Throwable {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(repositoryService.findAll(Mockito.any(PageRequest.class))).thenReturn(page);
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(repo));
+        Mockito.when(page.getIsLastPage()).thenReturn(true);
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(repo.getProject()).thenReturn(project);
+        Mockito.when(repo.getSlug()).thenReturn("repo");
+        Mockito.when(project.getKey()).thenReturn("PROJ");
+
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo)).thenReturn(rc);
+        Mockito.when(rc.getCiEnabled()).thenReturn(true);
+        Mockito.when(rc.getPreserveJenkinsJobConfig()).thenReturn(false);
+        Mockito.when(rc.getJenkinsServerName()).thenReturn("default");
+        Mockito.when(cpm.getJenkinsServerConfiguration("default")).thenReturn(jsc);
+        Mockito.when(jenkinsClientManager.getJenkinsServer(jsc, rc)).thenReturn(jenkinsServer);
+        jobs = new HashMap<String, Job>();
+        Mockito.when(jenkinsServer.getJobs()).thenReturn(jobs);
+
+        Mockito.when(jt.getJobType()).thenReturn(JobType.VERIFY_COMMIT);
+        Mockito.when(jt.getBuildNameFor(repo)).thenReturn(JOB_NAME);
+        RepositoryJobs repositoryJobs = new RepositoryJobs(ImmutableList.of(jt));
+        Mockito.when(jtm.getRepositoryJobs(rc)).thenReturn(repositoryJobs);
+        Mockito.when(xmlFormatter.generateJobXml(Mockito.eq(jt), Mockito.eq(repo), Mockito.any(LookupContext.class)))
+            .thenReturn(XML);
+
+        MockSecurityServiceBuilder mssb = new MockSecurityServiceBuilder();
+        SecurityService ss = mssb.getSecurityService();
+        Mockito.when(ss.withPermission(Mockito.any(Permission.class), Mockito.anyString())).thenReturn(
+            mssb.getEscalatedSecurityContext());
+
+        dd = new DriftDetector(repositoryService, cpm, jtm, xmlFormatter, jenkinsClientManager, jenkinsManager, ss, 0,
+            lf);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DriftDetector.REPAIR_PROPERTY);
+    }
+
+    @Test
+    public void testMissingJobIsCreated() throws Exception {
+        dd.scan();
+
+        assertDrift(DriftKind.MISSING);
+        verifyRepaired(1);
+    }
+
+    @Test
+    public void testStaleJobIsUpdated() throws Exception {
+        jobs.put(JOB_NAME, Mockito.mock(Job.class));
+        recordFingerprint(JobTemplateManager.fingerprintXml(OLD_XML), JobTemplateManager.JOB_XML_VERSION);
+
+        dd.scan();
+
+        assertDrift(DriftKind.STALE);
+        verifyRepaired(1);
+    }
+
+    @Test
+    public void testMatchingJobIsLeftAlone() throws Exception {
+        jobs.put(JOB_NAME, Mockito.mock(Job.class));
+        recordFingerprint(JobTemplateManager.fingerprintXml(XML), JobTemplateManager.JOB_XML_VERSION);
+
+        dd.scan();
+
+        assertDrift();
+        verifyRepaired(0);
+    }
+
+    @Test
+    public void testJobWithoutFingerprintIsReportedNotRecorded() throws Exception {
+        jobs.put(JOB_NAME, Mockito.mock(Job.class));
+        recordFingerprint(null, null);
+
+        dd.scan();
+
+        assertDrift(DriftKind.OUTDATED);
+        verifyRepaired(0);
+        Mockito.verify(jtm, Mockito.never()).setJobFingerprint(Mockito.any(RepositoryConfiguration.class),
+            Mockito.any(JobTemplate.class), Mockito.anyString());
+    }
+
+    @Test
+    public void testOutdatedJobIsReportedNotRepaired() throws Exception {
+        jobs.put(JOB_NAME, Mockito.mock(Job.class));
+        recordFingerprint(JobTemplateManager.fingerprintXml(OLD_XML), JobTemplateManager.JOB_XML_VERSION - 1);
+
+        dd.scan();
+
+        assertDrift(DriftKind.OUTDATED);
+        verifyRepaired(0);
+    }
+
+    @Test
+    public void testPreservedJobConfigIsNotCompared() throws Exception {
+        jobs.put(JOB_NAME, Mockito.mock(Job.class));
+        Mockito.when(rc.getPreserveJenkinsJobConfig()).thenReturn(true);
+        recordFingerprint(JobTemplateManager.fingerprintXml(OLD_XML), JobTemplateManager.JOB_XML_VERSION);
+
+        dd.scan();
+
+        assertDrift();
+        verifyRepaired(0);
+        Mockito.verify(xmlFormatter, Mockito.never()).generateJobXml(Mockito.any(JobTemplate.class),
+            Mockito.any(Repository.class), Mockito.any(LookupContext.class));
+    }
+
+    @Test
+    public void testReportOnly() throws Exception {
+        System.setProperty(DriftDetector.REPAIR_PROPERTY, "false");
+
+        dd.scan();
+
+        assertDrift(DriftKind.MISSING);
+        verifyRepaired(0);
+    }
+
+    @Test
+    public void testUnreachableServerIsSkipped() throws Exception {
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(repo, repo));
+        Mockito.when(jenkinsServer.getJobs()).thenThrow(new IOException("connection refused"));
+
+        dd.scan();
+
+        assertDrift();
+        verifyRepaired(0);
+        // the failure is remembered rather than retried for every repo on the server
+        Mockito.verify(jenkinsServer, Mockito.times(1)).getJobs();
+    }
+
+    private void recordFingerprint(String fingerprint, Integer version) {
+        Mockito.when(jtm.getJobFingerprint(rc, jt)).thenReturn(fingerprint);
+        Mockito.when(jtm.getJobFingerprintVersion(rc, jt)).thenReturn(version);
+    }
+
+    private void assertDrift(DriftKind... kinds) throws Exception {
+        JSONArray drift = dd.getLastReport().getJSONArray("drift");
+        Assert.assertEquals(kinds.length, drift.length());
+        for (int i = 0; i < kinds.length; ++i) {
+            Assert.assertEquals(JOB_NAME, drift.getJSONObject(i).getString("job"));
+            Assert.assertEquals("PROJ/repo", drift.getJSONObject(i).getString("repository"));
+            Assert.assertEquals(kinds[i].toString(), drift.getJSONObject(i).getString("drift"));
+        }
+    }
+
+    private void verifyRepaired(int times) throws Exception {
+        Mockito.verify(jenkinsManager, Mockito.times(times)).createOrUpdateJob(Mockito.eq(repo), Mockito.eq(rc),
+            Mockito.eq(jenkinsServer), Mockito.eq(jobs), Mockito.eq(jt), Mockito.eq(false), Mockito.eq(false),
+            Mockito.any(LookupContext.class));
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.common.collect.ImmutableList;
+import com.offbytwo.jenkins.JenkinsServer;
+import com.offbytwo.jenkins.model.Job;
+import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileMode;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileStats;
+import com.palantir.stash.stashbot.managers.JenkinsManager.JobUpdateResult;
+import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
+import com.palantir.stash.stashbot.persistence.JobTemplate;
+import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
+
+public class JenkinsJobReconcilerTest {
+
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private ConfigurationPersistenceService cpm;
+    @Mock
+    private JobTemplateManager jtm;
+    @Mock
+    private JenkinsManager jenkinsManager;
+    @Mock
+    private JenkinsClientManager jenkinsClientManager;
+
+    @Mock
+    private Page<Repository> page;
+    @Mock
+    private Repository repo1;
+    @Mock
+    private Repository repo2;
+    @Mock
+    private Repository repo3;
+    @Mock
+    private RepositoryConfiguration rc1;
+    @Mock
+    private RepositoryConfiguration rc2;
+    @Mock
+    private RepositoryConfiguration rc3;
+    @Mock
+    private JenkinsServerConfiguration jsc;
+    @Mock
+    private JenkinsServer jenkinsServer;
+    @Mock
+    private JobTemplate jt;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private Map<String, Job> jobs;
+    private JenkinsJobReconciler reconciler;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        jobs = new HashMap<String, Job>();
+
+        Mockito.when(repositoryService.findAll(Mockito.any(PageRequest.class))).thenReturn(page);
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(repo1, repo2, repo3));
+        Mockito.when(page.getIsLastPage()).thenReturn(true);
+
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo1)).thenReturn(rc1);
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo2)).thenReturn(rc2);
+        Mockito.when(cpm.getRepositoryConfigurationForRepository(repo3)).thenReturn(rc3);
+        for (RepositoryConfiguration rc : ImmutableList.of(rc1, rc2, rc3)) {
+            Mockito.when(rc.getJenkinsServerName()).thenReturn("default");
+            Mockito.when(rc.getCiEnabled()).thenReturn(true);
+            Mockito.when(jtm.getJenkinsJobsForRepository(rc)).thenReturn(ImmutableList.of(jt));
+        }
+        Mockito.when(rc3.getCiEnabled()).thenReturn(false);
+
+        Mockito.when(cpm.getJenkinsServerConfiguration("default")).thenReturn(jsc);
+        Mockito.when(
+            jenkinsClientManager.getJenkinsServer(Mockito.any(JenkinsServerConfiguration.class),
+                Mockito.any(RepositoryConfiguration.class))).thenReturn(jenkinsServer);
+        Mockito.when(jenkinsManager.getJobs(jenkinsServer)).thenReturn(jobs);
+
+        Mockito.when(
+            jenkinsManager.createOrUpdateJob(Mockito.any(Repository.class),
+                Mockito.any(RepositoryConfiguration.class), Mockito.any(JenkinsServer.class), Mockito.anyMap(),
+                Mockito.any(JobTemplate.class), Mockito.anyBoolean(), Mockito.anyBoolean()))
+            .thenReturn(JobUpdateResult.UPDATED);
+
+        reconciler = new JenkinsJobReconciler(repositoryService, cpm, jtm, jenkinsManager, jenkinsClientManager, lf);
+    }
+
+    @Test
+    public void testFetchesJobListOncePerServer() throws Exception {
+        ReconcileStats stats = reconciler.reconcile(ReconcileMode.UPDATE_ALL);
+
+        Mockito.verify(jenkinsManager, Mockito.times(1)).getJobs(jenkinsServer);
+        Mockito.verify(jenkinsManager).createOrUpdateJob(repo1, rc1, jenkinsServer, jobs, jt, false, false);
+        Mockito.verify(jenkinsManager).createOrUpdateJob(repo2, rc2, jenkinsServer, jobs, jt, false, false);
+        Mockito.verify(jenkinsManager, Mockito.never()).createOrUpdateJob(Mockito.eq(repo3),
+            Mockito.any(RepositoryConfiguration.class), Mockito.any(JenkinsServer.class), Mockito.anyMap(),
+            Mockito.any(JobTemplate.class), Mockito.anyBoolean(), Mockito.anyBoolean());
+
+        Assert.assertEquals(3, stats.reposProcessed.get());
+        Assert.assertEquals(2, stats.jobsUpdated.get());
+        Assert.assertEquals(0, stats.errors.get());
+    }
+
+    @Test
+    public void testModes() throws Exception {
+        reconciler.reconcile(ReconcileMode.CREATE_MISSING);
+        Mockito.verify(jenkinsManager).createOrUpdateJob(repo1, rc1, jenkinsServer, jobs, jt, true, false);
+
+        reconciler.reconcile(ReconcileMode.FORCE_UPDATE_ALL);
+        Mockito.verify(jenkinsManager).createOrUpdateJob(repo1, rc1, jenkinsServer, jobs, jt, false, true);
+    }
+
+    @Test
+    public void testCountsErrors() throws Exception {
+        Mockito.when(jtm.getJenkinsJobsForRepository(rc2)).thenThrow(new RuntimeException("boom"));
+
+        ReconcileStats stats = reconciler.reconcile(ReconcileMode.UPDATE_ALL);
+
+        Assert.assertEquals(3, stats.reposProcessed.get());
+        Assert.assertEquals(1, stats.jobsUpdated.get());
+        Assert.assertEquals(1, stats.errors.get());
+    }
+}
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -25,25 +26,25 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
-import com.atlassian.sal.api.user.UserManager;
-import com.atlassian.sal.api.user.UserProfile;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.executor.ThreadLocalDelegateExecutorFactory;
 import com.atlassian.stash.project.Project;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RepositoryService;
-import com.atlassian.stash.user.SecurityService;
-import com.atlassian.stash.user.StashUser;
-import com.atlassian.stash.user.UserService;
 import com.google.common.collect.Maps;
 import com.offbytwo.jenkins.JenkinsServer;
 import com.offbytwo.jenkins.model.Job;
 import com.palantir.stash.stashbot.config.ConfigurationPersistenceService;
+import com.palantir.stash.stashbot.config.LookupContext;
 import com.palantir.stash.stashbot.jobtemplate.JenkinsJobXmlFormatter;
 import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
 import com.palantir.stash.stashbot.mocks.MockJobTemplateFactory;
-import com.palantir.stash.stashbot.mocks.MockSecurityServiceBuilder;
 import com.palantir.stash.stashbot.persistence.JenkinsServerConfiguration;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
 import com.palantir.stash.stashbot.persistence.RepositoryConfiguration;
@@ -66,9 +67,9 @@ public class JenkinsManagerTest {
     @Mock
     private StashbotUrlBuilder sub;
     @Mock
-    private UserService us;
+    private ThreadLocalDelegateExecutorFactory tldef;
     @Mock
-    private UserManager um;
+    private EventPublisher publisher;
 
     private JenkinsManager jenkinsManager;
 
@@ -83,17 +84,11 @@ public class JenkinsManagerTest {
     private RepositoryConfiguration rc;
     @Mock
     private JenkinsServerConfiguration jsc;
-    @Mock
-    private UserProfile up;
-    @Mock
-    private StashUser su;
-
-    private SecurityService ss;
 
     private final PluginLoggerFactory lf = new PluginLoggerFactory();
+    private final MetricsRegistry metrics = new MetricsRegistry(lf);
 
     private MockJobTemplateFactory jtf;
-    private MockSecurityServiceBuilder mssb;
 
     @Before
     public void setUp() throws Throwable {
@@ -111,7 +106,7 @@ public class JenkinsManagerTest {
 
         Mockito.when(
             xmlFormatter.generateJobXml(Mockito.any(JobTemplate.class),
-                Mockito.eq(repo))).thenReturn(XML_STRING);
+                Mockito.eq(repo), Mockito.any(LookupContext.class))).thenReturn(XML_STRING);
 
         Mockito.when(cpm.getJenkinsServerConfiguration(Mockito.anyString()))
             .thenReturn(jsc);
@@ -126,16 +121,19 @@ public class JenkinsManagerTest {
         Mockito.when(repo.getProject()).thenReturn(proj);
         Mockito.when(proj.getKey()).thenReturn("project_key");
 
-        Mockito.when(um.getRemoteUser()).thenReturn(up);
-        Mockito.when(up.getUsername()).thenReturn("someuser");
-        Mockito.when(us.getUserByName(Mockito.anyString())).thenReturn(su);
+        // no security context to carry around in tests, just run on the plain executor
+        Mockito.when(tldef.createExecutorService(Mockito.any(ExecutorService.class))).thenAnswer(
+            new Answer<ExecutorService>() {
 
-        mssb = new MockSecurityServiceBuilder();
+                @Override
+                public ExecutorService answer(InvocationOnMock invocation) throws Throwable {
+                    return (ExecutorService) invocation.getArguments()[0];
+                }
+            });
 
-        ss = mssb.getSecurityService();
-
-        jenkinsManager = new JenkinsManager(repositoryService, cpm, jtm,
-            xmlFormatter, jenkinsClientManager, sub, lf, ss, us, um);
+        jenkinsManager = new JenkinsManager(cpm, jtm,
+            xmlFormatter, jenkinsClientManager, sub, lf, tldef, publisher, metrics,
+            new TriggerLatencyTracker(metrics, lf));
     }
 
     @Test
@@ -148,7 +146,8 @@ public class JenkinsManagerTest {
         ArgumentCaptor<String> xmlCaptor = ArgumentCaptor
             .forClass(String.class);
 
-        Mockito.verify(xmlFormatter).generateJobXml(jt, repo);
+        Mockito.verify(xmlFormatter).generateJobXml(Mockito.eq(jt), Mockito.eq(repo),
+            Mockito.any(LookupContext.class));
         Mockito.verify(jenkinsServer).createJob(Mockito.anyString(),
             xmlCaptor.capture());
 
@@ -172,7 +171,8 @@ public class JenkinsManagerTest {
         ArgumentCaptor<String> xmlCaptor = ArgumentCaptor
             .forClass(String.class);
 
-        Mockito.verify(xmlFormatter).generateJobXml(jt, repo);
+        Mockito.verify(xmlFormatter).generateJobXml(Mockito.eq(jt), Mockito.eq(repo),
+            Mockito.any(LookupContext.class));
         Mockito.verify(jenkinsServer).updateJob(Mockito.anyString(),
             xmlCaptor.capture());
         Mockito.verify(jenkinsServer, Mockito.never()).createJob(
@@ -181,6 +181,26 @@ public class JenkinsManagerTest {
         Assert.assertEquals(XML_STRING, xmlCaptor.getValue());
     }
 
+    @Test
+    public void testUpdateJobSkipsUnchanged() throws Exception {
+
+        JobTemplate jt = jtm.getDefaultVerifyJob();
+        Map<String, Job> jobMap = new HashMap<String, Job>();
+        jobMap.put(jt.getBuildNameFor(repo), Mockito.mock(Job.class));
+        Mockito.when(jenkinsServer.getJobs()).thenReturn(jobMap);
+        Mockito.when(jtm.getJobFingerprint(rc, jt)).thenReturn(JobTemplateManager.fingerprintXml(XML_STRING));
+
+        jenkinsManager.updateJob(repo, jt);
+
+        Mockito.verify(jenkinsServer, Mockito.never()).updateJob(Mockito.anyString(), Mockito.anyString());
+
+        // unless forced
+        jenkinsManager.updateJob(repo, jt, true);
+
+        Mockito.verify(jenkinsServer).updateJob(jt.getBuildNameFor(repo), XML_STRING);
+        Mockito.verify(jtm).setJobFingerprint(rc, jt, JobTemplateManager.fingerprintXml(XML_STRING));
+    }
+
     @Test
     public void testTriggerBuildShort() throws Exception {
         String HASH = "38356e8abe0e96538dd1007278ecc02c3bf3d2cb";
@@ -214,6 +234,12 @@ public class JenkinsManagerTest {
         Assert.assertTrue(paramMap.containsKey("repoId"));
         Assert.assertFalse(paramMap.containsKey("pullRequestId"));
         Assert.assertFalse(paramMap.containsKey("mergeHead"));
+        Assert.assertTrue(paramMap.containsKey("triggerId"));
+
+        Assert.assertEquals(1, metrics.timer("latency.dispatch").getCount());
+        Assert.assertEquals(0, metrics.counter("jenkins.trigger.queueDepth").getValue());
+        Assert.assertEquals(1, metrics.timer("jenkins.trigger.dispatch").getCount());
+        Assert.assertEquals(1, metrics.timer("jenkins.http.build.ok").getCount());
     }
 
     @Test
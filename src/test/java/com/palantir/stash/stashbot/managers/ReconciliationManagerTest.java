@@ -0,0 +1,221 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import net.java.ao.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileMode;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileRun;
+import com.palantir.stash.stashbot.managers.JenkinsJobReconciler.ReconcileStats;
+import com.palantir.stash.stashbot.mocks.MockSecurityServiceBuilder;
+import com.palantir.stash.stashbot.persistence.ReconcileState;
+import com.palantir.stash.stashbot.persistence.ReconcileState.ReconcileStatus;
+
+public class ReconciliationManagerTest {
+
+    @Mock
+    private ActiveObjects ao;
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private JenkinsJobReconciler reconciler;
+    @Mock
+    private ReconcileRun run;
+    @Mock
+    private ReconcileState state;
+    @Mock
+    private Page<Repository> page;
+    @Mock
+    private Repository repo1;
+    @Mock
+    private Repository repo2;
+    @Mock
+    private Repository repo3;
+    @Mock
+    private Repository repo5;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private ReconciliationManager rm;
+
+    @Before
+    public void setUp() throws Throwable {
+        MockitoAnnotations.initMocks(this);
+
+        // listed out of id order, as findAll() sorts by name
+        Mockito.when(repositoryService.findAll(Mockito.any(PageRequest.class))).thenReturn(page);
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(repo3, repo1, repo5, repo2));
+        Mockito.when(page.getIsLastPage()).thenReturn(true);
+        stubRepo(repo1, 1);
+        stubRepo(repo2, 2);
+        stubRepo(repo3, 3);
+        stubRepo(repo5, 5);
+
+        Mockito.when(state.getMode()).thenReturn(ReconcileMode.UPDATE_ALL);
+        Mockito.when(state.getStatus()).thenReturn(ReconcileStatus.RUNNING);
+        Mockito.when(ao.find(Mockito.eq(ReconcileState.class), Mockito.any(Query.class))).thenReturn(
+            new ReconcileState[] { state });
+
+        Mockito.when(reconciler.startRun(ReconcileMode.UPDATE_ALL)).thenReturn(run);
+        Mockito.when(run.getStats()).thenReturn(new ReconcileStats());
+
+        MockSecurityServiceBuilder mssb = new MockSecurityServiceBuilder();
+        SecurityService ss = mssb.getSecurityService();
+        Mockito.when(ss.withPermission(Mockito.any(Permission.class), Mockito.anyString())).thenReturn(
+            mssb.getEscalatedSecurityContext());
+
+        rm = new ReconciliationManager(ao, repositoryService, ss, reconciler, MoreExecutors.sameThreadExecutor(), lf);
+    }
+
+    @Test
+    public void testResumesAfterLastProcessedRepository() {
+        Mockito.when(state.getLastRepoId()).thenReturn(2);
+        // repo 4 was listed but deleted before we got to it
+        Mockito.when(page.getValues()).thenReturn(ImmutableList.of(repo3, repo1, repo5, repo2, deletedRepo(4)));
+        Mockito.when(run.reconcile(Mockito.<List<Repository>> any())).thenAnswer(processAll());
+
+        rm.onStart();
+
+        Mockito.verify(run).reconcile(ImmutableList.of(repo3, repo5));
+        Mockito.verify(state).setLastRepoId(5);
+        Mockito.verify(state).setStatus(ReconcileStatus.FINISHED);
+        Mockito.verify(run).close();
+    }
+
+    @Test
+    public void testCancelStopsAtRepositoryBoundary() {
+        Mockito.when(run.reconcile(Mockito.<List<Repository>> any())).thenAnswer(new Answer<Set<Integer>>() {
+
+            @Override
+            public Set<Integer> answer(InvocationOnMock invocation) throws Throwable {
+                // cancelled while repo 2 was in progress, so 1 and 2 finish and the rest are skipped
+                rm.cancel();
+                return ImmutableSet.of(1, 2);
+            }
+        });
+
+        rm.onStart();
+
+        Mockito.verify(run).stop();
+        Mockito.verify(state).setLastRepoId(2);
+        Mockito.verify(state).setStatus(ReconcileStatus.CANCELLED);
+    }
+
+    @Test
+    public void testShutdownLeavesRunResumable() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                stopped.countDown();
+                return null;
+            }
+        }).when(run).stop();
+        final Thread[] shutdown = new Thread[1];
+        Mockito.when(run.reconcile(Mockito.<List<Repository>> any())).thenAnswer(new Answer<Set<Integer>>() {
+
+            @Override
+            public Set<Integer> answer(InvocationOnMock invocation) throws Throwable {
+                // destroy() waits for us to finish, so it has to come from another thread
+                shutdown[0] = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            rm.destroy();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                shutdown[0].start();
+                stopped.await();
+                // repo 2 was skipped, repo 3 was already in progress
+                return ImmutableSet.of(1, 3);
+            }
+        });
+
+        rm.onStart();
+        shutdown[0].join();
+
+        // 3 is done but 2 isn't, so resume from 2
+        Mockito.verify(state).setLastRepoId(1);
+        Mockito.verify(state).setStatus(ReconcileStatus.RUNNING);
+        Mockito.verify(state, Mockito.never()).setStatus(ReconcileStatus.FINISHED);
+    }
+
+    @Test
+    public void testFailureIsPersisted() {
+        Mockito.when(state.getLastRepoId()).thenReturn(1);
+        Mockito.when(run.reconcile(Mockito.<List<Repository>> any())).thenThrow(
+            new RuntimeException("jenkins is down"));
+
+        rm.onStart();
+
+        Mockito.verify(state).setLastRepoId(1);
+        Mockito.verify(state).setStatus(ReconcileStatus.FAILED);
+        Mockito.verify(run).close();
+    }
+
+    private static Answer<Set<Integer>> processAll() {
+        return new Answer<Set<Integer>>() {
+
+            @Override
+            public Set<Integer> answer(InvocationOnMock invocation) {
+                ImmutableSet.Builder<Integer> processed = ImmutableSet.builder();
+                @SuppressWarnings("unchecked")
+                List<Repository> repos = (List<Repository>) invocation.getArguments()[0];
+                for (Repository r : repos) {
+                    processed.add(r.getId());
+                }
+                return processed.build();
+            }
+        };
+    }
+
+    private void stubRepo(Repository r, int id) {
+        Mockito.when(r.getId()).thenReturn(id);
+        Mockito.when(repositoryService.getById(id)).thenReturn(r);
+    }
+
+    private static Repository deletedRepo(int id) {
+        Repository r = Mockito.mock(Repository.class);
+        Mockito.when(r.getId()).thenReturn(id);
+        return r;
+    }
+}
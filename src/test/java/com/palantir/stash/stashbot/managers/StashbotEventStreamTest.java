@@ -0,0 +1,82 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.palantir.stash.stashbot.managers.StashbotEventStream.Result;
+import com.palantir.stash.stashbot.managers.StashbotEventStream.StreamEvent;
+
+public class StashbotEventStreamTest {
+
+    private StashbotEventStream stream;
+
+    @Before
+    public void setUp() {
+        stream = new StashbotEventStream();
+    }
+
+    @Test
+    public void testResumesFromLastEventId() throws Exception {
+        Result start = stream.await(null, null, null, 0);
+        Assert.assertFalse(start.isReset());
+        Assert.assertTrue(start.getEvents().isEmpty());
+
+        stream.append(new StreamEvent("build-started", 1, 10L, null, "head", "merge"));
+        stream.append(new StreamEvent("trigger-queued", 2, null, "VERIFY_COMMIT", "head", null));
+        stream.append(new StreamEvent("build-passed", 1, 10L, null, "head", "merge"));
+
+        Result all = stream.await(start.getLastEventId(), null, null, 0);
+        Assert.assertEquals(3, all.getEvents().size());
+
+        Result repo = stream.await(start.getLastEventId(), 1, null, 0);
+        Assert.assertEquals(2, repo.getEvents().size());
+        Assert.assertEquals("build-passed", repo.getEvents().get(1).getType());
+
+        // resuming after the first event only sees the rest
+        Result rest = stream.await(all.getEvents().get(0).getId(), 1, 10L, 0);
+        Assert.assertEquals(1, rest.getEvents().size());
+        Assert.assertEquals(all.getLastEventId(), rest.getLastEventId());
+    }
+
+    @Test
+    public void testUnknownIdResets() throws Exception {
+        Result r = stream.await(42L, null, null, 0);
+        Assert.assertTrue(r.isReset());
+    }
+
+    @Test
+    public void testWaitsForEvents() throws Exception {
+        final Result start = stream.await(null, null, null, 0);
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                stream.append(new StreamEvent("build-failed", 1, 10L, null, "head", "merge"));
+            }
+        });
+        t.start();
+
+        Result r = stream.await(start.getLastEventId(), 1, 10L, 10000);
+        Assert.assertEquals(1, r.getEvents().size());
+        t.join();
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.managers;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.stash.build.BuildStatus.State;
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+import com.palantir.stash.stashbot.metrics.MetricsRegistry;
+
+public class TriggerLatencyTrackerTest {
+
+    private static final int REPO_ID = 1;
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private MetricsRegistry metrics;
+    private TriggerLatencyTracker tracker;
+
+    @Before
+    public void setUp() {
+        metrics = new MetricsRegistry(lf);
+        tracker = new TriggerLatencyTracker(metrics, lf);
+    }
+
+    @Test
+    public void testRecordsEachStage() {
+        String id = tracker.newTriggerId();
+
+        tracker.dispatched(id, REPO_ID, "jenkins1");
+        Assert.assertEquals(1, metrics.timer("latency.dispatch").getCount());
+        Assert.assertEquals(1, metrics.timer("latency.dispatch.server.jenkins1").getCount());
+        Assert.assertEquals(1, metrics.timer("latency.dispatch.repo.1").getCount());
+
+        tracker.reported(id, REPO_ID, State.INPROGRESS);
+        // only the first in progress report counts
+        tracker.reported(id, REPO_ID, State.INPROGRESS);
+        Assert.assertEquals(1, metrics.timer("latency.jenkinsQueue.server.jenkins1").getCount());
+        Assert.assertEquals(1, metrics.timer("latency.start").getCount());
+
+        tracker.reported(id, REPO_ID, State.SUCCESSFUL);
+        Assert.assertEquals(1, metrics.timer("latency.build.repo.1").getCount());
+        Assert.assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void testUnknownTriggerOnlyRecordsOverallLatency() {
+        // e.g. triggered on another node
+        String id = tracker.newTriggerId(System.currentTimeMillis() - 1000);
+
+        tracker.reported(id, REPO_ID, State.INPROGRESS);
+
+        Assert.assertEquals(1, metrics.timer("latency.start").getCount());
+        Assert.assertEquals(0, metrics.timer("latency.start.repo.1").getCount());
+    }
+
+    @Test
+    public void testIgnoresMissingAndBogusIds() {
+        tracker.reported(null, REPO_ID, State.INPROGRESS);
+        tracker.reported("", REPO_ID, State.INPROGRESS);
+        tracker.reported("not-an-id!", REPO_ID, State.INPROGRESS);
+        // from the future
+        tracker.reported(tracker.newTriggerId(System.currentTimeMillis() + 100000), REPO_ID, State.INPROGRESS);
+
+        Assert.assertEquals(0, metrics.timer("latency.start").getCount());
+    }
+}
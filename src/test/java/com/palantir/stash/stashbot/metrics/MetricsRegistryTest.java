@@ -0,0 +1,108 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.stashbot.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.palantir.stash.stashbot.logger.PluginLoggerFactory;
+
+public class MetricsRegistryTest {
+
+    private final PluginLoggerFactory lf = new PluginLoggerFactory();
+
+    private MetricsRegistry metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new MetricsRegistry(lf);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.destroy();
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram h = metrics.histogram("h");
+        for (int i = 1; i <= 100; ++i) {
+            h.update(i);
+        }
+
+        Assert.assertEquals(100, h.getCount());
+        Assert.assertEquals(100, h.getMax());
+        Assert.assertEquals(50.5, h.getMean(), 0.001);
+        // within a factor of two, never above the max
+        long p50 = h.getPercentile(50);
+        Assert.assertTrue(p50 >= 50 && p50 < 100);
+        Assert.assertEquals(100, h.getPercentile(99));
+    }
+
+    @Test
+    public void testSameNameSameMetric() {
+        metrics.counter("c").inc();
+        metrics.counter("c").inc();
+        metrics.counter("c").dec();
+        Assert.assertEquals(1, metrics.counter("c").getValue());
+        Assert.assertSame(metrics.timer("t"), metrics.timer("t"));
+    }
+
+    @Test
+    public void testSnapshotAndJson() throws Exception {
+        metrics.timer("t").update(3, TimeUnit.MILLISECONDS);
+        metrics.counter("c").inc(5);
+        metrics.gauge("g", new Gauge() {
+
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+
+        SortedMap<String, Number> snapshot = metrics.snapshot();
+        Assert.assertEquals(1L, snapshot.get("t.count"));
+        Assert.assertEquals(3.0, snapshot.get("t.max").doubleValue(), 0.001);
+        Assert.assertEquals(5L, snapshot.get("c"));
+        Assert.assertEquals(7L, snapshot.get("g"));
+
+        JSONObject json = metrics.toJson();
+        Assert.assertEquals(5, json.getJSONObject("counters").getLong("c"));
+        Assert.assertEquals(1, json.getJSONObject("timers").getJSONObject("t").getLong("count"));
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MetricsRegistry.OBJECT_NAME);
+
+        metrics.counter("pushes").inc();
+        metrics.onStart();
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(1L, server.getAttribute(name, "pushes"));
+
+        metrics.destroy();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
@@ -106,13 +106,11 @@ public class MockGitCommandBuilderFactory {
             public Void answer(InvocationOnMock invocation) throws Throwable {
                 CommandOutputHandler<Object> coh = branchCOHCaptor.getValue();
 
-                String output = "";
-                List<String> branches = new ArrayList<String>(branchMap.keySet());
-
-                for (String branch : branches) {
-                    output = output + "  " + branch + "\n";
+                StringBuilder output = new StringBuilder();
+                for (String branch : branchMap.keySet()) {
+                    output.append("  ").append(branch).append("\n");
                 }
-                InputStream is = new ByteArrayInputStream(output.getBytes());
+                InputStream is = new ByteArrayInputStream(output.toString().getBytes());
                 coh.process(is);
                 return null;
             }
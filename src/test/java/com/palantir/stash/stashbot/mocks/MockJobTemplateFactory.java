@@ -21,6 +21,7 @@ import org.mockito.Mockito;
 import com.atlassian.stash.repository.Repository;
 import com.google.common.collect.ImmutableList;
 import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager;
+import com.palantir.stash.stashbot.jobtemplate.JobTemplateManager.RepositoryJobs;
 import com.palantir.stash.stashbot.jobtemplate.JobType;
 import com.palantir.stash.stashbot.persistence.JobMapping;
 import com.palantir.stash.stashbot.persistence.JobTemplate;
@@ -64,11 +65,13 @@ public class MockJobTemplateFactory {
         Mockito.when(jm.isVisible()).thenReturn(true);
         Mockito.when(jm.isEnabled()).thenReturn(true);
 
-        Mockito.when(jtm.getJenkinsJobsForRepository(rc)).thenReturn(ImmutableList.copyOf(templates));
         Mockito.when(jtm.fromString(rc, jt.toString())).thenReturn(template);
 
         templates.add(template);
         mappings.add(jm);
+        Mockito.when(jtm.getJenkinsJobsForRepository(rc)).thenReturn(ImmutableList.copyOf(templates));
+        RepositoryJobs jobs = new RepositoryJobs(templates);
+        Mockito.when(jtm.getRepositoryJobs(rc)).thenReturn(jobs);
         return template;
     }
 
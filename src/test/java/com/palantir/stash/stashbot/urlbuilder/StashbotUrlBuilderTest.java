@@ -24,6 +24,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.atlassian.stash.event.RepositoryModifiedEvent;
 import com.atlassian.stash.nav.NavBuilder;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestRef;
@@ -103,7 +104,7 @@ public class StashbotUrlBuilderTest {
         Assert
             .assertEquals(
                 ABS_URL
-                    + "/plugins/servlet/stashbot/build-reporting/$repoId/verification/successful/$BUILD_NUMBER/$buildHead/$mergeHead/$pullRequestId",
+                    + "/plugins/servlet/stashbot/build-reporting/$repoId/verification/successful/$BUILD_NUMBER/$buildHead/$mergeHead/$pullRequestId?triggerId=$triggerId",
                 url);
     }
 
@@ -115,4 +116,18 @@ public class StashbotUrlBuilderTest {
         Mockito.verify(rs).getCloneLinks(Mockito.any(RepositoryCloneLinksRequest.class));
         Assert.assertEquals(ABS_URL_WITH_CREDS, url);
     }
+
+    @Test
+    public void testCloneUrlCachedUntilRepositoryModified() {
+        sub.buildCloneUrl(repo, jsc);
+        sub.buildCloneUrl(repo, jsc);
+        Mockito.verify(rs, Mockito.times(1)).getCloneLinks(Mockito.any(RepositoryCloneLinksRequest.class));
+
+        RepositoryModifiedEvent event = Mockito.mock(RepositoryModifiedEvent.class);
+        Mockito.when(event.getRepository()).thenReturn(repo);
+        sub.onRepositoryModified(event);
+
+        sub.buildCloneUrl(repo, jsc);
+        Mockito.verify(rs, Mockito.times(2)).getCloneLinks(Mockito.any(RepositoryCloneLinksRequest.class));
+    }
 }